@@ -22,6 +22,13 @@ hadoop fs -rm -f -r /output
 HADOOP_HEAPSIZE=$HEAPSIZE $CMD com.openresearchinc.hadoop.sequencefile.GeoTiff -libjars ${LIBJARS} s3://ori-bin2seq/landsat-seq hdfs:///output
             ;;
          
+        tif-mr)
+aws s3 rm --recursive s3://ori-bin2seq/landsat-seq
+HADOOP_HEAPSIZE=$HEAPSIZE $CMD com.openresearchinc.hadoop.sequencefile.DistributedIngest -libjars $LIBJARS -in s3://nasanex/Landsat/gls/1975/001/026/ -ext tif -out s3://ori-bin2seq/landsat-seq -codec snappy
+hadoop fs -rm -f -r /output
+HADOOP_HEAPSIZE=$HEAPSIZE $CMD com.openresearchinc.hadoop.sequencefile.GeoTiff -libjars ${LIBJARS} s3://ori-bin2seq/landsat-seq hdfs:///output
+            ;;
+
         netcdf)
 aws s3 rm --recursive s3://ori-bin2seq/netcdf-seq
 HADOOP_HEAPSIZE=$HEAPSIZE $CMD com.openresearchinc.hadoop.sequencefile.Util -libjars $LIBJARS -in s3://nasanex/NEX-DCP30/BCSD/rcp26/mon/atmos/pr/r1i1p1/v1.0/CONUS/pr_amon_BCSD_rcp26_r1i1p1_CONUS_HadGEM2-ES_200512-200512.nc -ext nc -out s3://ori-bin2seq/netcdf-seq -codec none #large size problem??
@@ -37,7 +44,7 @@ HADOOP_HEAPSIZE=$HEAPSIZE $CMD com.openresearchinc.hadoop.sequencefile.HDF5 -lib
             ;;
          
         *)
-            echo $"Usage: $0 {ppm|tif|netcdf|hdf5}"
+            echo $"Usage: $0 {ppm|tif|tif-mr|netcdf|hdf5}"
             exit 1
 esac
 
@@ -0,0 +1,272 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+
+//@formatter:off
+/**
+ * Large binaries (multi-GB NetCDF, GeoTiff,...) stored as a series of fixed-size chunk records in a SequenceFile:
+ *   key   = <filename>#<chunk index>/<total chunks>, e.g., /data/pr_amon.nc#000003/000012
+ *   value = chunk bytes
+ * so no single BytesWritable (and no reader or writer heap) has to hold the whole file.
+ *
+ * A plain (non-chunked) record reads back as a logical file of one chunk. A filename which itself looks like a chunk
+ * key (ends with #<digits>/<digits>) would read back as a chunk of another file, so writers reject it (see
+ * checkFilename).
+ *
+ * @author heq
+ */
+// @formatter:on
+public class ChunkedFile {
+	final static Pattern CHUNK_KEY = Pattern.compile("^(.*)#(\\d+)/(\\d+)$");
+
+	final String filename;
+	final int index;
+	final int total;
+
+	ChunkedFile(String filename, int index, int total) {
+		this.filename = filename;
+		this.index = index;
+		this.total = total;
+	}
+
+	public static String chunkKey(String filename, int index, int total) {
+		return String.format("%s#%06d/%06d", filename, index, total);
+	}
+
+	/**
+	 * Parse a record key; a key which is not a chunk key is the single chunk of its own file.
+	 */
+	public static ChunkedFile parse(String key) {
+		Matcher m = CHUNK_KEY.matcher(key);
+		if (m.matches())
+			return new ChunkedFile(m.group(1), Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3)));
+		return new ChunkedFile(key, 0, 1);
+	}
+
+	public static boolean isChunkKey(String key) {
+		return CHUNK_KEY.matcher(key).matches();
+	}
+
+	/**
+	 * @throws IOException
+	 *             if filename is not stored as is but read back as a chunk key by parse
+	 */
+	public static void checkFilename(String filename) throws IOException {
+		if (isChunkKey(filename))
+			throw new IOException("cannot store " + filename + ": its name reads back as a chunk key");
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * Append a file as chunk records if it is larger than chunkSize, otherwise as one plain record. The stream is not
+	 * closed.
+	 *
+	 * @param writer
+	 * @param filename
+	 * @param in
+	 * @param length
+	 *            # of bytes, or -1 if unknown (measured through a SpillBuffer first)
+	 * @param chunkSize
+	 * @return # of records appended
+	 * @throws IOException
+	 */
+	public static int append(final StreamingWriter writer, String filename, InputStream in, long length, int chunkSize)
+			throws IOException {
+		checkFilename(filename);
+		SpillBuffer spill = null;
+		try {
+			if (length < 0) { // total # of chunks is part of the key
+				spill = SpillBuffer.copyOf(in, writer.threshold);
+				in = spill.getInputStream();
+				length = spill.length();
+			}
+			return appendChunks(new Sink() {
+				public void append(String key, InputStream in, long length) throws IOException {
+					writer.append(key, in, length);
+				}
+			}, filename, in, length, chunkSize);
+		} finally {
+			if (spill != null) {
+				IOUtils.closeQuietly(in);
+				spill.release();
+			}
+		}
+	}
+
+	/**
+	 * Append length bytes of in as one plain record if length <= chunkSize, otherwise as chunk records.
+	 *
+	 * @return # of records appended
+	 */
+	static int appendChunks(Sink sink, String filename, InputStream in, long length, int chunkSize)
+			throws IOException {
+		if (length <= chunkSize) {
+			sink.append(filename, in, length);
+			return 1;
+		}
+		int total = chunks(length, chunkSize);
+		for (int i = 0; i < total; i++)
+			sink.append(chunkKey(filename, i, total), in, Math.min(chunkSize, length - (long) i * chunkSize));
+		return total;
+	}
+
+	/**
+	 * @return # of chunk records of a file of length bytes
+	 */
+	static int chunks(long length, int chunkSize) {
+		return (int) ((length + chunkSize - 1) / chunkSize);
+	}
+
+	/**
+	 * Appends one record, see appendChunks.
+	 */
+	interface Sink {
+		void append(String key, InputStream in, long length) throws IOException;
+	}
+
+	/**
+	 * Open a logical file in a SequenceFile as a stream, reading one chunk at a time.
+	 *
+	 * @return the stream, or null if filename is not in the SequenceFile
+	 */
+	public static InputStream open(Configuration conf, Path seqfile, String filename) throws IOException {
+		SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(seqfile));
+		InputStream in = null;
+		try {
+			Text key = new Text();
+			while (in == null && reader.next(key)) { // values are not deserialized while scanning
+				ChunkedFile chunk = parse(key.toString());
+				if (chunk.index == 0 && chunk.filename.equals(filename))
+					in = new ChunkInputStream(reader, chunk, true, Long.MAX_VALUE); // owns the reader from now on
+			}
+			return in;
+		} finally {
+			if (in == null) // not found, or failed
+				reader.close();
+		}
+	}
+
+	//@formatter:off
+	/**
+	 * Stream over the chunks of one logical file, which the reader is positioned at (its key has been read).
+	 * Chunks are read lazily and the value buffer is reused, so at most one chunk is in heap.
+	 */
+	// @formatter:on
+	static class ChunkInputStream extends InputStream {
+		final SequenceFile.Reader reader;
+		final boolean ownReader;
+		final String filename;
+		final int total;
+		final Text key = new Text();
+		final BytesWritable value = new BytesWritable();
+		final long end; // end of the split the first chunk belongs to
+		boolean syncSeenAfterEnd = false; // the next split starts at or before the current position
+		int index; // current chunk
+		int pos = 0; // position in current chunk
+		boolean closed = false;
+
+		ChunkInputStream(SequenceFile.Reader reader, ChunkedFile first, boolean ownReader, long end)
+				throws IOException {
+			this.reader = reader;
+			this.ownReader = ownReader;
+			this.filename = first.filename;
+			this.total = first.total;
+			this.index = first.index;
+			this.end = end;
+			reader.getCurrentValue(value);
+		}
+
+		boolean nextKey() throws IOException {
+			long position = reader.getPosition();
+			boolean more = reader.next(key);
+			if (more && position >= end && reader.syncSeen())
+				syncSeenAfterEnd = true;
+			return more;
+		}
+
+		// advance to the next chunk, false at the end of the logical file
+		boolean nextChunk() throws IOException {
+			if (index + 1 >= total)
+				return false;
+			if (!nextKey())
+				throw new IOException("missing chunk " + (index + 1) + "/" + total + " of " + filename);
+			ChunkedFile chunk = parse(key.toString());
+			if (chunk.index != index + 1 || !chunk.filename.equals(filename))
+				throw new IOException("expected chunk " + (index + 1) + " of " + filename + ", found " + key);
+			reader.getCurrentValue(value);
+			index = chunk.index;
+			pos = 0;
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (closed)
+				throw new IOException("stream closed");
+			while (pos >= value.getLength()) {
+				if (!nextChunk())
+					return -1;
+			}
+			int n = Math.min(len, value.getLength() - pos);
+			System.arraycopy(value.getBytes(), pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return value.getLength() - pos;
+		}
+
+		/**
+		 * Skip the remaining chunks without deserializing their values.
+		 */
+		void skipRemainingChunks() throws IOException {
+			while (index + 1 < total && nextKey()) {
+				ChunkedFile chunk = parse(key.toString());
+				if (!chunk.filename.equals(filename))
+					throw new IOException("expected chunk " + (index + 1) + " of " + filename + ", found " + key);
+				index = chunk.index;
+			}
+			pos = value.getLength();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			if (ownReader)
+				reader.close();
+			else
+				skipRemainingChunks();
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+
+//@formatter:off
+/**
+ * Read SequenceFiles written by ChunkedFile as (filename, stream of the reassembled file) pairs, e.g.,
+ *
+ * public static class Map extends Mapper<Text, InputStream, Text, Text> {...}
+ * job.setInputFormatClass(ChunkedFileInputFormat.class);
+ *
+ * A logical file belongs to the split its first chunk starts in, and is read past the end of the split if needed.
+ * Chunks are fetched lazily as the mapper reads the stream, so a mapper never holds a whole file in memory.
+ * An alias record (see DedupIndex) reads as the content of the file it points to.
+ *
+ * @author heq
+ */
+// @formatter:on
+public class ChunkedFileInputFormat extends SequenceFileInputFormat<Text, InputStream> {
+
+	@Override
+	public RecordReader<Text, InputStream> createRecordReader(InputSplit split, TaskAttemptContext context)
+			throws IOException {
+		return new ChunkedFileRecordReader();
+	}
+
+	public static class ChunkedFileRecordReader extends RecordReader<Text, InputStream> {
+		SequenceFile.Reader in;
+		Configuration conf;
+		Path path;
+		long start;
+		long end;
+		boolean more = true;
+		final Text key = new Text();
+		final Text filename = new Text();
+		ChunkedFile.ChunkInputStream current;
+		InputStream value; // current, or the first occurrence if current is an alias
+
+		@Override
+		public void initialize(InputSplit split, TaskAttemptContext context) throws IOException {
+			FileSplit fileSplit = (FileSplit) split;
+			conf = context.getConfiguration();
+			path = fileSplit.getPath();
+			in = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path));
+			end = fileSplit.getStart() + fileSplit.getLength();
+
+			if (fileSplit.getStart() > in.getPosition())
+				in.sync(fileSplit.getStart()); // sync to start
+			start = in.getPosition();
+			more = start < end;
+		}
+
+		@Override
+		public boolean nextKeyValue() throws IOException {
+			if (value != current)
+				value.close();
+			if (current != null) {
+				current.close(); // skip chunks the mapper did not read
+				if (current.syncSeenAfterEnd)
+					more = false; // the rest belongs to the next split
+				current = null;
+			}
+			while (more) {
+				long pos = in.getPosition();
+				if (!in.next(key) || (pos >= end && in.syncSeen())) {
+					more = false;
+					break;
+				}
+				ChunkedFile chunk = ChunkedFile.parse(key.toString());
+				if (chunk.index != 0)
+					continue; // tail of a file which started in the previous split
+				filename.set(chunk.filename);
+				current = new ChunkedFile.ChunkInputStream(in, chunk, false, end);
+				DedupIndex.Alias alias = DedupIndex.Alias.parse(current.value.getBytes(), current.value.getLength());
+				value = alias == null ? current : DedupIndex.open(conf, new Path(path.getParent(),
+						alias.getSeqfile()), alias.getKey());
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public Text getCurrentKey() {
+			return filename;
+		}
+
+		@Override
+		public InputStream getCurrentValue() {
+			return value;
+		}
+
+		@Override
+		public float getProgress() throws IOException {
+			if (end == start)
+				return 0.0f;
+			return Math.min(1.0f, (in.getPosition() - start) / (float) (end - start));
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (value != current)
+				value.close();
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineSequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
+
+//@formatter:off
+/**
+ * Read many small SequenceFiles (e.g. one per image written by Util.writeToSequenceFile) with one map task per
+ * block of data instead of one per file, e.g.,
+ *
+ * job.setInputFormatClass(CombinedSequenceFileInputFormat.class);
+ *
+ * Files are grouped into splits of up to mapreduce.input.fileinputformat.split.maxsize bytes, by default
+ * dfs.blocksize (either may carry a k/m/g suffix, e.g. 128m). Files on the same node are grouped first, then on the
+ * same rack, so a map task still mostly reads local blocks; a node group of at least half a split is kept rather
+ * than merged at rack level. A large (packed) sequence file is split by block as SequenceFileInputFormat would.
+ *
+ * Records are the (Text, BytesWritable) pairs of the files, as with SequenceFileInputFormat.
+ *
+ * @author heq
+ */
+// @formatter:on
+public class CombinedSequenceFileInputFormat extends CombineSequenceFileInputFormat<Text, BytesWritable> {
+	final static long DEFAULT_BLOCK_SIZE = 128L * 1024 * 1024;
+
+	@Override
+	public List<InputSplit> getSplits(JobContext job) throws IOException {
+		// sizes go into a copy of the job conf, not into this instance, so each call sees only its own job's
+		Configuration conf = new Configuration(job.getConfiguration());
+		long maxSize = getMaxSplitSize(conf);
+		conf.setLong(FileInputFormat.SPLIT_MAXSIZE, maxSize);
+		conf.setLong(SPLIT_MINSIZE_PERNODE, maxSize / 2);
+		return super.getSplits(new JobContextImpl(conf, job.getJobID()));
+	}
+
+	static long getMaxSplitSize(Configuration conf) {
+		long maxSize = conf.getLongBytes(FileInputFormat.SPLIT_MAXSIZE, 0);
+		return maxSize > 0 ? maxSize : conf.getLongBytes("dfs.blocksize", DEFAULT_BLOCK_SIZE);
+	}
+}
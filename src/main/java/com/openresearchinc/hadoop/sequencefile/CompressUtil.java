@@ -1,6 +1,8 @@
 package com.openresearchinc.hadoop.sequencefile;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipInputStream;
 
@@ -39,10 +41,41 @@ public class CompressUtil {
 		return b;
 	}
 
+	/*
+	 * streaming counterpart of unBZip2(byte[]), nothing is buffered beyond the decompressor's own block
+	 */
+	public static InputStream unBZip2(InputStream in) throws IOException {
+		in.read();
+		in.read(); // hack to strip two bytes 'BZ' from file header
+		return new CBZip2InputStream(in);
+	}
+
+	/*
+	 * wrap a stream with the decompressor matching the filename (bz2, gz, zip), or return it as-is
+	 */
+	public static InputStream decompress(String filename, InputStream in) throws IOException {
+		if (filename.endsWith(".bz2")) {
+			return unBZip2(in);
+		} else if (filename.endsWith(".gz")) {
+			return new GZIPInputStream(in);
+		} else if (filename.endsWith(".zip")) {
+			ZipInputStream zip = new ZipInputStream(in);
+			zip.getNextEntry(); // first entry only
+			return zip;
+		}
+		return in;
+	}
+
+	public static boolean isCompressed(String filename) {
+		return filename.endsWith(".bz2") || filename.endsWith(".gz") || filename.endsWith(".zip");
+	}
+
 	public static byte[] bZip2(byte[] data) {
 		byte[] b = null;
 		try {
 			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			bos.write('B');
+			bos.write('Z'); // CBZip2OutputStream leaves the file header to the caller, as unBZip2 strips it
 			CBZip2OutputStream bzip2 = new CBZip2OutputStream(bos);
 			bzip2.write(data);
 			bzip2.flush();
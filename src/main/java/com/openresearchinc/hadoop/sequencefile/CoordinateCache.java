@@ -0,0 +1,138 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Variable;
+
+//@formatter:off
+/**
+ * Coordinate variables (time, lat, lon,..) of NetCDF/HDF5 files, read once per JVM for files on the same grid, e.g.,
+ *
+ * CoordinateCache.Coordinates lat = CoordinateCache.get().coordinates(nc.findVariable("lat"));
+ * int[] rows = lat.indexRange(35, 40);
+ *
+ * Files of a collection (NEX-DCP30 on its CONUS grid, ...) share identical coordinates, so reading them again for
+ * every file only costs time. A coordinate variable is identified by its grid signature: name, length, and its values
+ * at the first, second, middle and last index, read as 4 single values instead of the whole array; monotonic
+ * coordinates (as CF requires) which agree on all of these are taken to be the same. The index ranges of bounds
+ * queried on a grid (see RegionQuery) are kept with it, so a query is resolved once per grid, not per file.
+ *
+ * Grids are kept least recently used first, up to MAX_GRIDS. Safe for concurrent mappers (see
+ * OrderedMultithreadedMapper).
+ *
+ * @author heq
+ */
+// @formatter:on
+public class CoordinateCache {
+	final static int MAX_GRIDS = 64;
+	final static CoordinateCache instance = new CoordinateCache();
+
+	final Map<String, Coordinates> grids = new LinkedHashMap<String, Coordinates>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Coordinates> eldest) {
+			return size() > MAX_GRIDS;
+		}
+	};
+	final AtomicLong hits = new AtomicLong();
+	final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @return the cache of the JVM
+	 */
+	public static CoordinateCache get() {
+		return instance;
+	}
+
+	/**
+	 * @return values of a 1D coordinate variable, read unless a variable with the same signature was before
+	 */
+	public Coordinates coordinates(Variable coordinate) throws IOException {
+		String signature = signature(coordinate);
+		Coordinates coordinates;
+		synchronized (grids) {
+			coordinates = grids.get(signature);
+		}
+		if (coordinates != null) {
+			hits.incrementAndGet();
+			return coordinates;
+		}
+		misses.incrementAndGet();
+		coordinates = new Coordinates((double[]) coordinate.read().get1DJavaArray(double.class));
+		synchronized (grids) {
+			grids.put(signature, coordinates); // a concurrent miss read the same values
+		}
+		return coordinates;
+	}
+
+	static String signature(Variable coordinate) throws IOException {
+		int length = (int) coordinate.getSize();
+		StringBuilder sb = new StringBuilder(coordinate.getName()).append('/').append(length);
+		if (length > 0) {
+			for (int i : new int[] { 0, Math.min(1, length - 1), length / 2, length - 1 })
+				sb.append('/').append(value(coordinate, i));
+		}
+		return sb.toString();
+	}
+
+	static double value(Variable coordinate, int index) throws IOException {
+		try {
+			return coordinate.read(new int[] { index }, new int[] { 1 }).getDouble(0);
+		} catch (InvalidRangeException e) {
+			throw new IOException(e);
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Values of a coordinate variable, and the index ranges of the bounds looked up on it so far.
+	 */
+	public static class Coordinates {
+		final double[] values;
+		final double max;
+		final Map<String, int[]> ranges = new ConcurrentHashMap<String, int[]>();
+		final static int[] NONE = new int[0]; // no index in bounds, as ConcurrentHashMap takes no null
+
+		Coordinates(double[] values) {
+			this.values = values;
+			this.max = RegionQuery.max(values);
+		}
+
+		/**
+		 * @return not to be modified
+		 */
+		public double[] getValues() {
+			return values;
+		}
+
+		public double getMax() {
+			return max;
+		}
+
+		/**
+		 * @return first and last index of the coordinates in [low, high], null if none
+		 */
+		public int[] indexRange(double low, double high) {
+			String bounds = low + "," + high;
+			int[] range = ranges.get(bounds);
+			if (range == null) {
+				range = RegionQuery.indexRange(values, low, high);
+				ranges.put(bounds, range == null ? NONE : range);
+			}
+			return range == null || range == NONE ? null : range;
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+//@formatter:off
+/**
+ * Content-addressed deduplication while packing: the SHA-1 of each file (as scripts/serial-face-detect.py computes)
+ * is looked up in an index of files already packed, and a duplicate is written as a small alias record
+ *   key   = <filename>
+ *   value = <MAGIC><UTF sequence file name><UTF key of the first occurrence>
+ * instead of a full copy. Use DedupIndex.open (or Util.readSequenceFile, ChunkedFileInputFormat) to read through
+ * aliases transparently.
+ *
+ * The index lives next to the packed files: after N.seq is closed, <out>/_dedup/N.idx lists
+ * "<sha1>\t<N.seq>\t<key>" for every file first seen in it, and all of them are loaded into a HashMap on start.
+ *
+ * @author heq
+ */
+// @formatter:on
+public class DedupIndex implements PackingWriter.Listener {
+	final static Logger logger = LoggerFactory.getLogger(DedupIndex.class);
+	final static String DIR = "_dedup";
+	final static String EXT = ".idx";
+	final static byte[] MAGIC = { 0, 'b', 'i', 'n', '2', 's', 'e', 'q', '-', 'a', 'l', 'i', 'a', 's', 0, 1 };
+
+	final FileSystem fs;
+	final Path dir;
+	final Map<String, Alias> index = new HashMap<String, Alias>(); // sha1 -> first occurrence
+	final List<String> pending = new ArrayList<String>(); // first seen in the current sequence file
+	long duplicates = 0;
+	long savedBytes = 0;
+
+	/**
+	 * @param conf
+	 * @param outpath
+	 *            directory of the packed sequence files
+	 * @param lastSeq
+	 *            # of the last sequence file which is kept, e.g. IngestJournal.nextSeq() - 1; entries of later files
+	 *            are dropped since those files will be overwritten
+	 * @throws IOException
+	 */
+	public DedupIndex(Configuration conf, Path outpath, int lastSeq) throws IOException {
+		this.dir = new Path(outpath, DIR);
+		this.fs = dir.getFileSystem(conf);
+		load(lastSeq);
+	}
+
+	void load(int lastSeq) throws IOException {
+		if (!fs.exists(dir))
+			return;
+		for (FileStatus status : fs.listStatus(dir)) {
+			String name = status.getPath().getName();
+			if (!name.endsWith(EXT))
+				continue;
+			if (Integer.parseInt(name.substring(0, name.length() - EXT.length())) > lastSeq) {
+				fs.delete(status.getPath(), false);
+				continue;
+			}
+			BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] fields = line.split("\t", 3);
+					index.put(fields[0], new Alias(fields[1], fields[2]));
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		logger.info("dedup index of {} files loaded", index.size());
+	}
+
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not supported", e);
+		}
+	}
+
+	/**
+	 * @return the first occurrence of the content, or null if it is new
+	 */
+	public Alias lookup(String sha1) {
+		return index.get(sha1);
+	}
+
+	/**
+	 * Record the first occurrence of the content, durable once its sequence file is closed.
+	 */
+	public void add(String sha1, String seqfile, String key) {
+		index.put(sha1, new Alias(seqfile, key));
+		pending.add(sha1 + "\t" + seqfile + "\t" + key);
+	}
+
+	void duplicate(long bytes) {
+		duplicates++;
+		savedBytes += bytes;
+	}
+
+	@Override
+	public void closed(Path path, int seq) throws IOException {
+		if (pending.isEmpty())
+			return;
+		Path idx = new Path(dir, seq + EXT);
+		Path tmp = new Path(dir, "." + seq + EXT + ".tmp");
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(fs.create(tmp, true), "UTF-8"));
+		try {
+			for (String entry : pending)
+				writer.println(entry);
+		} finally {
+			writer.close();
+		}
+		fs.delete(idx, false); // left by an earlier run which did not journal this file
+		if (!fs.rename(tmp, idx))
+			throw new IOException("cannot rename " + tmp + " to " + idx);
+		pending.clear();
+		logger.info("{} duplicates so far, {} MB saved", duplicates, savedBytes / (1024 * 1024));
+	}
+
+	public static boolean isAlias(byte[] bytes, int length) {
+		return length >= MAGIC.length && Arrays.equals(MAGIC, Arrays.copyOf(bytes, MAGIC.length));
+	}
+
+	/**
+	 * Open a file in a packed sequence file, following an alias to the first occurrence of its content.
+	 *
+	 * @return the stream, or null if filename is not in the sequence file
+	 */
+	public static InputStream open(Configuration conf, Path seqfile, String filename) throws IOException {
+		InputStream in = SequenceFileIndex.find(conf, seqfile, filename);
+		if (in == null)
+			return null;
+		BufferedInputStream buffered = new BufferedInputStream(in);
+		buffered.mark(MAGIC.length);
+		Alias alias = Alias.read(buffered);
+		if (alias == null) {
+			buffered.reset();
+			return buffered;
+		}
+		buffered.close();
+		InputStream first = SequenceFileIndex.find(conf, new Path(seqfile.getParent(), alias.seqfile), alias.key);
+		if (first == null)
+			throw new IOException(filename + " is an alias of missing " + alias.seqfile + ":" + alias.key);
+		return first;
+	}
+
+	/**
+	 * Where the content was first packed: sequence file name (in the same directory) and key.
+	 */
+	public static class Alias {
+		final String seqfile;
+		final String key;
+
+		Alias(String seqfile, String key) {
+			this.seqfile = seqfile;
+			this.key = key;
+		}
+
+		public String getSeqfile() {
+			return seqfile;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public byte[] toBytes() throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.write(MAGIC);
+			out.writeUTF(seqfile);
+			out.writeUTF(key);
+			out.close();
+			return bytes.toByteArray();
+		}
+
+		/**
+		 * @return the alias, or null if bytes is a regular value
+		 */
+		public static Alias parse(byte[] bytes, int length) throws IOException {
+			if (!isAlias(bytes, length))
+				return null;
+			return read(new ByteArrayInputStream(bytes, 0, length));
+		}
+
+		// read an alias from the start of a value, or null after reading MAGIC.length bytes at most
+		static Alias read(InputStream in) throws IOException {
+			DataInputStream data = new DataInputStream(in);
+			byte[] magic = new byte[MAGIC.length];
+			int n = 0, read;
+			while (n < magic.length && (read = data.read(magic, n, magic.length - n)) != -1)
+				n += read;
+			if (!isAlias(magic, n))
+				return null;
+			return new Alias(data.readUTF(), data.readUTF());
+		}
+	}
+}
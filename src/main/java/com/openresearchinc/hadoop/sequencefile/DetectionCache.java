@@ -0,0 +1,227 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+//@formatter:off
+/**
+ * Persistent cache of detection results, so a rerun over unchanged images emits the cached results without decoding
+ * or scanning them, e.g.,
+ *
+ * hadoop jar ... OpenCV -D bin2seq.opencv.cache=hdfs:///cache/faces <in> <out>
+ *
+ * key   = <SHA-1 of the image>:<SHA-1 of the detector id> (cascades and DetectionProfile, see
+ *         MultiCascadeDetector.getId), so changing the parameters misses instead of returning stale results
+ * value = the output lines for the image, "\n" separated, empty if nothing was detected
+ *
+ * Lookups read a single MapFile, <dir>/cache-<n>, so a lookup is one binary search however many tasks wrote to the
+ * cache. Each writer (map task or mapper thread) writes the entries it missed to its own MapFile <dir>/_added/<name>
+ * when it closes, under a temporary name first so a failed task leaves no partial file, and a retried task replaces
+ * the file of its earlier attempt. Once the job is done, compact() merges the added files into cache-<n+1> (see
+ * OpenCV.run); entries added by a job are therefore hits from the next job on. A cascade is identified by its file
+ * name: clear the cache when a cascade file changes.
+ *
+ * @author heq
+ */
+// @formatter:on
+public class DetectionCache implements Closeable {
+	final static Logger logger = LoggerFactory.getLogger(DetectionCache.class);
+	public final static String DIR = "bin2seq.opencv.cache";
+	final static String ADDED = "_added";
+	final static String CACHE = "cache-";
+
+	final Configuration conf;
+	final FileSystem fs;
+	final Path dir;
+	final String name;
+	MapFile.Reader reader = null; // of the latest compacted file, null if none
+	final TreeMap<String, String> added = new TreeMap<String, String>(); // sorted as MapFile requires
+	final Text value = new Text();
+	long hits = 0;
+
+	/**
+	 * @param dir
+	 *            cache directory, created if missing
+	 * @param name
+	 *            name of the MapFile to write new entries to, unique among concurrent writers
+	 */
+	public DetectionCache(Configuration conf, Path dir, String name) throws IOException {
+		this.conf = conf;
+		this.dir = dir;
+		this.name = name;
+		this.fs = dir.getFileSystem(conf);
+		if (!fs.exists(dir))
+			fs.mkdirs(dir);
+		int generation = latest(fs, dir);
+		if (generation > 0)
+			reader = new MapFile.Reader(new Path(dir, CACHE + generation), conf);
+		logger.info("cache {}{}", dir, generation > 0 ? "/" + CACHE + generation : " is empty");
+	}
+
+	// # of the latest compacted file, 0 if none
+	static int latest(FileSystem fs, Path dir) throws IOException {
+		int generation = 0;
+		for (FileStatus status : fs.listStatus(dir)) {
+			String file = status.getPath().getName();
+			if (status.isDirectory() && file.startsWith(CACHE))
+				generation = Math.max(generation, Integer.parseInt(file.substring(CACHE.length())));
+		}
+		return generation;
+	}
+
+	/**
+	 * @return key of an image for a detector
+	 */
+	public static String key(RecordView image, String detectorId) throws IOException {
+		MessageDigest digest = DedupIndex.newDigest();
+		digest.update(image.bytes, 0, image.length);
+		String content = new String(Hex.encodeHex(digest.digest()));
+		digest.reset();
+		digest.update(detectorId.getBytes("UTF-8"));
+		return content + ":" + new String(Hex.encodeHex(digest.digest()));
+	}
+
+	/**
+	 * @return the cached value, or null if key is not cached
+	 */
+	public String get(String key) throws IOException {
+		String cached = added.get(key);
+		if (cached == null && reader != null && reader.get(new Text(key), value) != null)
+			cached = value.toString();
+		if (cached != null)
+			hits++;
+		return cached;
+	}
+
+	public void put(String key, String value) {
+		added.put(key, value);
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (reader != null)
+			reader.close();
+		reader = null;
+		if (added.isEmpty())
+			return;
+		Path file = new Path(new Path(dir, ADDED), name);
+		Path tmp = new Path(new Path(dir, ADDED), "." + name + ".tmp");
+		MapFile.Writer writer = new MapFile.Writer(conf, tmp, MapFile.Writer.keyClass(Text.class),
+				SequenceFile.Writer.valueClass(Text.class));
+		try {
+			Text key = new Text();
+			for (Map.Entry<String, String> entry : added.entrySet()) {
+				key.set(entry.getKey());
+				value.set(entry.getValue());
+				writer.append(key, value);
+			}
+		} finally {
+			writer.close();
+		}
+		fs.delete(file, true); // left by an earlier attempt
+		if (!fs.rename(tmp, file))
+			throw new IOException("cannot rename " + tmp + " to " + file);
+		logger.info("{} hits, {} entries added to {}", hits, added.size(), file);
+		added.clear();
+	}
+
+	/**
+	 * Merge the latest compacted file and the files added since into the next compacted file, and delete them. Run
+	 * when no job writes to the cache, e.g. by the job client once the job is done.
+	 *
+	 * @return # of files merged, 0 if nothing was added
+	 */
+	public static int compact(Configuration conf, Path dir) throws IOException {
+		FileSystem fs = dir.getFileSystem(conf);
+		Path addedDir = new Path(dir, ADDED);
+		if (!fs.exists(addedDir))
+			return 0;
+		List<Path> inputs = new ArrayList<Path>();
+		for (FileStatus status : fs.listStatus(addedDir)) {
+			if (status.isDirectory() && !status.getPath().getName().startsWith(".")) // not a temporary file
+				inputs.add(status.getPath());
+		}
+		if (inputs.isEmpty())
+			return 0;
+		int generation = latest(fs, dir);
+		if (generation > 0)
+			inputs.add(new Path(dir, CACHE + generation));
+
+		fs.delete(tmp(dir, generation + 1), true); // left by an interrupted compaction
+		Path file = new Path(dir, CACHE + (generation + 1));
+		Path tmp = tmp(dir, generation + 1);
+		final List<MapFile.Reader> readers = new ArrayList<MapFile.Reader>();
+		final List<Text> keys = new ArrayList<Text>();
+		final List<Text> values = new ArrayList<Text>();
+		PriorityQueue<Integer> smallest = new PriorityQueue<Integer>(inputs.size(), new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int c = keys.get(a).compareTo(keys.get(b));
+				return c != 0 ? c : Integer.compare(a, b);
+			}
+		});
+		MapFile.Writer writer = null;
+		try {
+			for (int i = 0; i < inputs.size(); i++) { // merged as sorted runs
+				readers.add(new MapFile.Reader(inputs.get(i), conf));
+				keys.add(new Text());
+				values.add(new Text());
+				if (readers.get(i).next(keys.get(i), values.get(i)))
+					smallest.add(i);
+			}
+			writer = new MapFile.Writer(conf, tmp, MapFile.Writer.keyClass(Text.class),
+					SequenceFile.Writer.valueClass(Text.class));
+			Text last = null;
+			while (!smallest.isEmpty()) {
+				int i = smallest.poll();
+				if (last == null || !last.equals(keys.get(i))) { // the same key always has the same value
+					writer.append(keys.get(i), values.get(i));
+					last = new Text(keys.get(i));
+				}
+				if (readers.get(i).next(keys.get(i), values.get(i)))
+					smallest.add(i);
+			}
+		} finally {
+			for (MapFile.Reader reader : readers)
+				reader.close();
+			if (writer != null)
+				writer.close();
+		}
+		if (!fs.rename(tmp, file))
+			throw new IOException("cannot rename " + tmp + " to " + file);
+		for (Path input : inputs) // merged again by the next compaction if we stop before deleting
+			fs.delete(input, true);
+		for (FileStatus status : fs.listStatus(dir)) { // earlier files left by an interrupted compaction
+			String name = status.getPath().getName();
+			if (name.startsWith(CACHE) && Integer.parseInt(name.substring(CACHE.length())) <= generation)
+				fs.delete(status.getPath(), true);
+		}
+		logger.info("compacted {} files into {}", inputs.size(), file);
+		return inputs.size();
+	}
+
+	static Path tmp(Path dir, int generation) {
+		return new Path(dir, "." + CACHE + generation + ".tmp");
+	}
+}
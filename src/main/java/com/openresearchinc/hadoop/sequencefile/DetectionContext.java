@@ -0,0 +1,232 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import static org.bytedeco.javacpp.opencv_core.IPL_DEPTH_8U;
+import static org.bytedeco.javacpp.opencv_core.cvClearMemStorage;
+import static org.bytedeco.javacpp.opencv_core.cvGetSeqElem;
+import static org.bytedeco.javacpp.opencv_core.cvLoad;
+import static org.bytedeco.javacpp.opencv_core.cvSize;
+import static org.bytedeco.javacpp.opencv_imgproc.CV_INTER_AREA;
+import static org.bytedeco.javacpp.opencv_imgproc.cvResize;
+import static org.bytedeco.javacpp.opencv_objdetect.cvHaarDetectObjects;
+import static org.bytedeco.javacpp.opencv_objdetect.cvReleaseHaarClassifierCascade;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.opencv_objdetect;
+import org.bytedeco.javacpp.opencv_core.CvMemStorage;
+import org.bytedeco.javacpp.opencv_core.CvRect;
+import org.bytedeco.javacpp.opencv_core.CvSeq;
+import org.bytedeco.javacpp.opencv_core.IplImage;
+import org.bytedeco.javacpp.opencv_objdetect.CvHaarClassifierCascade;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+//@formatter:off
+/**
+ * Native state for detecting with one Haar cascade, owned by one thread, e.g.,
+ *
+ * List<int[]> faces = DetectionContext.forThread(DetectionContext.FACE).detect(image);
+ *
+ * A context holds
+ * - its own copy of the cascade (cvHaarDetectObjects writes into it, so a cascade must not be shared by threads),
+ * - a CvMemStorage, cleared after every detection instead of allocating one per image,
+ * - IplImages to convert BufferedImages into, pooled by size and type; the least recently used is released beyond
+ *   POOL_SIZE sizes,
+ * so native memory stays flat however many images a thread detects on. forThread() returns the context of the
+ * calling thread, created on first use, so the same code is safe in OrderedMultithreadedMapper, a Spark executor
+ * or a test; closeThread() releases the contexts of the calling thread, e.g. in Mapper.cleanup.
+ *
+ * The cascade is loaded from the working directory if there (a distributed cache file, see OpenCV.run), otherwise
+ * from the source tree.
+ *
+ * @author heq
+ */
+// @formatter:on
+public class DetectionContext implements Closeable {
+	final static Logger logger = LoggerFactory.getLogger(DetectionContext.class);
+	public final static String FACE = "haarcascade_frontalface_default.xml";
+	public final static String EYE = "haarcascade_eye.xml";
+	public final static String MOUTH = "haarcascade_mcs_mouth.xml";
+	public final static String NOSE = "haarcascade_mcs_nose.xml";
+	public final static String SMILE = "haarcascade_smile.xml";
+	final static int POOL_SIZE = 4;
+
+	static {
+		Loader.load(opencv_objdetect.class); // registers the cascade type, otherwise cvLoad cannot read it
+	}
+
+	final static ThreadLocal<Map<String, DetectionContext>> contexts = new ThreadLocal<Map<String, DetectionContext>>() {
+		@Override
+		protected Map<String, DetectionContext> initialValue() {
+			return new HashMap<String, DetectionContext>();
+		}
+	};
+
+	/**
+	 * @param cascade
+	 *            file name of the cascade, e.g. FACE
+	 * @return the context of the calling thread
+	 */
+	public static DetectionContext forThread(String cascade) {
+		Map<String, DetectionContext> map = contexts.get();
+		DetectionContext context = map.get(cascade);
+		if (context == null) {
+			context = new DetectionContext(cascade);
+			map.put(cascade, context);
+		}
+		return context;
+	}
+
+	/**
+	 * Release the contexts of the calling thread.
+	 */
+	public static void closeThread() {
+		for (DetectionContext context : contexts.get().values())
+			context.close();
+		contexts.remove();
+	}
+
+	final String cascade;
+	CvHaarClassifierCascade classifier;
+	CvMemStorage storage = CvMemStorage.create();
+	final Map<String, IplImage> pool = new LinkedHashMap<String, IplImage>(POOL_SIZE, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, IplImage> eldest) {
+			if (size() <= POOL_SIZE)
+				return false;
+			eldest.getValue().release();
+			return true;
+		}
+	};
+
+	public DetectionContext(String cascade) {
+		this.cascade = cascade;
+		this.classifier = load(cascade);
+	}
+
+	static CvHaarClassifierCascade load(String cascade) {
+		File file = new File(cascade);
+		if (!file.exists()) {
+			URL resource = DetectionContext.class.getResource("/" + cascade);
+			if (resource == null)
+				throw new IllegalArgumentException("cannot find cascade " + cascade);
+			file = new File(resource.getFile());
+		}
+		Pointer pointer = cvLoad(file.getAbsolutePath());
+		if (pointer == null || pointer.isNull())
+			throw new IllegalArgumentException("cannot load cascade " + file);
+		logger.debug("{} loaded on {}", file, Thread.currentThread().getName());
+		return new CvHaarClassifierCascade(pointer);
+	}
+
+	public String getCascade() {
+		return cascade;
+	}
+
+	/**
+	 * @return box (x1, y1, x2, y2) of every object detected
+	 */
+	public List<int[]> detect(BufferedImage image) {
+		return detect(convert(image));
+	}
+
+	/**
+	 * @return box (x1, y1, x2, y2) of every object detected
+	 */
+	public List<int[]> detect(IplImage image) {
+		return detect(image, DetectionProfile.DEFAULT);
+	}
+
+	public List<int[]> detect(BufferedImage image, DetectionProfile profile) {
+		return detect(convert(image), profile);
+	}
+
+	/**
+	 * Detect on image (its ROI if set), downscaled as the profile says.
+	 *
+	 * @return box (x1, y1, x2, y2) of every object detected, in coordinates of image (its ROI if set)
+	 */
+	public List<int[]> detect(IplImage image, DetectionProfile profile) {
+		int width = image.roi() == null ? image.width() : image.roi().width();
+		int height = image.roi() == null ? image.height() : image.roi().height();
+		double factor = profile.downscale(width, height);
+		IplImage working = image;
+		if (factor < 1) {
+			working = image((int) Math.round(width * factor), (int) Math.round(height * factor), image.nChannels());
+			cvResize(image, working, CV_INTER_AREA);
+		}
+		int min = (int) (profile.minSize * factor);
+		int max = (int) Math.ceil(profile.maxSize * factor);
+		List<int[]> boxes = new ArrayList<int[]>();
+		CvSeq target = cvHaarDetectObjects(working, classifier, storage, profile.scaleFactor, profile.minNeighbors,
+				profile.flags, cvSize(min, min), cvSize(max, max));
+		try {
+			for (int i = 0; i < target.total(); i++) {
+				CvRect r = new CvRect(cvGetSeqElem(target, i));
+				boxes.add(new int[] { (int) Math.round(r.x() / factor), (int) Math.round(r.y() / factor),
+						Math.min(width, (int) Math.round((r.x() + r.width()) / factor)),
+						Math.min(height, (int) Math.round((r.y() + r.height()) / factor)) });
+			}
+		} finally {
+			cvClearMemStorage(storage); // target lives in storage
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("Num of detected objects=" + boxes.size());
+		return boxes;
+	}
+
+	/**
+	 * @return image holding a copy of image, owned by the context and overwritten by the next convert
+	 */
+	IplImage convert(BufferedImage image) {
+		String key = image.getWidth() + "x" + image.getHeight() + ":" + image.getType();
+		IplImage converted = pool.get(key);
+		if (converted == null) {
+			converted = IplImage.createFrom(image);
+			pool.put(key, converted);
+		} else {
+			converted.copyFrom(image);
+		}
+		return converted;
+	}
+
+	/**
+	 * @return an 8 bit image of the size, owned by the context and shared by callers asking for the same size
+	 */
+	IplImage image(int width, int height, int channels) {
+		String key = width + "x" + height + "x" + channels;
+		IplImage image = pool.get(key);
+		if (image == null) {
+			image = IplImage.create(width, height, IPL_DEPTH_8U, channels);
+			pool.put(key, image);
+		}
+		return image;
+	}
+
+	@Override
+	public void close() {
+		for (IplImage image : pool.values())
+			image.release();
+		pool.clear();
+		if (storage != null) {
+			storage.release();
+			storage = null;
+		}
+		if (classifier != null) {
+			cvReleaseHaarClassifierCascade(classifier);
+			classifier = null;
+		}
+	}
+}
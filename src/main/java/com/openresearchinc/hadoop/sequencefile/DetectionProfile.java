@@ -0,0 +1,114 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import static org.bytedeco.javacpp.opencv_objdetect.CV_HAAR_DO_CANNY_PRUNING;
+
+import org.apache.hadoop.conf.Configuration;
+
+//@formatter:off
+/**
+ * Parameters of a Haar detection, trading accuracy for throughput, e.g.,
+ *
+ * DetectionProfile profile = new DetectionProfile().withMaxDimension(640).withMinSize(40).withScaleFactor(1.2);
+ * DetectionContext.forThread(DetectionContext.FACE).detect(image, profile);
+ *
+ * or, in a job, -D bin2seq.opencv.maxdim=640 -D bin2seq.opencv.minsize=40 ... (see fromConf).
+ *
+ * - maxDimension: if the width or height of an image is larger, detect on a copy downscaled (CV_INTER_AREA) to fit,
+ *   and map the boxes back to the original; the cost of a detection grows with the # of pixels.
+ * - minSize/maxSize: smallest/largest object (width and height) to look for, in pixels of the original image; each
+ *   halving of the range saves scales to scan.
+ * - scaleFactor: step between scales, fewer scales with a larger factor but objects between them may be missed.
+ * - minNeighbors: overlapping hits to accept an object.
+ * 0 means no limit. The default is what OpenCV.detectFace always did: full resolution, scale 1.1, 3 neighbors,
+ * Canny pruning. See Benchmarks#detectionProfiles for accuracy vs throughput of some settings.
+ *
+ * @author heq
+ */
+// @formatter:on
+public class DetectionProfile {
+	public final static String MAX_DIMENSION = "bin2seq.opencv.maxdim";
+	public final static String MIN_SIZE = "bin2seq.opencv.minsize";
+	public final static String MAX_SIZE = "bin2seq.opencv.maxsize";
+	public final static String SCALE_FACTOR = "bin2seq.opencv.scale";
+	public final static String MIN_NEIGHBORS = "bin2seq.opencv.neighbors";
+
+	final static DetectionProfile DEFAULT = new DetectionProfile(); // not to be modified
+
+	int maxDimension = 0;
+	int minSize = 0;
+	int maxSize = 0;
+	double scaleFactor = 1.1;
+	int minNeighbors = 3;
+	int flags = CV_HAAR_DO_CANNY_PRUNING;
+
+	public static DetectionProfile fromConf(Configuration conf) {
+		return new DetectionProfile().withMaxDimension(conf.getInt(MAX_DIMENSION, DEFAULT.maxDimension))
+				.withMinSize(conf.getInt(MIN_SIZE, DEFAULT.minSize)).withMaxSize(conf.getInt(MAX_SIZE, DEFAULT.maxSize))
+				.withScaleFactor(conf.getDouble(SCALE_FACTOR, DEFAULT.scaleFactor))
+				.withMinNeighbors(conf.getInt(MIN_NEIGHBORS, DEFAULT.minNeighbors));
+	}
+
+	public DetectionProfile withMaxDimension(int maxDimension) {
+		this.maxDimension = maxDimension;
+		return this;
+	}
+
+	public DetectionProfile withMinSize(int minSize) {
+		this.minSize = minSize;
+		return this;
+	}
+
+	public DetectionProfile withMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		return this;
+	}
+
+	public DetectionProfile withScaleFactor(double scaleFactor) {
+		if (scaleFactor <= 1)
+			throw new IllegalArgumentException("scale factor must be > 1: " + scaleFactor);
+		this.scaleFactor = scaleFactor;
+		return this;
+	}
+
+	public DetectionProfile withMinNeighbors(int minNeighbors) {
+		this.minNeighbors = minNeighbors;
+		return this;
+	}
+
+	public int getMaxDimension() {
+		return maxDimension;
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public double getScaleFactor() {
+		return scaleFactor;
+	}
+
+	public int getMinNeighbors() {
+		return minNeighbors;
+	}
+
+	/**
+	 * @return factor (<= 1) to downscale an image of the size by
+	 */
+	public double downscale(int width, int height) {
+		int dimension = Math.max(width, height);
+		return maxDimension > 0 && dimension > maxDimension ? maxDimension / (double) dimension : 1;
+	}
+
+	/**
+	 * @return e.g. "maxdim=640,min=40,max=0,scale=1.2,neighbors=3,flags=1", the same for the same parameters
+	 */
+	@Override
+	public String toString() {
+		return "maxdim=" + maxDimension + ",min=" + minSize + ",max=" + maxSize + ",scale=" + scaleFactor
+				+ ",neighbors=" + minNeighbors + ",flags=" + flags;
+	}
+}
@@ -0,0 +1,270 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.NLineInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+//@formatter:off
+/**
+ * Ingest as a MapReduce job, so throughput scales with the cluster instead of one client's NIC:
+ * 1. the client lists the S3 objects (with sizes) into a manifest of balanced byte-size groups,
+ *    one manifest file per group (largest object first, into the group with the fewest bytes so far),
+ * 2. each map task gets one group (NLineInputFormat over the list of group files), fetches its objects through
+ *    the s3n:// file system, and packs them into its own block-sized files <out>/part-m-<task>-1.seq, -2.seq,...
+ *
+ * Packed files are written to the task's work directory and promoted by the output committer, so failed or
+ * speculative attempts leave no partial files behind.
+ *
+ * $hadoop jar <path>/bin2seq.jar com.openresearchinc.hadoop.sequencefile.DistributedIngest -in s3://... -ext tif -out hdfs:///... -codec snappy [-maps <n>] [-chunk <MB>] [-tiles] [-spatial]
+ *
+ * @author heq
+ */
+// @formatter:on
+public class DistributedIngest extends Configured implements Tool {
+	final static Logger logger = LoggerFactory.getLogger(DistributedIngest.class);
+
+	public final static String EXT_KEY = "bin2seq.ingest.ext";
+	public final static String CODEC_KEY = "bin2seq.ingest.codec"; // codec class, unset for none
+	public final static String CHUNK_KEY = "bin2seq.ingest.chunk"; // bytes, 0 to disable chunking
+	public final static String TILES_KEY = "bin2seq.ingest.tiles"; // true to store GeoTIFFs as tiles
+	public final static String SPATIAL_KEY = "bin2seq.ingest.spatial"; // true to write a spatial index
+	public final static String MAPS_KEY = "bin2seq.ingest.maps"; // # of groups, default 1 per GB listed
+	final static long DEFAULT_GROUP_BYTES = 1024L * 1024 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		int res = ToolRunner.run(new Configuration(), new DistributedIngest(), args);
+		System.exit(res);
+	}
+
+	@Override
+	public final int run(final String[] args) throws Exception {
+		final String usage = "Usage: hadoop jar ./target/bin2seq*.jar com.openresearchinc.hadoop.sequencefile.DistributedIngest "
+				+ "-in <s3-uri> -ext <ext> -out <output-uri> -codec <none|default|gzip|bz2|snappy> [-maps <n>] [-chunk <MB>] [-tiles] [-spatial]";
+		Configuration conf = getConf();
+		String[] otherArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
+		List<String> argList = Arrays.asList(otherArgs);
+		int in = argList.indexOf("-in"), ext = argList.indexOf("-ext"), out = argList.indexOf("-out");
+		if (in == -1 || ext == -1 || out == -1) {
+			System.err.println(usage);
+			return 2;
+		}
+		int pos;
+		if ((pos = argList.indexOf("-codec")) != -1) {
+			CompressionCodec codec = Util.getCodec(otherArgs[pos + 1]);
+			if (codec != null)
+				conf.set(CODEC_KEY, codec.getClass().getName());
+		}
+		if ((pos = argList.indexOf("-maps")) != -1)
+			conf.setInt(MAPS_KEY, Integer.parseInt(otherArgs[pos + 1]));
+		if ((pos = argList.indexOf("-chunk")) != -1)
+			conf.setInt(CHUNK_KEY, Integer.parseInt(otherArgs[pos + 1]) * 1024 * 1024);
+		conf.setBoolean(TILES_KEY, argList.indexOf("-tiles") != -1);
+		conf.setBoolean(SPATIAL_KEY, argList.indexOf("-spatial") != -1);
+		String dotext = otherArgs[ext + 1];
+		conf.set(EXT_KEY, "." + (dotext.startsWith(".") ? dotext.substring(1) : dotext));
+
+		Path outpath = Util.resolveOutputDir(otherArgs[out + 1]);
+		conf.set("fs.defaultFS", Util.conf.get("fs.defaultFS"));
+		Path manifest = new Path(conf.get("hadoop.tmp.dir"), "bin2seq-manifest-" + System.currentTimeMillis());
+		FileSystem fs = manifest.getFileSystem(conf);
+		try {
+			int groups = writeManifest(conf, otherArgs[in + 1], manifest);
+			if (groups == 0) {
+				logger.warn("nothing to ingest under {}", otherArgs[in + 1]);
+				return 0;
+			}
+
+			Job job = Job.getInstance(conf);
+			job.setJobName("bin2seq ingest " + otherArgs[in + 1]);
+			job.setJarByClass(DistributedIngest.class);
+			job.setMapperClass(Map.class);
+			job.setNumReduceTasks(0);
+			job.setSpeculativeExecution(false); // no point in fetching the same group twice
+			job.setOutputKeyClass(NullWritable.class);
+			job.setOutputValueClass(NullWritable.class);
+
+			job.setInputFormatClass(NLineInputFormat.class);
+			NLineInputFormat.setNumLinesPerSplit(job, 1); // one group per map task
+			FileInputFormat.addInputPath(job, new Path(manifest, "groups"));
+			LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class); // no empty part-m-* files
+			FileOutputFormat.setOutputPath(job, outpath);
+
+			return job.waitForCompletion(true) ? 0 : 1;
+		} finally {
+			fs.delete(manifest, true);
+		}
+	}
+
+	/**
+	 * List s3URI and write the manifest: <manifest>/group-<n> with one "<s3n uri>\t<size>" line per object, and
+	 * <manifest>/groups with the path of one group file per line.
+	 *
+	 * @return # of groups
+	 */
+	static int writeManifest(Configuration conf, String s3URI, Path manifest) throws IOException {
+		String ext = conf.get(EXT_KEY);
+		List<S3ObjectSummary> summaries = new ArrayList<S3ObjectSummary>();
+		long total = 0;
+		for (S3ObjectSummary summary : Util.listS3Objects(s3URI)) {
+			String key = summary.getKey().toLowerCase();
+			if (key.contains(ext.toLowerCase()) || key.endsWith(".tar.gz")) {
+				summaries.add(summary);
+				total += summary.getSize();
+			}
+		}
+		if (summaries.isEmpty())
+			return 0;
+		int groups = conf.getInt(MAPS_KEY, (int) Math.min(Integer.MAX_VALUE, (total + DEFAULT_GROUP_BYTES - 1)
+				/ DEFAULT_GROUP_BYTES));
+		groups = Math.max(1, Math.min(groups, summaries.size()));
+
+		List<List<S3ObjectSummary>> balanced = balance(summaries, groups);
+		FileSystem fs = manifest.getFileSystem(conf);
+		PrintWriter groupList = new PrintWriter(new OutputStreamWriter(fs.create(new Path(manifest, "groups")), "UTF-8"));
+		try {
+			for (int i = 0; i < balanced.size(); i++) {
+				Path group = new Path(manifest, String.format("group-%05d", i));
+				PrintWriter writer = new PrintWriter(new OutputStreamWriter(fs.create(group), "UTF-8"));
+				try {
+					for (S3ObjectSummary summary : balanced.get(i))
+						writer.println("s3n://" + summary.getBucketName() + "/" + summary.getKey() + "\t"
+								+ summary.getSize());
+				} finally {
+					writer.close();
+				}
+				groupList.println(fs.makeQualified(group));
+			}
+		} finally {
+			groupList.close();
+		}
+		logger.info("manifest {}: {} objects, {} MB in {} groups", manifest, summaries.size(), total / (1024 * 1024),
+				balanced.size());
+		return balanced.size();
+	}
+
+	/**
+	 * Greedy (longest processing time first) partition of objects into groups of about equal total size.
+	 */
+	static List<List<S3ObjectSummary>> balance(List<S3ObjectSummary> summaries, int groups) {
+		List<S3ObjectSummary> sorted = new ArrayList<S3ObjectSummary>(summaries);
+		Collections.sort(sorted, new Comparator<S3ObjectSummary>() {
+			public int compare(S3ObjectSummary a, S3ObjectSummary b) {
+				return Long.compare(b.getSize(), a.getSize()); // largest first
+			}
+		});
+		final long[] bytes = new long[groups];
+		PriorityQueue<Integer> lightest = new PriorityQueue<Integer>(groups, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int c = Long.compare(bytes[a], bytes[b]);
+				return c != 0 ? c : Integer.compare(a, b);
+			}
+		});
+		List<List<S3ObjectSummary>> balanced = new ArrayList<List<S3ObjectSummary>>(groups);
+		for (int i = 0; i < groups; i++) {
+			balanced.add(new ArrayList<S3ObjectSummary>());
+			lightest.add(i);
+		}
+		for (S3ObjectSummary summary : sorted) {
+			int i = lightest.poll();
+			balanced.get(i).add(summary);
+			bytes[i] += summary.getSize();
+			lightest.add(i);
+		}
+		return balanced;
+	}
+
+	public static class Map extends Mapper<LongWritable, Text, NullWritable, NullWritable> {
+		PackingWriter writer;
+		String ext;
+
+		@Override
+		protected void setup(Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+			ext = conf.get(EXT_KEY);
+			String codecClass = conf.get(CODEC_KEY);
+			CompressionCodec codec = null;
+			if (codecClass != null) {
+				try {
+					codec = (CompressionCodec) ReflectionUtils.newInstance(conf.getClassByName(codecClass), conf);
+				} catch (ClassNotFoundException e) {
+					throw new IOException("unknown codec " + codecClass, e);
+				}
+			}
+			String prefix = String.format("part-m-%05d-", context.getTaskAttemptID().getTaskID().getId());
+			// block size from the job conf: Util (and its hdfs-site.xml lookup) is client side only; 128m and the like
+			writer = new PackingWriter(conf, FileOutputFormat.getWorkOutputPath(context), prefix, 1, codec,
+					conf.getLongBytes("dfs.blocksize", 64 * 1024 * 1024));
+			writer.setChunkSize(conf.getInt(CHUNK_KEY, 0));
+			writer.setTiling(conf.getBoolean(TILES_KEY, false));
+			writer.setSpatialIndex(conf.getBoolean(SPATIAL_KEY, false));
+		}
+
+		// value: path of one group file of the manifest
+		@Override
+		public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+			Path group = new Path(value.toString());
+			BufferedReader reader = new BufferedReader(new InputStreamReader(group.getFileSystem(conf).open(group),
+					"UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] fields = line.split("\t");
+					Path object = new Path(fields[0]);
+					long size = Long.parseLong(fields[1]);
+					InputStream in = object.getFileSystem(conf).open(object);
+					try {
+						int files = writer.appendObject(object.toUri().getPath().substring(1), in, size, ext);
+						context.getCounter("bin2seq", "files").increment(files);
+					} finally {
+						IOUtils.closeQuietly(in);
+					}
+					context.getCounter("bin2seq", "objects").increment(1);
+					context.getCounter("bin2seq", "object bytes").increment(size);
+					context.progress();
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		@Override
+		protected void cleanup(Context context) throws IOException {
+			writer.close();
+		}
+	}
+}
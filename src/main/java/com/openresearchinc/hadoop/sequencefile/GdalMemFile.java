@@ -0,0 +1,96 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gdal.gdal.Dataset;
+import org.gdal.gdal.gdal;
+
+//@formatter:off
+/**
+ * A GDAL dataset opened from bytes in memory (/vsimem), released deterministically, e.g.,
+ *
+ * GdalMemFile file = GdalMemFile.open(RecordView.of(value).toArray());
+ * try {
+ *     Dataset dataset = file.getDataset(); ...
+ * } finally {
+ *     file.close(); // closes the dataset and unlinks the /vsimem file
+ * }
+ *
+ * - every file gets its own /vsimem name (thread id + sequence #), so threads (see OrderedMultithreadedMapper) never
+ *   open or unlink the buffer of another,
+ * - gdal.FileFromMemBuffer copies the bytes into native memory, which is only freed by gdal.Unlink once the dataset
+ *   is closed: close() does both, in that order; a dataset left to the finalizer keeps its buffer until GC,
+ * - drivers are registered (gdal.AllRegister) once per JVM, not per task or record,
+ * - getNativeBytes() is the # of bytes held by open files of the JVM, to log or check it stays flat in long scans.
+ *
+ * @author heq
+ */
+// @formatter:on
+public class GdalMemFile implements Closeable {
+	final static AtomicLong sequence = new AtomicLong();
+	final static AtomicLong nativeBytes = new AtomicLong();
+
+	static {
+		gdal.AllRegister();
+	}
+
+	final String name;
+	final long length;
+	Dataset dataset;
+	boolean closed = false;
+
+	/**
+	 * @return the opened file; throws if GDAL cannot open the bytes
+	 */
+	public static GdalMemFile open(byte[] bytes) throws IOException {
+		return new GdalMemFile(bytes);
+	}
+
+	GdalMemFile(byte[] bytes) throws IOException {
+		this.name = "/vsimem/bin2seq-" + Thread.currentThread().getId() + "-" + sequence.incrementAndGet();
+		this.length = bytes.length;
+		gdal.FileFromMemBuffer(name, bytes);
+		nativeBytes.addAndGet(length);
+		dataset = gdal.Open(name);
+		if (dataset == null) {
+			close();
+			throw new IOException("GDAL cannot open " + bytes.length + " bytes: " + gdal.GetLastErrorMsg());
+		}
+	}
+
+	public Dataset getDataset() {
+		return dataset;
+	}
+
+	/**
+	 * @return the /vsimem name, for GDAL calls which take a file name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return # of bytes copied into /vsimem by files not closed yet
+	 */
+	public static long getNativeBytes() {
+		return nativeBytes.get();
+	}
+
+	/**
+	 * Does nothing if closed already, e.g. by a failed open.
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		if (dataset != null) {
+			dataset.delete(); // must be closed before its buffer is freed
+			dataset = null;
+		}
+		if (gdal.Unlink(name) == 0)
+			nativeBytes.addAndGet(-length);
+	}
+}
@@ -2,21 +2,32 @@ package com.openresearchinc.hadoop.sequencefile;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
+import org.gdal.gdal.Band;
 import org.gdal.gdal.Dataset;
+import org.gdal.gdal.gdal;
+import org.gdal.gdalconst.gdalconstConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,6 +36,12 @@ import org.slf4j.LoggerFactory;
  * 
  * A program to demo retrive attributes from Geotiff images as Hadoop SequenceFile stored on hdfs:// or s3://
  *  
+ * With -stats, compute per band statistics (see RasterStats) instead of corners, rolled up by
+ * -D bin2seq.geotiff.groupby=<scene|pathrow|year|regex whose first group is the key>, default scene:
+ *   key   = <group>@b<band>, e.g., p132r058@b01
+ *   value = count=.. nodata=.. min=.. max=.. mean=.. stddev=.. histogram=..
+ * Bands are read block by block into one reused buffer, never as a whole band; each map output is the statistics
+ * of one band of one record, merged by the combiner and the reducer.
  *  
  * @author heq
  */
@@ -33,6 +50,9 @@ import org.slf4j.LoggerFactory;
 public class GeoTiff extends Configured implements Tool {
 	final static Logger logger = LoggerFactory.getLogger(GeoTiff.class);
 	static String hostname = "localhost";
+	// comma separated bands (1-based) of tile records to process, e.g., 1,4; all if unset (see RasterTile)
+	public final static String BANDS = "bin2seq.geotiff.bands";
+	public final static String GROUP_BY = "bin2seq.geotiff.groupby";
 
 	public static void main(String[] args) throws Exception {
 		int res = ToolRunner.run(new Configuration(), new GeoTiff(), args);
@@ -42,64 +62,234 @@ public class GeoTiff extends Configured implements Tool {
 	@Override
 	public final int run(final String[] args) throws Exception {
 		final String usage = "Usage: hadoop jar ./target/bin2seq*.jar com.openresearchinc.hadoop.sequencefile.GeoTiff  "
-				+ "-libs $LIBJARS  <input URI of * tif.seq on HDFS-or-s3> <output-uri-of-files> ";
+				+ "-libs $LIBJARS [-stats] [-bbox <minx,maxx,miny,maxy>] <input URI of * tif.seq on HDFS-or-s3> <output-uri-of-files> ";
+		List<String> argList = new ArrayList<String>(Arrays.asList(args));
+		boolean stats = argList.remove("-stats");
+		String bbox = null; // minx,maxx,miny,maxy
+		int pos = argList.indexOf("-bbox");
+		if (pos != -1 && pos + 1 < argList.size()) {
+			bbox = argList.remove(pos + 1);
+			argList.remove(pos);
+		}
+		if (argList.size() != 2) {
+			System.err.println(usage);
+			return 2;
+		}
 
 		Job job = Job.getInstance(super.getConf());
 		job.setJarByClass(GeoTiff.class);
 
-		job.setOutputKeyClass(Text.class); // same filename as input
-		job.setOutputValueClass(Text.class);// scanned attributes from *.tif.seq
-
-		job.setMapperClass(Map.class); // mapper only no reducer for now
+		if (stats) {
+			job.setOutputKeyClass(Text.class); // group and band
+			job.setOutputValueClass(RasterStats.class);
+			OrderedMultithreadedMapper.configure(job, StatsMap.class);
+			job.setCombinerClass(StatsReduce.class);
+			job.setReducerClass(StatsReduce.class);
+		} else {
+			job.setOutputKeyClass(Text.class); // same filename as input
+			job.setOutputValueClass(Text.class);// scanned attributes from *.tif.seq
+			OrderedMultithreadedMapper.configure(job, Map.class); // -D bin2seq.mapper.threads=N to use N cores
+		}
 
-		job.setInputFormatClass(SequenceFileInputFormat.class);
+		job.setInputFormatClass(CombinedSequenceFileInputFormat.class); // many small files per map task
+		if (bbox != null) { // only scenes and tiles intersecting it, through the index written with -spatial
+			job.setInputFormatClass(SpatialInputFormat.class);
+			SpatialInputFormat.setBoundingBox(job, bbox);
+		}
 		job.setOutputFormatClass(TextOutputFormat.class);
 
 		FileInputFormat.setInputDirRecursive(job, true); //add data recursively
-		FileInputFormat.addInputPath(job, new Path(args[0]));
-		FileOutputFormat.setOutputPath(job, new Path(args[1]));
+		FileInputFormat.addInputPath(job, new Path(argList.get(0)));
+		FileOutputFormat.setOutputPath(job, new Path(argList.get(1)));
 
 		job.waitForCompletion(true);
 		return 0;
 	}
 
 	public static class Map extends Mapper<Text, BytesWritable, Text, Text> {
+		Set<Integer> bands = new HashSet<Integer>(); // empty for all
 
 		protected void setup(Context context) throws IOException {
 			hostname = InetAddress.getLocalHost().getHostName();
 			logger.debug("host={}", hostname);
-			org.gdal.gdal.gdal.AllRegister();
+			for (String band : context.getConfiguration().getTrimmedStrings(BANDS))
+				bands.add(Integer.parseInt(band));
 		}
 
 		public void map(Text key, BytesWritable value, Context context) throws IOException, InterruptedException {
 			String filename = key.toString();
-			byte[] bytes = value.getBytes();
 			Text outputkey = new Text();
 			Text outputvalue = new Text();
 
-			if (!filename.toLowerCase().matches(".*tif.*")) {
-				logger.error("unsupported NetCDF formats for input: " + filename);
-				System.exit(1);
+			RasterTile tile = RasterTile.parse(filename);
+			if (tile != null) { // ingested with -tiles, decoded without GDAL
+				if (!bands.isEmpty() && !bands.contains(tile.getBand()))
+					return; // skipped before decoding
+				tile = RasterTile.read(filename, RecordView.of(value));
+				outputkey.set(filename);
+				outputvalue.set(getCoordinatesodCorners(tile.getGeoTransform(), tile.getWidth(), tile.getHeight()));
+				context.write(outputkey, outputvalue);
+				return;
 			}
-			org.gdal.gdal.gdal.FileFromMemBuffer("/vsimem/geotiffinmem", bytes);
-			Dataset dataset = org.gdal.gdal.gdal.Open("/vsimem/geotiffinmem");
+			byte[] bytes = RecordView.of(value).toArray(); // getBytes() is padded past getLength()
+			if (!filename.toLowerCase().matches(".*tif.*"))
+				throw new IOException("unsupported format for input: " + filename); // fails the task, not the JVM
+			GdalMemFile file = GdalMemFile.open(bytes);
 			outputkey.set(filename);
 
-			outputvalue.set(getCoordinatesodCorners(dataset));
+			try {
+				outputvalue.set(getCoordinatesodCorners(file.getDataset()));
+			} finally {
+				file.close();
+			}
 			context.write(outputkey, outputvalue);
 		}
+
+		protected void cleanup(Context context) {
+			logger.debug("{} bytes left in /vsimem", GdalMemFile.getNativeBytes());
+		}
+	}
+
+	public static class StatsMap extends Mapper<Text, BytesWritable, Text, RasterStats> {
+		Set<Integer> bands = new HashSet<Integer>(); // empty for all
+		Pattern groupBy; // null for the scene
+		RasterStats stats;
+		double[] buffer = new double[0]; // samples of one block or tile, reused
+		final Text outputkey = new Text();
+		boolean warned = false; // of a band mostly out of the histogram
+
+		protected void setup(Context context) throws IOException {
+			Configuration conf = context.getConfiguration();
+			for (String band : conf.getTrimmedStrings(BANDS))
+				bands.add(Integer.parseInt(band));
+			groupBy = groupPattern(conf.get(GROUP_BY, "scene"));
+			stats = RasterStats.fromConf(conf);
+		}
+
+		public void map(Text key, BytesWritable value, Context context) throws IOException, InterruptedException {
+			String filename = key.toString();
+			RasterTile tile = RasterTile.parse(filename);
+			if (tile != null) { // ingested with -tiles
+				if (!bands.isEmpty() && !bands.contains(tile.getBand()))
+					return;
+				tile = RasterTile.read(filename, RecordView.of(value));
+				buffer = tile.getSamples(buffer);
+				stats.clear();
+				stats.add(buffer, tile.getWidth() * tile.getHeight(), tile.getNoData());
+				write(context, tile.getScene(), tile.getBand());
+				return;
+			}
+			if (!filename.toLowerCase().matches(".*tif.*"))
+				throw new IOException("unsupported format for input: " + filename); // fails the task, not the JVM
+			GdalMemFile file = GdalMemFile.open(RecordView.of(value).toArray());
+			try {
+				Dataset dataset = file.getDataset();
+				for (int b = 1; b <= dataset.getRasterCount(); b++) {
+					if (!bands.isEmpty() && !bands.contains(b))
+						continue;
+					stats.clear();
+					addBand(dataset.GetRasterBand(b));
+					write(context, filename, b);
+				}
+			} finally {
+				file.close();
+			}
+		}
+
+		// read block by block, as stored, so GDAL decodes each block once
+		void addBand(Band band) throws IOException {
+			int[] blockWidth = new int[1], blockHeight = new int[1];
+			band.GetBlockSize(blockWidth, blockHeight);
+			Double[] noData = new Double[1];
+			band.GetNoDataValue(noData);
+			if (buffer.length < blockWidth[0] * blockHeight[0])
+				buffer = new double[blockWidth[0] * blockHeight[0]];
+			for (int y = 0; y < band.getYSize(); y += blockHeight[0]) {
+				int height = Math.min(blockHeight[0], band.getYSize() - y);
+				for (int x = 0; x < band.getXSize(); x += blockWidth[0]) {
+					int width = Math.min(blockWidth[0], band.getXSize() - x);
+					if (band.ReadRaster(x, y, width, height, width, height, gdalconstConstants.GDT_Float64, buffer) != 0)
+						throw new IOException("cannot read block at " + x + "," + y + ": " + gdal.GetLastErrorMsg());
+					stats.add(buffer, width * height, noData[0]);
+				}
+			}
+		}
+
+		void write(Context context, String scene, int band) throws IOException, InterruptedException {
+			outputkey.set(String.format("%s@b%02d", group(groupBy, scene), band));
+			if (stats.getOutOfRange() > 0.5) { // e.g. a 16 bit band with the default 8 bit histogram
+				if (!warned)
+					logger.warn("{}% of the samples of {} are out of the histogram, set {} to their range",
+							Math.round(100 * stats.getOutOfRange()), outputkey, RasterStats.HISTOGRAM);
+				warned = true; // once per task, the counter has the total
+				context.getCounter("bin2seq", "bands mostly out of histogram").increment(1);
+			}
+			context.write(outputkey, stats);
+		}
+	}
+
+	// merges the statistics of a group and band, as combiner and reducer
+	public static class StatsReduce extends Reducer<Text, RasterStats, Text, RasterStats> {
+		public void reduce(Text key, Iterable<RasterStats> values, Context context) throws IOException,
+				InterruptedException {
+			RasterStats total = null;
+			for (RasterStats stats : values) {
+				if (total == null)
+					total = WritableUtils.clone(stats, context.getConfiguration()); // values are reused
+				else
+					total.merge(stats);
+			}
+			context.write(key, total);
+		}
+	}
+
+	/**
+	 * @param groupBy
+	 *            scene, pathrow, year, or a regex whose first group (or match) is the key
+	 * @return null for scene
+	 */
+	static Pattern groupPattern(String groupBy) {
+		switch (groupBy) {
+		case "scene":
+			return null;
+		case "pathrow": // e.g., p132r058_3dm19790123_z48_10.tif
+			return Pattern.compile("p\\d{3}r\\d{3}");
+		case "year": // of the first yyyymmdd in the name
+			return Pattern.compile("((?:19|20)\\d{2})[01]\\d[0-3]\\d");
+		default:
+			return Pattern.compile(groupBy);
+		}
+	}
+
+	// group of a scene, the scene itself if the pattern does not match it
+	static String group(Pattern groupBy, String scene) {
+		Matcher m = groupBy == null ? null : groupBy.matcher(scene);
+		if (m == null || !m.find())
+			return scene;
+		return m.groupCount() > 0 ? m.group(1) : m.group();
 	}
 
 	// A demo to retrieve CooridnateCorners of a GeoTiff
 	static String getCoordinatesodCorners(org.gdal.gdal.Dataset dataset) {
-		int width = dataset.GetRasterXSize();
-		int height = dataset.GetRasterYSize();
-		double[] gt = dataset.GetGeoTransform();
+		return getCoordinatesodCorners(dataset.GetGeoTransform(), dataset.GetRasterXSize(), dataset.GetRasterYSize());
+	}
+
+	static String getCoordinatesodCorners(double[] gt, int width, int height) {
+		double[] corners = getCorners(gt, width, height);
+		return corners[0] + "," + corners[1] + "," + corners[2] + "," + corners[3];
+	}
+
+	// (minx, maxx, miny, maxy), as indexed by SpatialIndex
+	static double[] getCorners(org.gdal.gdal.Dataset dataset) {
+		return getCorners(dataset.GetGeoTransform(), dataset.GetRasterXSize(), dataset.GetRasterYSize());
+	}
+
+	static double[] getCorners(double[] gt, int width, int height) {
 		double minx = gt[0];
 		double miny = gt[3] + width * gt[4] + height * gt[5];
 		double maxx = gt[0] + width * gt[1] + height * gt[2];
 		double maxy = gt[3];
 
-		return minx + "," + maxx + "," + miny + "," + maxy;
+		return new double[] { minx, maxx, miny, maxy };
 	}
 }
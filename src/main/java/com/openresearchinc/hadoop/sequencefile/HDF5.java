@@ -14,7 +14,6 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
@@ -78,7 +77,7 @@ public class HDF5 extends Configured implements Tool {
 
 		job.setMapperClass(Map.class); // mapper only no reducer for now
 
-		job.setInputFormatClass(SequenceFileInputFormat.class);
+		job.setInputFormatClass(CombinedSequenceFileInputFormat.class); // many small files per map task
 		job.setOutputFormatClass(TextOutputFormat.class);
 
 		FileInputFormat.setInputDirRecursive(job, true); //add data recursively  
@@ -101,7 +100,7 @@ public class HDF5 extends Configured implements Tool {
 			String filename = key.toString();
 			if (filename.contains("$folder$"))// TODO need better treatment.
 				return; // skip non-file dir info stored in sequencefile
-			byte[] bytes = value.getBytes();
+			byte[] bytes = RecordView.of(value).toArray(); // getBytes() is padded past getLength()
 			Text outputkey = new Text(key);
 			Text outputvalue = new Text();
 			List<String> attributes = new ArrayList<String>();
@@ -0,0 +1,117 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+//@formatter:off
+/**
+ * Checkpoint journal of an ingest into <out>/1.seq, 2.seq,..., so a restarted ingest skips the objects already
+ * packed and continues numbering where it left off instead of overwriting 1.seq.
+ *
+ * After N.seq is closed, <out>/_journal/N.journal lists the "<key>\t<etag>" of every source object completed since
+ * the previous entry, written to a temporary file and renamed so an entry is either complete or absent.
+ * No entry is written for a file holding only part of an object, which is re-ingested on restart; an object
+ * spanning a journaled file boundary (a large tar.gz) is therefore ingested at least once, not exactly once.
+ * A changed ETag means the object was replaced, so it is ingested again.
+ *
+ * The directory starts with "_", so FileInputFormat does not read it as input.
+ *
+ * @author heq
+ */
+// @formatter:on
+public class IngestJournal implements PackingWriter.Listener {
+	final static Logger logger = LoggerFactory.getLogger(IngestJournal.class);
+	final static String DIR = "_journal";
+	final static String EXT = ".journal";
+
+	final FileSystem fs;
+	final Path dir;
+	final Set<String> done = new HashSet<String>(); // key \t etag
+	final List<String> pending = new ArrayList<String>(); // completed, not yet in a closed file
+	int lastSeq = 0; // # of the last journaled sequence file
+
+	public IngestJournal(Configuration conf, Path outpath) throws IOException {
+		this.dir = new Path(outpath, DIR);
+		this.fs = dir.getFileSystem(conf);
+		load();
+	}
+
+	void load() throws IOException {
+		if (!fs.exists(dir))
+			return;
+		for (FileStatus status : fs.listStatus(dir)) {
+			String name = status.getPath().getName();
+			if (!name.endsWith(EXT))
+				continue; // e.g. a temporary file of an interrupted write
+			lastSeq = Math.max(lastSeq, Integer.parseInt(name.substring(0, name.length() - EXT.length())));
+			BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null)
+					done.add(line);
+			} finally {
+				reader.close();
+			}
+		}
+		if (lastSeq > 0)
+			logger.info("resuming after {}.seq, {} objects already ingested", lastSeq, done.size());
+	}
+
+	public boolean isDone(S3ObjectSummary summary) {
+		return done.contains(entry(summary.getKey(), summary.getETag()));
+	}
+
+	/**
+	 * Record that every file of an object has been appended; it is journaled when the current sequence file closes.
+	 */
+	public void completed(String key, String etag) {
+		pending.add(entry(key, etag));
+	}
+
+	/**
+	 * @return # of the first sequence file to write
+	 */
+	public int nextSeq() {
+		return lastSeq + 1;
+	}
+
+	@Override
+	public void closed(Path path, int seq) throws IOException {
+		if (pending.isEmpty())
+			return; // only part of an object, re-ingested if we stop before it completes
+		Path journal = new Path(dir, seq + EXT);
+		Path tmp = new Path(dir, "." + seq + EXT + ".tmp");
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(fs.create(tmp, true), "UTF-8"));
+		try {
+			for (String entry : pending)
+				writer.println(entry);
+		} finally {
+			writer.close();
+		}
+		if (!fs.rename(tmp, journal))
+			throw new IOException("cannot rename " + tmp + " to " + journal);
+		done.addAll(pending);
+		pending.clear();
+		lastSeq = seq;
+	}
+
+	static String entry(String key, String etag) {
+		return key + "\t" + etag;
+	}
+}
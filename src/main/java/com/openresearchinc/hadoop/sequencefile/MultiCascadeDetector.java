@@ -0,0 +1,153 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import static org.bytedeco.javacpp.opencv_core.cvRect;
+import static org.bytedeco.javacpp.opencv_core.cvResetImageROI;
+import static org.bytedeco.javacpp.opencv_core.cvSetImageROI;
+import static org.bytedeco.javacpp.opencv_imgproc.CV_BGR2GRAY;
+import static org.bytedeco.javacpp.opencv_imgproc.cvCvtColor;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bytedeco.javacpp.opencv_core.IplImage;
+
+//@formatter:off
+/**
+ * Detect faces and features within them (eyes, mouth, nose,..) in one pass over an image, e.g.,
+ *
+ * MultiCascadeDetector detector = new MultiCascadeDetector(DetectionContext.FACE, DetectionContext.EYE,
+ *         DetectionContext.MOUTH); // on the thread which detects
+ * for (MultiCascadeDetector.Face face : detector.detect(image)) {
+ *     face.getBox(), face.getFeatures(DetectionContext.EYE), ...
+ * }
+ *
+ * The image is converted to grayscale once (unless already gray) into a pooled image, and each secondary cascade
+ * searches only inside the ROI of each face instead of the whole image, so adding a feature costs a fraction of
+ * another detect() call. Boxes are in coordinates of the whole image, also when the faces are detected on a
+ * downscaled copy (see withProfile).
+ *
+ * cvHaarDetectObjects computes the integral image of its input (the face ROI for secondary cascades) itself and
+ * the C API offers no way to pass one in, so integral images are not shared between cascades.
+ *
+ * The native state is the DetectionContext of each cascade for the calling thread, so a detector must be used on
+ * the thread which created it.
+ *
+ * @author heq
+ */
+// @formatter:on
+public class MultiCascadeDetector {
+	final DetectionContext primary;
+	final List<DetectionContext> secondaries = new ArrayList<DetectionContext>();
+	DetectionProfile profile = DetectionProfile.DEFAULT;
+
+	/**
+	 * @param primary
+	 *            cascade of the objects to find, e.g. DetectionContext.FACE
+	 * @param secondaries
+	 *            cascades of features to find inside each object
+	 */
+	public MultiCascadeDetector(String primary, String... secondaries) {
+		this.primary = DetectionContext.forThread(primary);
+		for (String secondary : secondaries)
+			this.secondaries.add(DetectionContext.forThread(secondary));
+	}
+
+	/**
+	 * Detect the primary objects as profile says; features are searched in their ROIs at full resolution.
+	 */
+	public MultiCascadeDetector withProfile(DetectionProfile profile) {
+		this.profile = profile;
+		return this;
+	}
+
+	/**
+	 * @return e.g. "haarcascade_frontalface_default.xml+haarcascade_eye.xml maxdim=0,min=0,...", the same for detectors
+	 *         which detect the same
+	 */
+	public String getId() {
+		StringBuilder sb = new StringBuilder(primary.getCascade());
+		for (DetectionContext secondary : secondaries)
+			sb.append('+').append(secondary.getCascade());
+		return sb.append(' ').append(profile).toString();
+	}
+
+	public List<Face> detect(BufferedImage image) {
+		return detect(primary.convert(image));
+	}
+
+	public List<Face> detect(IplImage image) {
+		IplImage gray = image;
+		if (image.nChannels() != 1) {
+			gray = primary.image(image.width(), image.height(), 1);
+			cvCvtColor(image, gray, CV_BGR2GRAY);
+		}
+		List<Face> faces = new ArrayList<Face>();
+		for (int[] box : primary.detect(gray, profile)) {
+			Face face = new Face(box);
+			if (!secondaries.isEmpty()) {
+				cvSetImageROI(gray, cvRect(box[0], box[1], box[2] - box[0], box[3] - box[1]));
+				try {
+					for (DetectionContext secondary : secondaries) {
+						List<int[]> features = secondary.detect(gray);
+						for (int[] feature : features) { // ROI -> image coordinates
+							feature[0] += box[0];
+							feature[1] += box[1];
+							feature[2] += box[0];
+							feature[3] += box[1];
+						}
+						face.features.put(secondary.getCascade(), features);
+					}
+				} finally {
+					cvResetImageROI(gray);
+				}
+			}
+			faces.add(face);
+		}
+		return faces;
+	}
+
+	/**
+	 * An object found by the primary cascade, and the features found inside it by each secondary cascade.
+	 */
+	public static class Face {
+		final int[] box;
+		final Map<String, List<int[]>> features = new LinkedHashMap<String, List<int[]>>();
+
+		Face(int[] box) {
+			this.box = box;
+		}
+
+		/**
+		 * @return (x1, y1, x2, y2)
+		 */
+		public int[] getBox() {
+			return box;
+		}
+
+		/**
+		 * @return boxes found by the cascade, empty if none
+		 */
+		public List<int[]> getFeatures(String cascade) {
+			List<int[]> boxes = features.get(cascade);
+			return boxes == null ? new ArrayList<int[]>() : boxes;
+		}
+
+		/**
+		 * @return e.g. "[10, 10, 90, 90] haarcascade_eye.xml=[20, 30, 40, 45];[60, 30, 80, 45]"
+		 */
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder(Arrays.toString(box));
+			for (Map.Entry<String, List<int[]>> entry : features.entrySet()) {
+				sb.append(' ').append(entry.getKey()).append('=');
+				for (int i = 0; i < entry.getValue().size(); i++)
+					sb.append(i == 0 ? "" : ";").append(Arrays.toString(entry.getValue().get(i)));
+			}
+			return sb.toString();
+		}
+	}
+}
@@ -2,7 +2,9 @@ package com.openresearchinc.hadoop.sequencefile;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
@@ -11,26 +13,39 @@ import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import ucar.ma2.ArrayDouble;
-import ucar.ma2.ArrayFloat;
 import ucar.ma2.InvalidRangeException;
+import ucar.ma2.Range;
+import ucar.nc2.Dimension;
 import ucar.nc2.NetcdfFile;
 import ucar.nc2.Variable;
 
 //@formatter:off
 /**
  * 
- * A program to demo a fair complex search (min/max/average) percipitation over NetCDF file (*.nc) encoded 
- * as Hadoop SequenceFile stored on hdfs:// or s3n://
+ * A program to aggregate (min/max/mean/sum/count) a variable, e.g., percipitation, over a region and time range of
+ * NetCDF files (*.nc) encoded as Hadoop SequenceFile stored on hdfs:// or s3n://, see RegionQuery for the
+ * -D bin2seq.netcdf.* options
+ *
+ * With -series, extract the time series of every grid cell instead, for files of one time step (or a few) each,
+ * e.g., NEX-DCP30 monthly files, into SequenceFiles of TimeSeriesBlock:
+ *   key   = <variable>@r<block row>/c<block col>
+ *   value = the series of the cells of the block, each contiguous, in time order
+ * Each map output is one time step of a block of -D bin2seq.netcdf.block=<rows>,<cols> (default 32,32) cells,
+ * keyed by (block, time) (see SeriesKey); blocks are partitioned and grouped by block and sorted by time, so a
+ * reducer assembles a block's series without sorting. bin2seq.netcdf.variable, .bbox and .time select the
+ * variable, (time, lat, lon), and the cells and steps; all files must share the grid and the units of time.
+ * Files which cannot be read are counted ("unreadable NetCDF files") and fail the job once it is done, since their
+ * steps are missing from every series; a time step in two files fails the reducer of its blocks.
  *  
  * HDF5 Dependencies: 
  * hdf5, hdf5-devel and jhdf5 packages
@@ -44,6 +59,8 @@ import ucar.nc2.Variable;
 public class NetCDF extends Configured implements Tool {
 	final static Logger logger = LoggerFactory.getLogger(NetCDF.class);
 	static String hostname = "localhost";
+	public final static String BLOCK = "bin2seq.netcdf.block";
+	public final static String UNREADABLE = "unreadable NetCDF files"; // counter of -series
 
 	public static void main(String[] args) throws Exception {
 		int res = ToolRunner.run(new Configuration(), new NetCDF(), args);
@@ -53,37 +70,64 @@ public class NetCDF extends Configured implements Tool {
 	@Override
 	public final int run(final String[] args) throws Exception {
 		final String usage = "Usage: hadoop jar ./target/bin2seq*.jar com.openresearchinc.hadoop.sequencefile.NetCDF  "
-				+ "-libs $LIBJARS  <input-uri-h5-on-hdfs-or-s3> <output-uri-of-files-with-minmaxavgPercipitation> ";
+				+ "-libs $LIBJARS [-D bin2seq.netcdf.variable=pr -D bin2seq.netcdf.bbox=<minlon,maxlon,minlat,maxlat> "
+				+ "-D bin2seq.netcdf.time=<from,to> -D bin2seq.netcdf.aggregates=min,max,mean,sum,count] "
+				+ "[-series [-D bin2seq.netcdf.block=<rows,cols>]] "
+				+ "<input-uri-h5-on-hdfs-or-s3> <output-uri-of-files-with-aggregates> ";
+		List<String> argList = new ArrayList<String>(Arrays.asList(args));
+		boolean series = argList.remove("-series");
+		if (argList.size() != 2) {
+			System.err.println(usage);
+			return 2;
+		}
 
 		Job job = Job.getInstance(super.getConf());
 		job.setJarByClass(NetCDF.class);
 
-		job.setOutputKeyClass(Text.class); // same filename as input
-		job.setOutputValueClass(Text.class);// scanned attributes from *.h5
-
-		job.setMapperClass(Map.class); // mapper only no reducer for now
+		if (series) {
+			job.setMapOutputKeyClass(SeriesKey.class); // block and time
+			job.setMapOutputValueClass(TimeSeriesBlock.class);
+			job.setOutputKeyClass(Text.class); // variable and block
+			job.setOutputValueClass(TimeSeriesBlock.class);
+			OrderedMultithreadedMapper.configure(job, SeriesMap.class);
+			job.setPartitionerClass(SeriesKey.BlockPartitioner.class);
+			job.setGroupingComparatorClass(SeriesKey.BlockComparator.class); // sorted by block, then time
+			job.setReducerClass(SeriesReduce.class);
+			job.setOutputFormatClass(SequenceFileOutputFormat.class);
+		} else {
+			job.setOutputKeyClass(Text.class); // same filename as input
+			job.setOutputValueClass(Text.class);// scanned attributes from *.h5
+			OrderedMultithreadedMapper.configure(job, Map.class); // -D bin2seq.mapper.threads=N to use N cores
+			job.setOutputFormatClass(TextOutputFormat.class);
+		}
 
-		job.setInputFormatClass(SequenceFileInputFormat.class);
-		job.setOutputFormatClass(TextOutputFormat.class);
+		job.setInputFormatClass(CombinedSequenceFileInputFormat.class); // many small files per map task
 
 		FileInputFormat.setInputDirRecursive(job, true); //add data recursively
-		FileInputFormat.addInputPath(job, new Path(args[0]));
-		FileOutputFormat.setOutputPath(job, new Path(args[1]));
+		FileInputFormat.addInputPath(job, new Path(argList.get(0)));
+		FileOutputFormat.setOutputPath(job, new Path(argList.get(1)));
 
 		job.waitForCompletion(true);
+		long unreadable = series ? job.getCounters().findCounter("bin2seq", UNREADABLE).getValue() : 0;
+		if (unreadable > 0) {
+			logger.error("{} files could not be read, the series are missing their time steps", unreadable);
+			return 1;
+		}
 		return 0;
 	}
 
 	public static class Map extends Mapper<Text, BytesWritable, Text, Text> {
+		RegionQuery query;
 
 		protected void setup(Context context) throws IOException {
 			// log where mapper is executed
 			hostname = InetAddress.getLocalHost().getHostName();
+			query = RegionQuery.fromConf(context.getConfiguration());
 		}
 
 		public void map(Text key, BytesWritable value, Context context) throws IOException, InterruptedException {
 			String filename = key.toString();
-			byte[] bytes = value.getBytes();
+			byte[] bytes = RecordView.of(value).toArray(); // getBytes() is padded past getLength()
 			Text outputkey = new Text();
 			Text outputvalue = new Text();
 
@@ -95,65 +139,136 @@ public class NetCDF extends Configured implements Tool {
 			NetcdfFile netCDFfile = NetcdfFile.openInMemory("inmemory.h5", bytes);
 			outputkey.set(filename);
 			try {
-				outputvalue.set(getMinMaxAvgPrecipitationFromRegion(netCDFfile));
-			} catch (InvalidRangeException e) {
-				logger.warn("reading error for " + filename);
+				outputvalue.set(query.query(netCDFfile));
+				logger.debug("{} on {}: {}", filename, hostname, outputvalue);
+			} catch (IOException e) {
+				logger.warn("reading error for " + filename, e);
 				outputvalue.set(new Text());
+			} finally {
+				netCDFfile.close();
 			}
 			context.write(outputkey, outputvalue);
 		}
-	}
 
-	// A demo computing routine to get min/max/average precipitation from in a
-	// given region
-	static String getMinMaxAvgPrecipitationFromRegion(NetcdfFile nc) throws InvalidRangeException, IOException {
-		int SIZE = 100;
-		Variable time = nc.findVariable("time");
-		ArrayDouble.D1 days = (ArrayDouble.D1) time.read();
-		Variable lat = nc.findVariable("lat");
-		if (lat == null) {
-			logger.error("Cannot find Variable latitude(lat)");
-			System.exit(1);
+		protected void cleanup(Context context) {
+			logger.info("coordinate variables: {} read, {} from cache", CoordinateCache.get().getMisses(),
+					CoordinateCache.get().getHits());
 		}
-		ArrayDouble.D1 absolutelat = (ArrayDouble.D1) lat.read();
-		Variable lon = nc.findVariable("lon");
-		if (lon == null) {
-			logger.error("Cannot find Variable longitude(lon)");
-			System.exit(1);
+	}
+
+	// one time step of a block of cells per map output, see -series
+	public static class SeriesMap extends Mapper<Text, BytesWritable, SeriesKey, TimeSeriesBlock> {
+		RegionQuery query;
+		int blockRows;
+		int blockCols;
+
+		protected void setup(Context context) throws IOException {
+			hostname = InetAddress.getLocalHost().getHostName();
+			query = RegionQuery.fromConf(context.getConfiguration());
+			double[] block = RegionQuery.parse(context.getConfiguration().getTrimmedStrings(BLOCK, "32", "32"), 2,
+					BLOCK);
+			blockRows = (int) block[0];
+			blockCols = (int) block[1];
+			if (blockRows < 1 || blockCols < 1)
+				throw new IllegalArgumentException(BLOCK + " must be positive: " + context.getConfiguration().get(BLOCK));
 		}
-		ArrayDouble.D1 absolutelon = (ArrayDouble.D1) lon.read();
-		Variable pres = nc.findVariable("pr");
-		if (pres == null) {
-			logger.error("Cannot find Variable precipitation(pr)");
-			System.exit(1);
+
+		public void map(Text key, BytesWritable value, Context context) throws IOException, InterruptedException {
+			String filename = key.toString();
+			NetcdfFile netCDFfile = null;
+			try {
+				netCDFfile = NetcdfFile.openInMemory("inmemory.nc", RecordView.of(value).toArray());
+				int blocks = series(netCDFfile, context);
+				logger.debug("{} on {}: {} blocks", filename, hostname, blocks);
+			} catch (IOException e) { // the job fails once done, see run()
+				logger.warn("reading error for " + filename, e);
+				context.getCounter("bin2seq", UNREADABLE).increment(1);
+			} finally {
+				if (netCDFfile != null)
+					netCDFfile.close();
+			}
 		}
 
-		Random rand = new Random();
-		int orig_lat = rand.nextInt((int) lat.getSize());
-		orig_lat = Math.min(orig_lat, (int) (lat.getSize() - SIZE));
-		int orig_lon = rand.nextInt((int) lon.getSize());
-		orig_lon = Math.min(orig_lon, (int) (lon.getSize() - SIZE));
-
-		int[] origin = new int[] { 0, orig_lat, orig_lon };
-		int[] size = new int[] { 1, SIZE, SIZE };
-
-		ArrayFloat.D3 data3D = (ArrayFloat.D3) pres.read(origin, size);
-		double max = Double.NEGATIVE_INFINITY;
-		double min = Double.POSITIVE_INFINITY;
-		double sum = 0;
-		for (int j = 0; j < SIZE; j++) {
-			for (int k = 0; k < SIZE; k++) {
-				double current = data3D.get(0, j, k);
-				max = (current > max ? current : max);
-				min = (current < min ? current : min);
-				sum += current;
+		// @return # of blocks written
+		int series(NetcdfFile nc, Context context) throws IOException, InterruptedException {
+			Variable v = nc.findVariable(query.variable);
+			if (v == null)
+				throw new IOException("cannot find variable " + query.variable);
+			if (v.getRank() != 3)
+				throw new IOException(query.variable + " is not (time, lat, lon): " + v.getDimensionsString());
+			List<Dimension> dimensions = v.getDimensions();
+			List<Range> stepRanges = query.ranges(nc, dimensions.get(0));
+			List<Range> rowRanges = query.ranges(nc, dimensions.get(1));
+			List<Range> colRanges = query.ranges(nc, dimensions.get(2)); // two if the box wraps around the grid
+			if (stepRanges.isEmpty() || rowRanges.isEmpty() || colRanges.isEmpty())
+				return 0; // outside the query
+			Range steps = stepRanges.get(0), rows = rowRanges.get(0);
+			Variable time = nc.findVariable(dimensions.get(0).getName());
+			double[] times = time == null ? null : query.cache.coordinates(time).getValues(); // once per grid
+			RegionQuery.Aggregate packing = new RegionQuery.Aggregate();
+			packing.setPacking(v);
+
+			int blocks = 0;
+			SeriesKey outputkey = new SeriesKey();
+			for (int step = steps.first(); step <= steps.last(); step++) {
+				double t = times == null ? step : times[step];
+				// a band of block rows at a time, so a step of a large grid is never read whole
+				for (int row = rows.first(); row <= rows.last();) {
+					int lastRow = Math.min(rows.last(), (row / blockRows + 1) * blockRows - 1);
+					int height = lastRow - row + 1;
+					for (Range cols : colRanges) {
+						float[] band;
+						try {
+							band = (float[]) v.read(
+									Arrays.asList(RegionQuery.rangeOf(steps.getName(), step, step),
+											RegionQuery.rangeOf(rows.getName(), row, lastRow), cols))
+									.get1DJavaArray(float.class); // converted if not float
+						} catch (InvalidRangeException e) {
+							throw new IOException("cannot read rows " + row + ":" + lastRow + " of " + query.variable, e);
+						}
+						for (int col = cols.first(); col <= cols.last();) {
+							int lastCol = Math.min(cols.last(), (col / blockCols + 1) * blockCols - 1);
+							int width = lastCol - col + 1;
+							float[] samples = new float[height * width];
+							for (int r = 0; r < height; r++)
+								for (int c = 0; c < width; c++)
+									samples[r * width + c] = unpack(packing,
+											band[r * cols.length() + col - cols.first() + c]);
+							outputkey.set(row / blockRows, col / blockCols, t);
+							context.write(outputkey, new TimeSeriesBlock(row, col, height, width, t, samples));
+							blocks++;
+							col = lastCol + 1;
+						}
+					}
+					row = lastRow + 1;
+				}
 			}
+			return blocks;
 		}
 
-		logger.debug(hostname + "," + days + "," + absolutelat.get(orig_lat) + "," + absolutelon.get(orig_lon) + ","
-				+ SIZE + ":" + min + "," + max + "," + sum / (SIZE * SIZE));
+		static float unpack(RegionQuery.Aggregate packing, float sample) {
+			if (sample != sample || sample == (float) packing.fillValue || sample == (float) packing.missingValue)
+				return Float.NaN;
+			return (float) (sample * packing.scale + packing.offset);
+		}
+	}
+
+	// assembles the time steps of a block, received in time order, into its series
+	public static class SeriesReduce extends Reducer<SeriesKey, TimeSeriesBlock, Text, TimeSeriesBlock> {
+		String variable;
 
-		return days + "," + absolutelat.get(orig_lat) + "," + absolutelon.get(orig_lon) + "," + SIZE + ":" + min + ","
-				+ max + "," + (double) sum / (SIZE * SIZE);
+		protected void setup(Context context) {
+			variable = RegionQuery.fromConf(context.getConfiguration()).variable;
+		}
+
+		public void reduce(SeriesKey key, Iterable<TimeSeriesBlock> values, Context context) throws IOException,
+				InterruptedException {
+			List<TimeSeriesBlock> steps = new ArrayList<TimeSeriesBlock>();
+			for (TimeSeriesBlock value : values) // the value is reused, its samples are read into a new array
+				steps.add(new TimeSeriesBlock(value.firstRow, value.firstCol, value.rows, value.cols, value.times[0],
+						value.samples));
+			context.write(new Text(TimeSeriesBlock.blockKey(variable, key.getRow(), key.getCol())),
+					TimeSeriesBlock.assemble(steps));
+		}
 	}
 }
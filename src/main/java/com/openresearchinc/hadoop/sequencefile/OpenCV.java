@@ -1,23 +1,18 @@
 package com.openresearchinc.hadoop.sequencefile;
 
-import static org.bytedeco.javacpp.helper.opencv_objdetect.cvHaarDetectObjects;
-import static org.bytedeco.javacpp.opencv_core.cvClearMemStorage;
-import static org.bytedeco.javacpp.opencv_core.cvGetSeqElem;
-import static org.bytedeco.javacpp.opencv_core.cvLoad;
-import static org.bytedeco.javacpp.opencv_objdetect.CV_HAAR_DO_CANNY_PRUNING;
-
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
-import javax.imageio.stream.ImageInputStream;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
@@ -27,16 +22,11 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
-import org.bytedeco.javacpp.opencv_core.CvMemStorage;
-import org.bytedeco.javacpp.opencv_core.CvRect;
-import org.bytedeco.javacpp.opencv_core.CvSeq;
 import org.bytedeco.javacpp.opencv_core.IplImage;
-import org.bytedeco.javacpp.opencv_objdetect.CvHaarClassifierCascade;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -58,8 +48,10 @@ import org.slf4j.LoggerFactory;
 public class OpenCV extends Configured implements Tool {
 	final static Logger logger = LoggerFactory.getLogger(OpenCV.class);
 	static String hostname = "localhost";
-	static CvHaarClassifierCascade faceClassifier;
-	static CvHaarClassifierCascade eyeClassifier;
+	// comma separated cascades to detect inside each face, e.g., haarcascade_eye.xml,haarcascade_mcs_mouth.xml
+	public final static String FEATURES = "bin2seq.opencv.features";
+	// directory of the cascade files run() distributes, s3n://ori-haarcascade/ by default
+	public final static String CASCADES = "bin2seq.opencv.cascades";
 
 	public static void main(String[] args) throws Exception {
 		String usage = "Usage: hadoop jar ./target/bin2seq*.jar com.openresearchinc.hadoop.sequencefile.OpenCV  "
@@ -79,48 +71,58 @@ public class OpenCV extends Configured implements Tool {
 		// array of box containing face/eye/..
 		job.setOutputValueClass(Text.class);
 
-		job.setMapperClass(Map.class);
+		OrderedMultithreadedMapper.configure(job, Map.class); // -D bin2seq.mapper.threads=N to use N cores
 		// job.setReducerClass(Reduce.class);
 
-		job.setInputFormatClass(SequenceFileInputFormat.class);
+		job.setInputFormatClass(CombinedSequenceFileInputFormat.class); // many small files per map task
 		job.setOutputFormatClass(TextOutputFormat.class);
 
 		FileInputFormat.setInputDirRecursive(job, true); //add data recursively
 		FileInputFormat.addInputPath(job, new Path(args[0]));
 		FileOutputFormat.setOutputPath(job, new Path(args[1]));
 
-		job.addCacheFile(new URI(
-				"s3n://ori-haarcascade/haarcascade_frontalface_default.xml#haarcascade_frontalface_default.xml"));
-		job.addCacheFile(new URI("s3n://ori-haarcascade/haarcascade_eye.xml#haarcascade_eye.xml"));
+		addCascadeFiles(job);
 		job.waitForCompletion(true);
+		String cache = job.getConfiguration().get(DetectionCache.DIR);
+		if (cache != null) // what the tasks added, into the one MapFile the next run looks up in
+			DetectionCache.compact(job.getConfiguration(), new Path(cache));
 		return 0;
 
 	}
 
+	/**
+	 * Distribute the face and eye cascades, and the cascade of each of bin2seq.opencv.features, from
+	 * bin2seq.opencv.cascades to the working directory of the tasks.
+	 */
+	public static void addCascadeFiles(Job job) throws URISyntaxException {
+		String dir = job.getConfiguration().get(CASCADES, "s3n://ori-haarcascade/");
+		Set<String> cascades = new LinkedHashSet<String>();
+		cascades.add(DetectionContext.FACE);
+		cascades.add(DetectionContext.EYE);
+		cascades.addAll(Arrays.asList(job.getConfiguration().getTrimmedStrings(FEATURES)));
+		for (String cascade : cascades)
+			job.addCacheFile(new URI(dir + (dir.endsWith("/") ? "" : "/") + cascade + "#" + cascade));
+	}
+
 	public static class Map extends Mapper<Text, BytesWritable, Text, Text> {
+		final static AtomicInteger caches = new AtomicInteger();
+		MultiCascadeDetector detector; // of the thread running this instance, see OrderedMultithreadedMapper
+		final PPMDecoder ppmDecoder = new PPMDecoder();
+		IplImage ppmImage = null; // reused for images of the same size
+		DetectionCache cache = null; // if -D bin2seq.opencv.cache=<dir>
+		String detectorId;
 
-		// cache classifiers when M/R starts
 		protected void setup(Context context) throws IOException {
 			// log where mapper is executed
 			hostname = InetAddress.getLocalHost().getHostName();
-
-			URI[] fileURIs = context.getCacheFiles();
-			for (URI uri : fileURIs) {
-				String localPath = uri.getPath();
-				if (localPath.contains("haarcascade_frontalface_default.xml")) {
-					faceClassifier = new CvHaarClassifierCascade(cvLoad(new File(
-							"./haarcascade_frontalface_default.xml").getAbsolutePath()));
-				} else if (localPath.contains("haarcascade_eye.xml")) {
-					eyeClassifier = new CvHaarClassifierCascade(
-							cvLoad(new File("./haarcascade_eye.xml").getAbsolutePath()));
-				} else {
-					// TODO
-				}
-			}
-			if (faceClassifier == null && eyeClassifier == null) {
-				logger.error("no detect classifier is defined");
-				System.exit(1);
-			}
+			// the cascade is in the working directory if distributed by OpenCV.run, otherwise in the source tree
+			detector = new MultiCascadeDetector(DetectionContext.FACE, context.getConfiguration().getTrimmedStrings(
+					FEATURES)).withProfile(DetectionProfile.fromConf(context.getConfiguration()));
+			detectorId = detector.getId();
+			String dir = context.getConfiguration().get(DetectionCache.DIR);
+			if (dir != null) // one MapFile per task and mapper thread
+				cache = new DetectionCache(context.getConfiguration(), new Path(dir), context.getTaskAttemptID()
+						.getTaskID() + "_" + caches.getAndIncrement());
 		}
 
 		public void map(Text key, BytesWritable value, Context context) throws IOException, InterruptedException {
@@ -129,16 +131,34 @@ public class OpenCV extends Configured implements Tool {
 				return; // skip non-file dir info stored in sequencefile
 			Text outputkey = new Text(key);
 			Text outputvalue = new Text();
-			List<int[]> faces = new ArrayList<int[]>();
-			byte[] bytes = value.getBytes();
+			List<MultiCascadeDetector.Face> faces = new ArrayList<MultiCascadeDetector.Face>();
+			RecordView view = RecordView.of(value); // getBytes() is padded past getLength()
+
+			String cacheKey = null;
+			if (cache != null) {
+				cacheKey = DetectionCache.key(view, detectorId);
+				String cached = cache.get(cacheKey);
+				if (cached != null) { // detected before, skip decoding
+					context.getCounter(DetectionCache.class.getSimpleName(), "hits").increment(1);
+					for (String line : cached.isEmpty() ? new String[0] : cached.split("\n")) {
+						outputkey.set(filename);
+						outputvalue.set(line);
+						context.write(outputkey, outputvalue);
+					}
+					return;
+				}
+				context.getCounter(DetectionCache.class.getSimpleName(), "misses").increment(1);
+			}
 
 			if (filename.toLowerCase().matches(".*png.*|.*jpg.*|.*gif.*")) {
-				BufferedImage rawimage = ImageIO.read(new ByteArrayInputStream(bytes));
-				faces = detectFace(rawimage);
+				BufferedImage rawimage = ImageIO.read(view.asInputStream());
+				faces = detector.detect(rawimage);
 			} else if (filename.toLowerCase().matches(".*ppm.*")) {
-				ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes));
-				BufferedImage rawimage = PPMImageReader.read(iis);
-				faces = detectFace(rawimage);
+				IplImage decoded = ppmDecoder.decode(view, ppmImage, true); // gray, as the detector uses
+				if (ppmImage != null && decoded != ppmImage)
+					ppmImage.release(); // of another size
+				ppmImage = decoded;
+				faces = detector.detect(ppmImage);
 			} else {
 				logger.error("unsupported image formats for input: " + filename);
 				System.exit(1);
@@ -146,51 +166,33 @@ public class OpenCV extends Configured implements Tool {
 			if (logger.isDebugEnabled())
 				logger.debug("Detect " + faces.size() + " in " + filename + " on host " + hostname);
 
-			for (int[] box : faces) {
+			StringBuilder lines = new StringBuilder();
+			for (MultiCascadeDetector.Face face : faces) {
 				outputkey.set(filename);
-				outputvalue.set(Arrays.toString(box));
+				outputvalue.set(face.toString()); // box, then features if any
 				context.write(outputkey, outputvalue);
+				lines.append(lines.length() == 0 ? "" : "\n").append(outputvalue);
 			}
+			if (cache != null)
+				cache.put(cacheKey, lines.toString());
+		}
+
+		protected void cleanup(Context context) throws IOException {
+			if (ppmImage != null)
+				ppmImage.release();
+			DetectionContext.closeThread();
+			if (cache != null)
+				cache.close(); // publishes the results detected by this instance
 		}
 	}
 
 	// detect face from image and return box coordinates for detected face
 	public static List<int[]> detectFace(BufferedImage rawimage) {
-		// if invoke by M/R, pick up faceClassifier from distributed cache
-		// if invoke by test class, pick up from source tree
-		if (faceClassifier == null)
-			faceClassifier = new CvHaarClassifierCascade(cvLoad(new File(OpenCV.class.getResource(
-					"/haarcascade_frontalface_default.xml").getFile()).getAbsolutePath()));
-		return detect(rawimage, faceClassifier);
+		return DetectionContext.forThread(DetectionContext.FACE).detect(rawimage);
 	}
 
 	// detect face from image and return box coordinates for detected eyes
 	public static List<int[]> detectEye(BufferedImage rawimage) {
-		// if invoke by M/R, pick up faceClassifier from distributed cache
-		// if invoke by test class, pick up from source tree
-		if (eyeClassifier == null)
-			eyeClassifier = new CvHaarClassifierCascade(cvLoad(new File(OpenCV.class
-					.getResource("/haarcascade_eye.xml").getFile()).getAbsolutePath()));
-		return detect(rawimage, eyeClassifier);
-	}
-
-	static List<int[]> detect(BufferedImage rawimage, CvHaarClassifierCascade classifier) {
-		// store x-y of the box of detected face
-		List<int[]> facebox = new ArrayList<int[]>();
-		IplImage origImg = IplImage.createFrom(rawimage);
-		CvMemStorage storage = CvMemStorage.create();
-		CvSeq target = cvHaarDetectObjects(origImg, classifier, storage, 1.1, 3, CV_HAAR_DO_CANNY_PRUNING);
-		cvClearMemStorage(storage);
-
-		for (int i = 0; i < target.total(); i++) {
-			CvRect r = new CvRect(cvGetSeqElem(target, i));
-			facebox.add(new int[] { r.x(), r.y(), r.x() + r.width(), r.y() + r.height() });
-			if (logger.isDebugEnabled())
-				logger.debug("x=" + r.x() + " y=" + r.y() + " x+w=" + r.x() + r.width() + " y+h=" + r.y() + r.height());
-		}
-		if (logger.isDebugEnabled())
-			logger.debug("Num of detected objects=" + target.total());
-		return facebox;
+		return DetectionContext.forThread(DetectionContext.EYE).detect(rawimage);
 	}
-
 }
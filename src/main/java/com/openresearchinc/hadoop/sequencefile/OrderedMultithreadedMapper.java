@@ -0,0 +1,284 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MapContext;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+//@formatter:off
+/**
+ * Run a CPU-bound mapper (decoding, detection) on several cores of one map task, e.g.,
+ *
+ * OrderedMultithreadedMapper.configure(job, Map.class); // in Tool.run, instead of job.setMapperClass(Map.class)
+ * hadoop jar ... -D bin2seq.mapper.threads=4 ...
+ *
+ * With bin2seq.mapper.threads > 1 (default 1, i.e. a plain mapper) each thread runs its own instance of the mapper,
+ * with its own setup/cleanup, so instance fields (classifier, GDAL dataset, NetcdfFile) are never shared between
+ * threads. Unlike Hadoop's MultithreadedMapper,
+ * - the outputs of the records are written in input order, from the task thread, to the single output collector,
+ * - at most 2 x threads records are read ahead, so heap use is bounded when records are large images.
+ *
+ * Keys and values (input and output) must be Writables: they are cloned since readers and mappers reuse them.
+ * Outputs written in cleanup follow all the others. The first exception thrown by a mapper fails the task.
+ *
+ * @author heq
+ */
+// @formatter:on
+public class OrderedMultithreadedMapper<K1, V1, K2, V2> extends Mapper<K1, V1, K2, V2> {
+	final static Logger logger = LoggerFactory.getLogger(OrderedMultithreadedMapper.class);
+	public final static String THREADS = "bin2seq.mapper.threads";
+	public final static String MAPPER_CLASS = "bin2seq.mapper.class";
+
+	/**
+	 * Use mapper, on bin2seq.mapper.threads threads if set above 1.
+	 */
+	@SuppressWarnings("rawtypes")
+	public static void configure(Job job, Class<? extends Mapper> mapper) {
+		if (job.getConfiguration().getInt(THREADS, 1) > 1) {
+			job.setMapperClass(OrderedMultithreadedMapper.class);
+			job.getConfiguration().setClass(MAPPER_CLASS, mapper, Mapper.class);
+		} else {
+			job.setMapperClass(mapper);
+		}
+	}
+
+	Context outer;
+	Configuration conf;
+	final BlockingQueue<Work> queue = new LinkedBlockingQueue<Work>(); // bounded by pending
+	final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+	@Override
+	public void run(Context context) throws IOException, InterruptedException {
+		outer = context;
+		conf = context.getConfiguration();
+		int threads = conf.getInt(THREADS, 1);
+		@SuppressWarnings("unchecked")
+		Class<Mapper<K1, V1, K2, V2>> mapperClass = (Class<Mapper<K1, V1, K2, V2>>) conf.getClass(MAPPER_CLASS,
+				null, Mapper.class);
+		if (mapperClass == null)
+			throw new IllegalArgumentException(MAPPER_CLASS + " is not set, see configure()");
+		logger.info("running {} on {} threads", mapperClass.getName(), threads);
+
+		List<Runner> runners = new ArrayList<Runner>();
+		for (int i = 0; i < threads; i++) {
+			Runner runner = new Runner(ReflectionUtils.newInstance(mapperClass, conf));
+			runner.setName("mapper-" + i);
+			runner.setDaemon(true);
+			runner.start();
+			runners.add(runner);
+		}
+		Deque<Work> pending = new ArrayDeque<Work>();
+		try {
+			while (context.nextKeyValue()) {
+				Work work = new Work(copy(context.getCurrentKey()), copy(context.getCurrentValue()));
+				pending.add(work);
+				queue.put(work);
+				if (pending.size() >= 2 * threads)
+					emit(pending.remove());
+			}
+			while (!pending.isEmpty())
+				emit(pending.remove());
+			for (int i = 0; i < threads; i++)
+				queue.put(END);
+			for (Runner runner : runners) {
+				while (runner.isAlive()) {
+					runner.join(1000);
+					checkFailure();
+				}
+				checkFailure();
+				for (Output output : runner.cleanupOutputs)
+					context.write(output.key, output.value);
+			}
+		} finally {
+			for (Runner runner : runners)
+				runner.interrupt(); // no-op unless the task failed
+		}
+	}
+
+	// wait for the outputs of the oldest record and write them
+	void emit(Work work) throws IOException, InterruptedException {
+		while (!work.done.await(1, TimeUnit.SECONDS))
+			checkFailure(); // a runner died, work may never be done
+		checkFailure();
+		for (Output output : work.outputs)
+			outer.write(output.key, output.value);
+	}
+
+	void checkFailure() throws IOException, InterruptedException {
+		Throwable e = failure.get();
+		if (e == null)
+			return;
+		if (e instanceof IOException)
+			throw (IOException) e;
+		if (e instanceof InterruptedException)
+			throw (InterruptedException) e;
+		if (e instanceof RuntimeException)
+			throw (RuntimeException) e;
+		if (e instanceof Error)
+			throw (Error) e;
+		throw new IOException(e);
+	}
+
+	@SuppressWarnings("unchecked")
+	<T> T copy(T writable) {
+		if (!(writable instanceof Writable))
+			throw new IllegalArgumentException(writable.getClass().getName() + " is not a Writable");
+		return (T) WritableUtils.clone((Writable) writable, conf);
+	}
+
+	class Output {
+		final K2 key;
+		final V2 value;
+
+		Output(K2 key, V2 value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	class Work {
+		final K1 key;
+		final V1 value;
+		final List<Output> outputs = new ArrayList<Output>();
+		final CountDownLatch done = new CountDownLatch(1);
+
+		Work(K1 key, V1 value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	final Work END = new Work(null, null); // one per runner after the last record
+
+	// runs one mapper instance over the records taken from the queue
+	class Runner extends Thread {
+		final Mapper<K1, V1, K2, V2> mapper;
+		final List<Output> cleanupOutputs = new ArrayList<Output>();
+		Work current = null;
+
+		Runner(Mapper<K1, V1, K2, V2> mapper) {
+			this.mapper = mapper;
+		}
+
+		@Override
+		public void run() {
+			try {
+				MapContext<K1, V1, K2, V2> context = new MapContextImpl<K1, V1, K2, V2>(conf,
+						outer.getTaskAttemptID(), new QueueReader(), new OutputBuffer(), outer.getOutputCommitter(),
+						new Reporter(), outer.getInputSplit());
+				mapper.run(new WrappedMapper<K1, V1, K2, V2>().getMapContext(context));
+			} catch (Throwable e) {
+				if (failure.compareAndSet(null, e))
+					logger.error("{} failed", getName(), e);
+			} finally {
+				if (current != null)
+					current.done.countDown(); // emit() sees the failure
+			}
+		}
+
+		class QueueReader extends RecordReader<K1, V1> {
+			@Override
+			public void initialize(InputSplit split, TaskAttemptContext context) {
+			}
+
+			@Override
+			public boolean nextKeyValue() throws InterruptedException {
+				if (current != null)
+					current.done.countDown();
+				current = queue.take();
+				if (current == END) {
+					current = null;
+					return false;
+				}
+				return true;
+			}
+
+			@Override
+			public K1 getCurrentKey() {
+				return current.key;
+			}
+
+			@Override
+			public V1 getCurrentValue() {
+				return current.value;
+			}
+
+			@Override
+			public float getProgress() throws IOException, InterruptedException {
+				return outer.getProgress();
+			}
+
+			@Override
+			public void close() {
+			}
+		}
+
+		class OutputBuffer extends RecordWriter<K2, V2> {
+			@Override
+			public void write(K2 key, V2 value) {
+				Output output = new Output(copy(key), copy(value));
+				if (current != null)
+					current.outputs.add(output);
+				else
+					cleanupOutputs.add(output);
+			}
+
+			@Override
+			public void close(TaskAttemptContext context) {
+			}
+		}
+	}
+
+	class Reporter extends StatusReporter {
+		@Override
+		public Counter getCounter(Enum<?> name) {
+			return outer.getCounter(name);
+		}
+
+		@Override
+		public Counter getCounter(String group, String name) {
+			return outer.getCounter(group, name);
+		}
+
+		@Override
+		public void progress() {
+			outer.progress();
+		}
+
+		@Override
+		public float getProgress() {
+			return outer.getProgress();
+		}
+
+		@Override
+		public void setStatus(String status) {
+			synchronized (outer) {
+				outer.setStatus(status);
+			}
+		}
+	}
+}
@@ -0,0 +1,397 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import static org.bytedeco.javacpp.opencv_core.IPL_DEPTH_8U;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.io.IOException;
+
+import javax.imageio.stream.ImageInputStream;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.opencv_core.IplImage;
+
+//@formatter:off
+/**
+ * Decode binary PBM/PGM/PPM (P4/P5/P6) images, e.g. Colorferet, straight into the backing array of a BufferedImage:
+ *
+ * PPMDecoder decoder = new PPMDecoder(); // one per thread
+ * BufferedImage image = null;
+ * for (...) {
+ *     image = decoder.decode(RecordView.of(value), image); // reuses image if it has the same size and type
+ *     ...
+ * }
+ *
+ * The header is parsed for every image and kept in the decoder, so a decoder is not thread-safe but decoders are
+ * independent. The raster is copied in one pass (System.arraycopy when no conversion is needed) instead of
+ * a setRGB per pixel, into
+ *   P4           TYPE_BYTE_BINARY
+ *   P5, 8 bits   TYPE_BYTE_GRAY
+ *   P5, 16 bits  TYPE_USHORT_GRAY
+ *   P6           TYPE_3BYTE_BGR (16 bits scaled to 8), which IplImage.createFrom copies without unpacking
+ * Samples are scaled to the full range when maxval is not 255 (65535 for 16 bits gray); 16 bit samples are
+ * big-endian, as the Netpbm spec says.
+ *
+ * For OpenCV, decode(view, iplImage, gray) writes an 8 bit IplImage instead, skipping the BufferedImage and
+ * IplImage.createFrom: rows are converted (BGR order, grayscale, maxval scaling) in one pass into a row buffer and
+ * copied into the native image honouring its widthStep; a P5 raster needing no conversion is copied as is. With
+ * gray, P6 is converted as cvCvtColor(CV_RGB2GRAY) does, which cvHaarDetectObjects would do anyway. The decoder
+ * never releases an IplImage: the caller releases the images it no longer reuses, e.g.,
+ *
+ * IplImage decoded = decoder.decode(view, image, true);
+ * if (image != null && decoded != image)
+ *     image.release();
+ * image = decoded;
+ *
+ * @author heq
+ */
+// @formatter:on
+public class PPMDecoder {
+	public final static int PBM_RAW = 4;
+	public final static int PGM_RAW = 5;
+	public final static int PPM_RAW = 6;
+
+	int format = -1;
+	int width = -1;
+	int height = -1;
+	int maxval = 0;
+	byte[] raster = new byte[0]; // read from a stream, reused
+	byte[] row = new byte[0]; // converted row of an IplImage, reused
+	final byte[] scale = new byte[256]; // sample -> 0..255 for maxval
+	int scaleFor = -1;
+
+	public int getFormat() {
+		return format;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getMaxval() {
+		return maxval;
+	}
+
+	/**
+	 * Parse the header of the next image, leaving in at the first byte of the raster.
+	 */
+	public void readHeader(ImageInputStream in) throws IOException {
+		parseHeader(new StreamSource(in));
+	}
+
+	/**
+	 * @return position of the raster in bytes
+	 */
+	public int readHeader(byte[] bytes, int length) throws IOException {
+		ByteSource source = new ByteSource(bytes, length);
+		parseHeader(source);
+		return source.pos;
+	}
+
+	// header of a raster given without one, see the PPMImageReader helpers
+	void setHeader(int format, int width, int height, int maxval) {
+		this.format = format;
+		this.width = width;
+		this.height = height;
+		this.maxval = maxval;
+	}
+
+	/**
+	 * @return bytes of the raster of the current header
+	 */
+	public int getRasterLength() {
+		switch (format) {
+		case PBM_RAW:
+			return ((width + 7) >> 3) * height;
+		case PGM_RAW:
+			return width * height * (maxval < 256 ? 1 : 2);
+		default:
+			return width * height * 3 * (maxval < 256 ? 1 : 2);
+		}
+	}
+
+	/**
+	 * @return type of the BufferedImage the current header decodes to
+	 */
+	public int getImageType() {
+		switch (format) {
+		case PBM_RAW:
+			return BufferedImage.TYPE_BYTE_BINARY;
+		case PGM_RAW:
+			return maxval < 256 ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_USHORT_GRAY;
+		default:
+			return BufferedImage.TYPE_3BYTE_BGR;
+		}
+	}
+
+	public BufferedImage decode(RecordView view, BufferedImage reuse) throws IOException {
+		return decode(view.bytes, view.length, reuse);
+	}
+
+	/**
+	 * @param reuse
+	 *            image of an earlier decode, or null
+	 * @return reuse, or a new image if reuse is null or has another size or type
+	 */
+	public BufferedImage decode(byte[] bytes, int length, BufferedImage reuse) throws IOException {
+		int offset = readHeader(bytes, length);
+		if (length - offset < getRasterLength())
+			throw new IOException("truncated raster: " + (length - offset) + " of " + getRasterLength() + " bytes");
+		return fill(bytes, offset, reuse);
+	}
+
+	public BufferedImage decode(ImageInputStream in, BufferedImage reuse) throws IOException {
+		readHeader(in);
+		int length = getRasterLength();
+		if (raster.length < length)
+			raster = new byte[length];
+		in.readFully(raster, 0, length);
+		return fill(raster, 0, reuse);
+	}
+
+	BufferedImage fill(byte[] src, int offset, BufferedImage reuse) {
+		BufferedImage image = reuse;
+		if (image == null || image.getWidth() != width || image.getHeight() != height
+				|| image.getType() != getImageType())
+			image = new BufferedImage(width, height, getImageType());
+		int pixels = width * height;
+		if (format == PGM_RAW && maxval >= 256) {
+			short[] dst = ((DataBufferUShort) image.getRaster().getDataBuffer()).getData();
+			for (int i = 0, k = offset; i < pixels; i++, k += 2) {
+				int sample = ((src[k] & 0xFF) << 8) | (src[k + 1] & 0xFF);
+				dst[i] = (short) (maxval == 65535 ? sample : Math.min(65535, (sample * 65535L + (maxval >> 1))
+						/ maxval));
+			}
+			return image;
+		}
+		byte[] dst = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		switch (format) {
+		case PBM_RAW: // same packing, but 1 is black in PBM and white in TYPE_BYTE_BINARY
+			for (int i = 0, n = getRasterLength(); i < n; i++)
+				dst[i] = (byte) ~src[offset + i];
+			break;
+		case PGM_RAW:
+			if (maxval == 255) {
+				System.arraycopy(src, offset, dst, 0, pixels);
+			} else {
+				byte[] lut = scale();
+				for (int i = 0; i < pixels; i++)
+					dst[i] = lut[src[offset + i] & 0xFF];
+			}
+			break;
+		default: // RGB -> BGR
+			if (maxval == 255) {
+				for (int i = 0, k = offset, n = 3 * pixels; i < n; i += 3, k += 3) {
+					dst[i] = src[k + 2];
+					dst[i + 1] = src[k + 1];
+					dst[i + 2] = src[k];
+				}
+			} else if (maxval < 256) {
+				byte[] lut = scale();
+				for (int i = 0, k = offset, n = 3 * pixels; i < n; i += 3, k += 3) {
+					dst[i] = lut[src[k + 2] & 0xFF];
+					dst[i + 1] = lut[src[k + 1] & 0xFF];
+					dst[i + 2] = lut[src[k] & 0xFF];
+				}
+			} else {
+				for (int i = 0, k = offset, n = 3 * pixels; i < n; i += 3, k += 6) {
+					dst[i] = scale16(src, k + 4);
+					dst[i + 1] = scale16(src, k + 2);
+					dst[i + 2] = scale16(src, k);
+				}
+			}
+		}
+		return image;
+	}
+
+	public IplImage decode(RecordView view, IplImage reuse, boolean gray) throws IOException {
+		return decode(view.bytes, view.length, reuse, gray);
+	}
+
+	/**
+	 * @param reuse
+	 *            image of an earlier decode, or null; never released here, so if another image is returned (reuse has
+	 *            another size or # of channels) the caller still owns reuse and releases it
+	 * @param gray
+	 *            decode P6 to 1 channel instead of 3 (BGR)
+	 * @return reuse, or a new 8 bit image with 1 channel (P4, P5, gray P6) or 3
+	 */
+	public IplImage decode(byte[] bytes, int length, IplImage reuse, boolean gray) throws IOException {
+		int offset = readHeader(bytes, length);
+		if (length - offset < getRasterLength())
+			throw new IOException("truncated raster: " + (length - offset) + " of " + getRasterLength() + " bytes");
+		int channels = format == PPM_RAW && !gray ? 3 : 1;
+		IplImage image = reuse;
+		if (image == null || image.width() != width || image.height() != height || image.nChannels() != channels
+				|| image.depth() != IPL_DEPTH_8U)
+			image = IplImage.create(width, height, IPL_DEPTH_8U, channels);
+		int step = image.widthStep();
+		int rowLength = width * channels;
+		if (format == PGM_RAW && maxval == 255 && step == rowLength) { // no conversion, no padding
+			image.imageData().put(bytes, offset, rowLength * height);
+			return image;
+		}
+		if (row.length < rowLength)
+			row = new byte[rowLength];
+		int srcRowLength = getRasterLength() / height;
+		BytePointer data = image.imageData();
+		for (int y = 0; y < height; y++) {
+			convertRow(bytes, offset + y * srcRowLength, channels);
+			data.position(y * step).put(row, 0, rowLength);
+		}
+		return image;
+	}
+
+	// one row of the raster at k into row, as 8 bit gray or BGR
+	void convertRow(byte[] src, int k, int channels) {
+		switch (format) {
+		case PBM_RAW:
+			for (int x = 0; x < width; x++)
+				row[x] = (src[k + (x >> 3)] & (0x80 >> (x & 7))) == 0 ? (byte) 255 : 0;
+			break;
+		case PGM_RAW:
+			if (maxval == 255) {
+				System.arraycopy(src, k, row, 0, width);
+			} else if (maxval < 256) {
+				byte[] lut = scale();
+				for (int x = 0; x < width; x++)
+					row[x] = lut[src[k + x] & 0xFF];
+			} else {
+				for (int x = 0; x < width; x++)
+					row[x] = scale16(src, k + 2 * x);
+			}
+			break;
+		default:
+			int bytes = maxval < 256 ? 1 : 2; // per sample
+			byte[] lut = maxval < 256 ? scale() : null;
+			for (int x = 0, i = 0; x < width; x++, k += 3 * bytes) {
+				int r, g, b;
+				if (bytes == 1) {
+					r = lut[src[k] & 0xFF] & 0xFF;
+					g = lut[src[k + 1] & 0xFF] & 0xFF;
+					b = lut[src[k + 2] & 0xFF] & 0xFF;
+				} else {
+					r = scale16(src, k) & 0xFF;
+					g = scale16(src, k + 2) & 0xFF;
+					b = scale16(src, k + 4) & 0xFF;
+				}
+				if (channels == 1) { // fixed point of 0.299 R + 0.587 G + 0.114 B, as OpenCV
+					row[i++] = (byte) ((r * 4899 + g * 9617 + b * 1868 + 8192) >> 14);
+				} else {
+					row[i++] = (byte) b;
+					row[i++] = (byte) g;
+					row[i++] = (byte) r;
+				}
+			}
+		}
+	}
+
+	byte[] scale() {
+		if (scaleFor != maxval) {
+			for (int v = 0; v < 256; v++)
+				scale[v] = (byte) Math.min(255, (v * 255 + (maxval >> 1)) / maxval);
+			scaleFor = maxval;
+		}
+		return scale;
+	}
+
+	byte scale16(byte[] src, int k) {
+		int sample = ((src[k] & 0xFF) << 8) | (src[k + 1] & 0xFF);
+		return (byte) Math.min(255, (sample * 255 + (maxval >> 1)) / maxval);
+	}
+
+	void parseHeader(Source in) throws IOException {
+		if (in.read() != 'P')
+			throw new IOException("invalid PPM file, missing 'P'");
+		format = in.read() - '0';
+		switch (format) {
+		case PBM_RAW:
+			width = readInt(in);
+			height = readInt(in);
+			maxval = 1;
+			break;
+		case PGM_RAW:
+		case PPM_RAW:
+			width = readInt(in);
+			height = readInt(in);
+			maxval = readInt(in);
+			if (maxval < 1 || maxval > 65535)
+				throw new IOException("invalid maxval " + maxval);
+			break;
+		case 1:
+		case 2:
+		case 3:
+			throw new IOException("unsupported ASCII PPM file format P" + format);
+		default:
+			throw new IOException("invalid PPM file, unknown format P" + format);
+		}
+		if (width <= 0 || height <= 0)
+			throw new IOException("invalid size " + width + "x" + height);
+	}
+
+	// the first byte after whitespace and comments, -1 at the end
+	static int readNonSpace(Source in) throws IOException {
+		int c;
+		do {
+			c = in.read();
+			if (c == '#') { // comment : read until end of line
+				do {
+					c = in.read();
+				} while (c != '\n' && c != '\r' && c != -1);
+			}
+		} while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+		return c;
+	}
+
+	// an ascii integer after whitespace and comments, and the (single whitespace) byte following it
+	static int readInt(Source in) throws IOException {
+		int c = readNonSpace(in);
+		if (c < '0' || c > '9')
+			throw new IOException("invalid PPM header, expected ascii integer");
+		int i = 0;
+		do {
+			i = i * 10 + c - '0';
+			c = in.read();
+		} while ('0' <= c && c <= '9');
+		return i;
+	}
+
+	// bytes of a header, -1 at the end
+	static abstract class Source {
+		abstract int read() throws IOException;
+	}
+
+	static class StreamSource extends Source {
+		final ImageInputStream in;
+
+		StreamSource(ImageInputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		int read() throws IOException {
+			return in.read();
+		}
+	}
+
+	static class ByteSource extends Source {
+		final byte[] bytes;
+		final int length;
+		int pos = 0; // of the next byte
+
+		ByteSource(byte[] bytes, int length) {
+			this.bytes = bytes;
+			this.length = length;
+		}
+
+		@Override
+		int read() {
+			return pos < length ? bytes[pos++] & 0xFF : -1;
+		}
+	}
+}
@@ -2,7 +2,6 @@ package com.openresearchinc.hadoop.sequencefile;
 //modified from http://thorntonzone.com/manuals/Compression/Fax,%20IBM%20MMR/MMSC/mmsc/uk/co/mmscomputing/imageio/ppm/PPMImageReader.java
 
 import java.awt.image.BufferedImage;
-import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -16,52 +15,49 @@ import javax.imageio.stream.ImageInputStream;
 
 public class PPMImageReader extends ImageReader {
 
-	static boolean gotHeader = false;
-
-	private static final int PBM_ASCII = 1;
-	private static final int PGM_ASCII = 2;
-	private static final int PPM_ASCII = 3;
-	private static final int PBM_RAW = 4;
-	private static final int PGM_RAW = 5;
-	private static final int PPM_RAW = 6;
-
-	private static int format = -1; // 1 .. 6
-	private static int width = -1; // Width
-	private static int height = -1; // Height
-	private static int maxcolval = 0; // max colour value
+	// header of the current input, see PPMDecoder
+	private final PPMDecoder decoder = new PPMDecoder();
+	private boolean gotHeader = false;
 
 	protected PPMImageReader(ImageReaderSpi originatingProvider) {
 		super(originatingProvider);
 	}
 
+	public void setInput(Object input, boolean seekForwardOnly, boolean ignoreMetadata) {
+		super.setInput(input, seekForwardOnly, ignoreMetadata);
+		gotHeader = false;
+	}
+
 	public BufferedImage read(int imageIndex, ImageReadParam param)
 			throws IOException {
 		checkIndex(imageIndex);
-		return read((ImageInputStream) getInput());
+		ImageInputStream in = (ImageInputStream) getInput();
+		if (!gotHeader)
+			return decoder.decode(in, null);
+		int length = decoder.getRasterLength();
+		byte[] raster = new byte[length];
+		in.readFully(raster);
+		return decoder.fill(raster, 0, null);
 	}
 
 	public int getHeight(int imageIndex) throws IOException {
 		checkIndex(imageIndex);
-		readHeader((ImageInputStream) getInput());
-		return height;
+		readHeader();
+		return decoder.getHeight();
 	}
 
 	public int getWidth(int imageIndex) throws IOException {
 		checkIndex(imageIndex);
-		readHeader((ImageInputStream) getInput());
-		return width;
+		readHeader();
+		return decoder.getWidth();
 	}
 
 	public Iterator getImageTypes(int imageIndex) throws IOException {
 		checkIndex(imageIndex);
-		readHeader((ImageInputStream) getInput());
+		readHeader();
 
-		ImageTypeSpecifier imageType = null;
 		java.util.List l = new ArrayList();
-		imageType = ImageTypeSpecifier
-				.createFromBufferedImageType(BufferedImage.TYPE_INT_RGB);
-
-		l.add(imageType);
+		l.add(ImageTypeSpecifier.createFromBufferedImageType(decoder.getImageType()));
 		return l.iterator();
 	}
 
@@ -85,228 +81,64 @@ public class PPMImageReader extends ImageReader {
 		}
 	}
 
-	// ascii parser routines
-
-	public static char readAsciiChar(ImageInputStream in) throws IOException {
-		char c;
-		do {
-			c = (char) in.read();
-			if (c == '#') { // comment : read until end of line
-				do {
-					c = (char) in.read();
-				} while ((c != '\n') && (c != '\r'));
-			}
-		} while ((c == ' ') || (c == '\t') || (c == '\n') || (c == '\r')); // white
-																			// space
-		return c;
-	}
-
-	public static int readAsciiInt(ImageInputStream in) throws IOException {
-		char c = readAsciiChar(in);
-		if ((c < '0') || ('9' < c)) {
-			throw new IOException(PPMImageReader.class.getName()
-					+ ".readAsciiInt: Expected ascii integer.");
-		}
-		int i = 0;
-		do {
-			i = i * 10 + c - '0';
-			c = (char) in.read();
-		} while (('0' <= c) && (c <= '9'));
-		return i;
-	}
-
-	public static void readHeader(ImageInputStream in) throws IOException {
+	private void readHeader() throws IOException {
 		if (gotHeader) {
 			return;
 		}
+		decoder.readHeader((ImageInputStream) getInput());
 		gotHeader = true;
-
-		byte[] pn = new byte[2];
-		in.readFully(pn);
-		if (pn[0] != (byte) 'P') {
-			throw new IOException(PPMImageReader.class.getName()
-					+ ".readHeader: Invalid PPM File. Missing 'P'.");
-		}
-		format = pn[1] - '0';
-		switch (format) {
-		case PBM_ASCII:
-		case PGM_ASCII:
-		case PPM_ASCII:
-			throw new IOException(PPMImageReader.class.getName()
-					+ ".readHeader: Unsupported ASCII PPM File Format : P"
-					+ pn[1]);
-		case PBM_RAW:
-			width = readAsciiInt(in);
-			height = readAsciiInt(in);
-			maxcolval = 1;
-			break;
-		case PGM_RAW:
-			width = readAsciiInt(in);
-			height = readAsciiInt(in);
-			maxcolval = readAsciiInt(in);
-			break;
-		case PPM_RAW:
-			width = readAsciiInt(in);
-			height = readAsciiInt(in);
-			maxcolval = readAsciiInt(in);
-			break;
-		default:
-			throw new IOException("Invalid PPM File. Unknown Format [" + format
-					+ "]");
-		}
 	}
 
+	/**
+	 * Decode one image; thread-safe. To decode many, reuse a PPMDecoder and its image instead.
+	 */
 	static public BufferedImage read(ImageInputStream in) throws IOException {
-		readHeader(in);
-
-		byte[] data;
-		switch (format) {
-		case PBM_RAW:
-			data = new byte[(width * height) >> 3];
-			in.readFully(data);
-			return pbm(width, height, data);
-		case PGM_RAW:
-			data = new byte[width * height];
-			in.readFully(data);
-			return pgm(width, height, maxcolval, data);
-		case PPM_RAW:
-			data = new byte[width * height * 3];
-			in.readFully(data);
-			return ppm(width, height, maxcolval, data);
-		default:
-			throw new IOException(PPMImageReader.class.getName()
-					+ ".read: Unsupported File Format.");
-		}
+		return new PPMDecoder().decode(in, null);
 	}
 
-	static public BufferedImage ppm(int width, int height, int maxcolval,
-			byte[] data) {
-		if (maxcolval < 256) {
-			BufferedImage image = new BufferedImage(width, height,
-					BufferedImage.TYPE_INT_RGB);
-			int r, g, b, k = 0, pixel;
-			if (maxcolval == 255) { // don't scale
-				for (int y = 0; y < height; y++) {
-					for (int x = 0; (x < width) && ((k + 3) < data.length); x++) {
-						r = data[k++] & 0xFF;
-						g = data[k++] & 0xFF;
-						b = data[k++] & 0xFF;
-						pixel = 0xFF000000 + (r << 16) + (g << 8) + b;
-						image.setRGB(x, y, pixel);
-					}
-				}
-			} else {
-				for (int y = 0; y < height; y++) {
-					for (int x = 0; (x < width) && ((k + 3) < data.length); x++) {
-						r = data[k++] & 0xFF;
-						r = ((r * 255) + (maxcolval >> 1)) / maxcolval; // scale
-																		// to
-																		// 0..255
-																		// range
-						g = data[k++] & 0xFF;
-						g = ((g * 255) + (maxcolval >> 1)) / maxcolval;
-						b = data[k++] & 0xFF;
-						b = ((b * 255) + (maxcolval >> 1)) / maxcolval;
-						pixel = 0xFF000000 + (r << 16) + (g << 8) + b;
-						image.setRGB(x, y, pixel);
-					}
-				}
-			}
-			return image;
-		} else {
+	// helpers kept for existing callers, all decoding through PPMDecoder: P6 gives TYPE_3BYTE_BGR (it gave
+	// TYPE_INT_RGB), and 16 bit samples are read big-endian as the Netpbm spec says (they were read little-endian)
 
-			// no 48 bit colour type available in java ?
+	/**
+	 * @return the first byte after whitespace and comments
+	 */
+	public static char readAsciiChar(ImageInputStream in) throws IOException {
+		return (char) PPMDecoder.readNonSpace(new PPMDecoder.StreamSource(in));
+	}
+
+	public static int readAsciiInt(ImageInputStream in) throws IOException {
+		return PPMDecoder.readInt(new PPMDecoder.StreamSource(in));
+	}
 
-			BufferedImage image = new BufferedImage(width, height,
-					BufferedImage.TYPE_INT_RGB);
-			int r, g, b, k = 0, pixel;
+	/**
+	 * Parse a header, leaving in at the first byte of the raster.
+	 * 
+	 * @return the header (format, width, height, maxval), which is no longer kept in static fields
+	 */
+	public static PPMDecoder readHeader(ImageInputStream in) throws IOException {
+		PPMDecoder decoder = new PPMDecoder();
+		decoder.readHeader(in);
+		return decoder;
+	}
 
-			for (int y = 0; y < height; y++) {
-				for (int x = 0; (x < width) && ((k + 6) < data.length); x++) {
-					r = (data[k++] & 0xFF) | ((data[k++] & 0xFF) << 8);
-					r = ((r * 255) + (maxcolval >> 1)) / maxcolval; // scale to
-																	// 0..255
-																	// range
-					g = (data[k++] & 0xFF) | ((data[k++] & 0xFF) << 8);
-					g = ((g * 255) + (maxcolval >> 1)) / maxcolval;
-					b = (data[k++] & 0xFF) | ((data[k++] & 0xFF) << 8);
-					b = ((b * 255) + (maxcolval >> 1)) / maxcolval;
-					pixel = 0xFF000000 + (r << 16) + (g << 8) + b;
-					image.setRGB(x, y, pixel);
-				}
-			}
-			return image;
-		}
+	static public BufferedImage ppm(int width, int height, int maxcolval, byte[] data) {
+		return fill(PPMDecoder.PPM_RAW, width, height, maxcolval, data);
 	}
 
-	static public BufferedImage pgm(int width, int height, int maxcolval,
-			byte[] data) {
-		if (maxcolval < 256) {
-			BufferedImage image = new BufferedImage(width, height,
-					BufferedImage.TYPE_BYTE_GRAY);
-			WritableRaster raster = image.getRaster();
-			int g, k = 0, pixel;
-			if (maxcolval == 255) { // don't scale
-				for (int y = 0; y < height; y++) {
-					for (int x = 0; (x < width) && (k < data.length); x++) {
-						raster.setSample(x, y, 0, data[k++] & 0xFF);
-					}
-				}
-			} else {
-				for (int y = 0; y < height; y++) {
-					for (int x = 0; (x < width) && (k < data.length); x++) {
-						pixel = (((data[k++] & 0xFF) * 255) + (maxcolval >> 1))
-								/ maxcolval; // scale to 0..255 range
-						raster.setSample(x, y, 0, pixel);
-					}
-				}
-			}
-			return image;
-		} else { // 16 bit gray scale image
-			BufferedImage image = new BufferedImage(width, height,
-					BufferedImage.TYPE_USHORT_GRAY);
-			WritableRaster raster = image.getRaster();
-			int g, k = 0, sample, pixel;
-			if (maxcolval == 65535) { // don't scale
-				for (int y = 0; y < height; y++) {
-					for (int x = 0; (x < width) && (k < data.length - 1); x++) {
-						sample = (data[k++] & 0xFF) | ((data[k++] & 0xFF) << 8);
-						raster.setSample(x, y, 0, sample);
-					}
-				}
-			} else {
-				for (int y = 0; y < height; y++) {
-					for (int x = 0; (x < width) && (k < data.length - 1); x++) {
-						sample = (data[k++] & 0xFF) | ((data[k++] & 0xFF) << 8);
-						pixel = ((sample * 65535) + (maxcolval >> 1))
-								/ maxcolval; // scale to 0..65535 range
-						raster.setSample(x, y, 0, pixel);
-					}
-				}
-			}
-			return image;
-		}
+	static public BufferedImage pgm(int width, int height, int maxcolval, byte[] data) {
+		return fill(PPMDecoder.PGM_RAW, width, height, maxcolval, data);
 	}
 
 	static public BufferedImage pbm(int width, int height, byte[] data) {
-		BufferedImage image = new BufferedImage(width, height,
-				BufferedImage.TYPE_BYTE_BINARY);
-		WritableRaster raster = image.getRaster();
-		int k = 0;
-		int bytesPerLine = ((width % 8) == 0) ? width >> 3 : (width + 8) >> 3;
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; (x < bytesPerLine) && (k < data.length); x++) {
-				byte b = data[k++];
-				for (int bit = 0; bit < 8; bit++) {
-					int xx = (x << 3) + (7 - bit);
-					if (xx < width) { // last byte in line may have padding bits
-						int pixel = ((b & (1 << bit)) == 0) ? 0xFFFFFFFF
-								: 0xFF000000; // inversion
-						raster.setSample(xx, y, 0, pixel);
-					} // else ignore padding bits
-				}
-			}
-		}
-		return image;
+		return fill(PPMDecoder.PBM_RAW, width, height, 1, data);
+	}
+
+	static BufferedImage fill(int format, int width, int height, int maxval, byte[] data) {
+		PPMDecoder decoder = new PPMDecoder();
+		decoder.setHeader(format, width, height, maxval);
+		if (data.length < decoder.getRasterLength())
+			throw new IllegalArgumentException("truncated raster: " + data.length + " of "
+					+ decoder.getRasterLength() + " bytes");
+		return decoder.fill(data, 0, null);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,355 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+//@formatter:off
+/**
+ * Pack many files as "balls" into sequence files ("boxes") <dir>/<prefix>1.seq, <prefix>2.seq,... each of which
+ * fits in one HDFS block, so each mapper reads only local data.
+ *
+ * The writer rolls to a new file *before* a record would cross the block boundary:
+ * 1. the block size is looked up once (Util.getHDFSBlockSize),
+ * 2. bytes buffered by a BLOCK compressed writer but not yet flushed are tracked, since writer.getLength() lags them,
+ * 3. the compressed size of each record is predicted from a running compression ratio, learnt whenever buffered
+ *    bytes reach the file.
+ * A single record larger than a block ends up alone in its own file. So does a chunked file (see ChunkedFile)
+ * larger than a block, since its chunks are kept together in one file.
+ * A sidecar index (see SequenceFileIndex) is written as each file is closed.
+ *
+ * @author heq
+ */
+// @formatter:on
+public class PackingWriter implements Closeable {
+	final static Logger logger = LoggerFactory.getLogger(PackingWriter.class);
+	final static double bufferZoneFactor = 0.9;// margin for misprediction, not to overflow HDFS block size
+	final static double smoothing = 0.3; // weight of the latest observation in the running compression ratio
+
+	final Configuration conf;
+	final Path dir;
+	final String prefix;
+	final CompressionCodec codec;
+	final long capacity;
+	int chunkSize = 0;
+	boolean tiling = false;
+	boolean spatial = false;
+	final List<Listener> listeners = new ArrayList<Listener>();
+	DedupIndex dedup; // null if not deduplicating
+
+	StreamingWriter writer;
+	Path path; // current file
+	int seq; // # of current file
+	int records = 0; // # of records in current file
+	long flushed = 0; // writer.getLength() when last changed
+	long pending = 0; // uncompressed bytes buffered in the writer but not yet in the file
+	final SortedMap<String, Long> offsets = new TreeMap<String, Long>(); // sidecar index of current file
+	final Map<String, double[]> boxes = new HashMap<String, double[]>(); // spatial index of current file
+	double ratio = 1.0; // running compressed/uncompressed ratio, assume incompressible until observed
+	final ChunkedFile.Sink recordSink = new ChunkedFile.Sink() {
+		public void append(String key, InputStream in, long length) throws IOException {
+			appendRecord(key, in, length);
+		}
+	};
+
+	/**
+	 * @param conf
+	 * @param dir
+	 *            output directory
+	 * @param prefix
+	 *            file name prefix, e.g., "" for 1.seq, 2.seq,...
+	 * @param seq
+	 *            # of the first file
+	 * @param codec
+	 *            BLOCK compression codec, or null for none
+	 */
+	public PackingWriter(Configuration conf, Path dir, String prefix, int seq, CompressionCodec codec) {
+		this(conf, dir, prefix, seq, codec, Util.getHDFSBlockSize());
+	}
+
+	public PackingWriter(Configuration conf, Path dir, String prefix, int seq, CompressionCodec codec, long blockSize) {
+		this.conf = conf;
+		this.dir = dir;
+		this.prefix = prefix;
+		this.seq = seq;
+		this.codec = codec;
+		this.capacity = (long) (blockSize * bufferZoneFactor);
+	}
+
+	/**
+	 * Files larger than chunkSize are stored as chunk records (see ChunkedFile), 0 to disable.
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Store GeoTIFFs (*.tif, *.tiff) of objects as tile records (see RasterTile) instead of one record per file.
+	 */
+	public void setTiling(boolean tiling) {
+		this.tiling = tiling;
+	}
+
+	/**
+	 * Write a spatial index (see SpatialIndex) of the GeoTIFFs (*.tif, *.tiff) of objects, or of their tiles.
+	 */
+	public void setSpatialIndex(boolean spatial) {
+		this.spatial = spatial;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Write files whose content was packed before as alias records (see DedupIndex).
+	 */
+	public void setDedup(DedupIndex dedup) {
+		this.dedup = dedup;
+		addListener(dedup);
+	}
+
+	/**
+	 * Append a file, rolling to a new sequence file first if it would not fit in the current one. The stream is not
+	 * closed.
+	 *
+	 * @param filename
+	 * @param in
+	 * @param length
+	 *            # of bytes, or -1 if unknown (measured through a SpillBuffer first)
+	 * @throws IOException
+	 */
+	public void append(String filename, InputStream in, long length) throws IOException {
+		ChunkedFile.checkFilename(filename);
+		SpillBuffer spill = null;
+		MessageDigest digest = null;
+		try {
+			if (dedup != null) { // hashed while spilling, the content is only written if it is new
+				digest = DedupIndex.newDigest();
+				in = new DigestInputStream(in, digest);
+			}
+			if (length < 0 || digest != null) { // size is needed up front to decide whether to roll
+				spill = SpillBuffer.copyOf(in, SpillBuffer.threshold(conf));
+				in = spill.getInputStream();
+				length = spill.length();
+			}
+			if (digest != null) {
+				String sha1 = new String(Hex.encodeHex(digest.digest()));
+				DedupIndex.Alias first = dedup.lookup(sha1);
+				if (first != null) {
+					byte[] alias = first.toBytes();
+					appendRecord(filename, new ByteArrayInputStream(alias), alias.length);
+					dedup.duplicate(length);
+				} else {
+					dedup.add(sha1, appendFile(filename, in, length).getName(), filename);
+				}
+			} else {
+				appendFile(filename, in, length);
+			}
+		} finally {
+			if (spill != null) {
+				IOUtils.closeQuietly(in);
+				spill.release();
+			}
+		}
+	}
+
+	/**
+	 * Unpack one (possibly compressed or tar.gz) object and append the files matching ext. The stream is not closed.
+	 * 
+	 * @param filename
+	 *            object key
+	 * @param objectContent
+	 * @param size
+	 *            object size
+	 * @param ext
+	 *            e.g., ".tif"
+	 * @return # of files appended
+	 * @throws IOException
+	 */
+	public int appendObject(String filename, InputStream objectContent, long size, String ext) throws IOException {
+		int files = 0;
+		if (filename.endsWith(".tar.gz")) {
+			GZIPInputStream gzipInputStream = new GZIPInputStream(objectContent);
+			TarArchiveInputStream tarArchiveInputStream = new TarArchiveInputStream(gzipInputStream);
+			TarArchiveEntry tarArchiveEntry;
+			while ((tarArchiveEntry = tarArchiveInputStream.getNextTarEntry()) != null) {
+				if (!tarArchiveEntry.isDirectory()// not a dir and match ext
+						&& tarArchiveEntry.getName().toLowerCase().contains(ext.toLowerCase())) {
+					logger.debug("tar filename={}", tarArchiveEntry.getName());
+					String filenameInTar = StringUtils.substringBeforeLast(filename, "/")
+							+ tarArchiveEntry.getName().replaceAll("^\\.", "");
+					appendEntry(filenameInTar, tarArchiveInputStream, tarArchiveEntry.getSize());
+					files++;
+				}
+			}
+		} else if (filename.toLowerCase().contains(ext.toLowerCase())) {
+			if (CompressUtil.isCompressed(filename)) {
+				appendEntry(filename, CompressUtil.decompress(filename, objectContent), -1); // unknown until decompressed
+				files++;
+			} else if (filename.toLowerCase().endsWith(ext.toLowerCase())) {// TODO other compression we care?
+				appendEntry(filename, objectContent, size);
+				files++;
+			} //skip if it is other meta data like *.<ext>.md5
+		}
+		return files;
+	}
+
+	// append a file of an object, as tile records if it is a GeoTIFF and tiling, with its box if indexing
+	void appendEntry(String filename, InputStream in, long length) throws IOException {
+		String name = CompressUtil.isCompressed(filename) ? StringUtils.substringBeforeLast(filename, ".") : filename;
+		if (!(tiling || spatial) || !name.toLowerCase().matches(".*\\.tiff?$")) {
+			append(filename, in, length);
+		} else if (tiling) {
+			int tiles = RasterTile.append(this, filename, IOUtils.toByteArray(in)); // GDAL reads from memory
+			logger.debug("{}: {} tiles", filename, tiles);
+		} else {
+			byte[] tiff = IOUtils.toByteArray(in);
+			GdalMemFile file = GdalMemFile.open(tiff);
+			double[] box;
+			try {
+				box = GeoTiff.getCorners(file.getDataset());
+			} finally {
+				file.close();
+			}
+			append(filename, new ByteArrayInputStream(tiff), tiff.length);
+			addBox(filename, box);
+		}
+	}
+
+	/**
+	 * Add the box of a file just appended to the current sequence file to its spatial index; ignored unless
+	 * setSpatialIndex(true).
+	 *
+	 * @param box
+	 *            minx, maxx, miny, maxy
+	 */
+	public void addBox(String filename, double[] box) {
+		if (spatial)
+			boxes.put(filename, box);
+	}
+
+	// append a file as one record, or as chunk records all in the same sequence file; returns that file
+	Path appendFile(String filename, InputStream in, long length) throws IOException {
+		if (chunkSize > 0 && length > chunkSize) {
+			int total = ChunkedFile.chunks(length, chunkSize);
+			String lastKey = ChunkedFile.chunkKey(filename, total - 1, total);
+			makeRoom(total * recordSize(lastKey, 0) + length); // a reader follows chunks within one file only
+			ChunkedFile.appendChunks(recordSink, filename, in, length, chunkSize);
+		} else {
+			appendRecord(filename, in, length);
+		}
+		return path;
+	}
+
+	// bytes of a record as SequenceFile writes it: record length, key length, key (as Text), value (as BytesWritable)
+	static long recordSize(String key, long length) throws IOException {
+		int keyBytes = Text.encode(key).limit(); // UTF-8, not key.length() UTF-16 chars
+		return 4 + 4 + WritableUtils.getVIntSize(keyBytes) + keyBytes + 4 + length;
+	}
+
+	// roll first if the records would not fit in the current file
+	void makeRoom(long size) throws IOException {
+		if (writer != null && records > 0 && predictLength(size) > capacity)
+			roll();
+		if (writer == null)
+			open();
+	}
+
+	void appendRecord(String key, InputStream in, long length) throws IOException {
+		long recordSize = recordSize(key, length);
+		if (!ChunkedFile.isChunkKey(key))
+			makeRoom(recordSize); // chunks: made room for all of them before the first
+
+		ChunkedFile chunk = ChunkedFile.parse(key);
+		if (chunk.index == 0) // BLOCK: start of the block being buffered, see SequenceFileIndex
+			offsets.put(chunk.filename, writer.getLength());
+		writer.append(key, in, length);
+		records++;
+
+		pending += recordSize;
+		long current = writer.getLength();
+		if (current > flushed) // buffered bytes (incl. this record) reached the file
+			learn(current);
+	}
+
+	// update the running ratio from the buffered bytes which just reached the file
+	void learn(long current) {
+		if (writer.getCompressionType() != CompressionType.NONE && pending > 0) {
+			double observed = (current - flushed) / (double) pending;
+			ratio = (1 - smoothing) * ratio + smoothing * observed;
+		}
+		flushed = current;
+		pending = 0;
+	}
+
+	// predicted file length once the record is appended and all buffered bytes are flushed
+	long predictLength(long recordSize) {
+		if (writer.getCompressionType() == CompressionType.NONE)
+			return flushed + recordSize;
+		return flushed + (long) ((pending + recordSize) * ratio);
+	}
+
+	void open() throws IOException {
+		path = new Path(dir, prefix + seq + ".seq");
+		logger.debug("packing into {}", path);
+		writer = new StreamingWriter(conf, path, codec == null ? CompressionType.NONE : CompressionType.BLOCK, codec);
+		records = 0;
+		offsets.clear();
+		boxes.clear();
+		flushed = writer.getLength(); // header
+		pending = 0;
+	}
+
+	void roll() throws IOException {
+		writer.close();
+		// the last block is flushed on close, learn from it too since it carries over to the next file
+		learn(path.getFileSystem(conf).getFileStatus(path).getLen());
+		logger.info("closed {}: {} records, {} bytes, compression ratio={}", path, records, flushed,
+				String.format("%.2f", ratio));
+		SequenceFileIndex.write(conf, path, offsets);
+		if (!boxes.isEmpty())
+			SpatialIndex.write(conf, path, boxes, offsets.size());
+		for (Listener listener : listeners)
+			listener.closed(path, seq);
+		writer = null;
+		seq++;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (writer != null)
+			roll();
+	}
+
+	/**
+	 * Notified after each sequence file is closed, i.e., once everything appended so far is durable.
+	 */
+	public interface Listener {
+		void closed(Path path, int seq) throws IOException;
+	}
+}
@@ -0,0 +1,371 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+//@formatter:off
+/**
+ * Pipelined version of Util.copyEncodeFilesFromS3ToHDFSS3:
+ * 1. a pool of fetchers downloads S3 objects concurrently,
+ * 2. decoders unpack bz2/gz/zip/tar.gz into individual files,
+ * 3. the calling thread is the single writer appending to the rolling SequenceFile.Writer (1.seq, 2.seq,...).
+ *
+ * Decoders follow the files of each object with an end-of-object marker, so the writer can journal completed
+ * objects (see IngestJournal) and a restarted ingest skips them.
+ *
+ * Stages are connected by bounded queues, so at most a few objects per thread are in flight at any time, and
+ * each of them is held in heap only up to bin2seq.spill.threshold (the rest spills to local disk).
+ *
+ * $hadoop jar <path>/bin2seq.jar com.openresearchinc.hadoop.sequencefile.Util -in s3://... -ext tif -out hdfs:///... -codec snappy -threads 16
+ *
+ * @author heq
+ */
+// @formatter:on
+public class ParallelIngest {
+	final static Logger logger = LoggerFactory.getLogger(ParallelIngest.class);
+
+	final static Fetched END_OF_OBJECTS = new Fetched(null, null);
+	final static Decoded END_OF_FILES = new Decoded(null, null, null);
+	final static long SHUTDOWN_MILLIS = 60 * 1000; // for interrupted stages to finish once the writer failed
+
+	final int fetchers;
+	final int decoders;
+	final BlockingQueue<Fetched> fetchedQueue;
+	final BlockingQueue<Decoded> decodedQueue;
+	final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+	final int threshold = SpillBuffer.threshold(Util.conf); // heap per object in flight, the rest spills to disk
+
+	long objects = 0; // # of files appended to sequence files
+	long bytes = 0; // # of uncompressed bytes appended to sequence files
+
+	public ParallelIngest(int threads) {
+		this.fetchers = Math.max(1, threads);
+		this.decoders = Math.max(1, Math.min(fetchers, Runtime.getRuntime().availableProcessors()));
+		// bounded queues: memory is capped at ~2 objects per thread in flight
+		this.fetchedQueue = new ArrayBlockingQueue<Fetched>(fetchers * 2);
+		this.decodedQueue = new ArrayBlockingQueue<Decoded>(decoders * 2);
+	}
+
+	/**
+	 * Copy files on AWS s3 (or any Hadoop file system) recursively into packed sequence files 1.seq, 2.seq,... under
+	 * outputDir.
+	 *
+	 * @param s3URI
+	 *            , e.g., s3://object/key, s3n://object/key or file:///path
+	 * @param outputDir
+	 *            , e.g. hdfs:///path, s3://bucket/path or file:///path
+	 * @param ext
+	 *            e.g., "tif", "ppm.bz2"
+	 * @param codec
+	 *            e.g., snappyCodec
+	 * @throws IOException
+	 */
+	public void run(String s3URI, String outputDir, String ext, CompressionCodec codec) throws IOException {
+		Path outpath = Util.resolveOutputDir(outputDir);
+		final String dotext = "." + (ext.startsWith(".") ? ext.substring(1) : ext);
+		IngestJournal journal = new IngestJournal(Util.conf, outpath);
+		final ConcurrentLinkedQueue<S3ObjectSummary> todo = new ConcurrentLinkedQueue<S3ObjectSummary>();
+		for (S3ObjectSummary summary : Util.listObjects(s3URI))
+			if (!journal.isDone(summary)) // filtered up front, the journal is only touched by the writer
+				todo.add(summary);
+		logger.info("file #={}, fetchers={}, decoders={}", todo.size(), fetchers, decoders);
+
+		long start = System.currentTimeMillis();
+		ExecutorService fetcherPool = newDaemonPool(fetchers, "fetcher");
+		ExecutorService decoderPool = newDaemonPool(decoders, "decoder");
+		final AtomicInteger activeFetchers = new AtomicInteger(fetchers);
+		final AtomicInteger activeDecoders = new AtomicInteger(decoders);
+
+		for (int i = 0; i < fetchers; i++) {
+			fetcherPool.submit(new Runnable() {
+				public void run() {
+					try {
+						S3ObjectSummary summary;
+						while (failure.get() == null && (summary = todo.poll()) != null) {
+							if (!summary.getKey().toLowerCase().contains(dotext.toLowerCase())
+									&& !summary.getKey().endsWith(".tar.gz"))
+								continue;
+							Fetched fetched = fetch(summary);
+							try {
+								fetchedQueue.put(fetched);
+							} catch (InterruptedException e) {
+								fetched.content.release();
+								throw e;
+							}
+						}
+					} catch (Throwable t) {
+						fail(t);
+					} finally {
+						if (activeFetchers.decrementAndGet() == 0) // last fetcher tells decoders to stop
+							for (int j = 0; j < decoders; j++)
+								putQuietly(fetchedQueue, END_OF_OBJECTS);
+					}
+				}
+			});
+		}
+
+		for (int i = 0; i < decoders; i++) {
+			decoderPool.submit(new Runnable() {
+				public void run() {
+					try {
+						Fetched fetched;
+						while ((fetched = fetchedQueue.take()) != END_OF_OBJECTS) {
+							try {
+								if (failure.get() == null) // otherwise keep draining so fetchers never block
+									decode(fetched, dotext);
+								else
+									fetched.content.release();
+							} catch (IOException e) {
+								fail(e);
+							}
+						}
+					} catch (Throwable t) {
+						fail(t);
+					} finally {
+						if (activeDecoders.decrementAndGet() == 0) // last decoder tells writer to stop
+							putQuietly(decodedQueue, END_OF_FILES);
+					}
+				}
+			});
+		}
+
+		try {
+			write(outpath, codec, journal);
+		} finally {
+			shutdown(fetcherPool, decoderPool);
+		}
+
+		if (failure.get() != null)
+			throw new IOException("parallel ingest from " + s3URI + " failed", failure.get());
+
+		double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+		logger.info("ingested {} files, {} MB in {} s: {} files/s, {} MB/s", objects, bytes / (1024 * 1024),
+				seconds, String.format("%.2f", objects / seconds),
+				String.format("%.2f", bytes / (1024.0 * 1024.0) / seconds));
+	}
+
+	/**
+	 * Stop the stages. Once the writer has drained the queues they are done; if it stopped early they are
+	 * interrupted, and what is left in the queues is released until they finish, so no worker stays blocked on a full
+	 * queue and no spill file is left behind.
+	 */
+	void shutdown(ExecutorService fetcherPool, ExecutorService decoderPool) {
+		fetcherPool.shutdownNow();
+		decoderPool.shutdownNow();
+		long deadline = System.currentTimeMillis() + SHUTDOWN_MILLIS;
+		try {
+			while (!(fetcherPool.isTerminated() && decoderPool.isTerminated())
+					&& System.currentTimeMillis() < deadline) {
+				releaseQueued();
+				decoderPool.awaitTermination(100, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		releaseQueued();
+		if (!(fetcherPool.isTerminated() && decoderPool.isTerminated()))
+			logger.warn("ingest stages still running after {} ms, left to exit with the JVM", SHUTDOWN_MILLIS);
+	}
+
+	void releaseQueued() {
+		Fetched fetched;
+		while ((fetched = fetchedQueue.poll()) != null)
+			if (fetched.content != null)
+				fetched.content.release();
+		Decoded decoded;
+		while ((decoded = decodedQueue.poll()) != null)
+			if (decoded.content != null)
+				decoded.content.release();
+	}
+
+	// single writer stage, runs on the calling thread; after a failure it keeps draining until END_OF_FILES, as the
+	// decoders do, so no stage blocks on a full queue
+	void write(Path outpath, CompressionCodec codec, IngestJournal journal) throws IOException {
+		PackingWriter writer = null;
+		try {
+			writer = newWriter(outpath, codec, journal); // packed into 1.seq, 2.seq,...
+		} catch (IOException e) {
+			fail(e);
+		}
+		try {
+			Decoded decoded;
+			while ((decoded = decodedQueue.take()) != END_OF_FILES) {
+				try {
+					if (failure.get() != null)
+						continue; // drain, so blocked decoders can finish
+					if (decoded.content == null) { // end of object, all its files are appended
+						journal.completed(decoded.source.getKey(), decoded.source.getETag());
+						continue;
+					}
+					logger.debug("hdfs path={}", outpath + "/" + decoded.filename + ".seq");
+					InputStream in = decoded.content.getInputStream();
+					try {
+						writer.append(decoded.filename, in, decoded.content.length());
+					} finally {
+						in.close();
+					}
+					objects++;
+					bytes += decoded.content.length();
+				} catch (IOException e) {
+					fail(e);
+				} finally {
+					if (decoded.content != null)
+						decoded.content.release();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fail(e);
+		} finally {
+			try {
+				if (writer != null)
+					writer.close();
+			} catch (IOException e) { // reported with the failure, if any, that came first
+				fail(e);
+			}
+		}
+	}
+
+	/**
+	 * @return the writer of the sequence files, as Util -threads configures it
+	 */
+	protected PackingWriter newWriter(Path outpath, CompressionCodec codec, IngestJournal journal) throws IOException {
+		return Util.createPackingWriter(outpath, codec, journal);
+	}
+
+	// fetcher stage: download one (still compressed) object, spilled to local disk beyond the threshold
+	Fetched fetch(S3ObjectSummary summary) throws IOException {
+		InputStream objectContent = Util.openObject(summary);
+		try {
+			return new Fetched(summary, SpillBuffer.copyOf(objectContent, threshold));
+		} finally {
+			objectContent.close();
+		}
+	}
+
+	// decoder stage: unpack a fetched object into one or more files matching ext, followed by an end-of-object marker
+	void decode(Fetched fetched, String ext) throws IOException, InterruptedException {
+		unpack(fetched, ext);
+		decodedQueue.put(new Decoded(null, null, fetched.summary));
+	}
+
+	// hand a file to the writer, releasing it if interrupted while the queue is full
+	void put(Decoded decoded) throws InterruptedException {
+		try {
+			decodedQueue.put(decoded);
+		} catch (InterruptedException e) {
+			decoded.content.release();
+			throw e;
+		}
+	}
+
+	void unpack(Fetched fetched, String ext) throws IOException, InterruptedException {
+		String filename = fetched.summary.getKey();
+		S3ObjectSummary source = fetched.summary;
+		if (!filename.endsWith(".tar.gz") && !CompressUtil.isCompressed(filename)) {
+			if (filename.toLowerCase().endsWith(ext.toLowerCase()))
+				put(new Decoded(filename, fetched.content, source)); // as-is, released by the writer
+			else
+				fetched.content.release(); //skip if it is other meta data like *.<ext>.md5
+			return;
+		}
+
+		InputStream in = fetched.content.getInputStream();
+		try {
+			if (filename.endsWith(".tar.gz")) {
+				TarArchiveInputStream tarArchiveInputStream = new TarArchiveInputStream(new GZIPInputStream(in));
+				TarArchiveEntry tarArchiveEntry;
+				while ((tarArchiveEntry = tarArchiveInputStream.getNextTarEntry()) != null) {
+					if (!tarArchiveEntry.isDirectory()// not a dir and match ext
+							&& tarArchiveEntry.getName().toLowerCase().contains(ext.toLowerCase())) {
+						String filenameInTar = StringUtils.substringBeforeLast(filename, "/")
+								+ tarArchiveEntry.getName().replaceAll("^\\.", "");
+						put(new Decoded(filenameInTar, SpillBuffer.copyOf(tarArchiveInputStream, threshold), source));
+					}
+				}
+			} else {
+				put(new Decoded(filename, SpillBuffer.copyOf(CompressUtil.decompress(filename, in), threshold), source));
+			}
+		} finally {
+			in.close();
+			fetched.content.release();
+		}
+	}
+
+	void fail(Throwable t) {
+		if (failure.compareAndSet(null, t))
+			logger.error("parallel ingest stage failed", t);
+	}
+
+	// pool of daemon threads, so a stage which never finishes cannot keep the JVM from exiting
+	static ExecutorService newDaemonPool(int threads, final String name) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "ingest-" + name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	static <T> void putQuietly(BlockingQueue<T> queue, T item) {
+		try {
+			queue.put(item);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public long getObjects() {
+		return objects;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	static class Fetched {
+		final S3ObjectSummary summary;
+		final SpillBuffer content;
+
+		Fetched(S3ObjectSummary summary, SpillBuffer content) {
+			this.summary = summary;
+			this.content = content;
+		}
+	}
+
+	// a file of the source object, or the end-of-object marker if content is null
+	static class Decoded {
+		final String filename;
+		final SpillBuffer content;
+		final S3ObjectSummary source;
+
+		Decoded(String filename, SpillBuffer content, S3ObjectSummary source) {
+			this.filename = filename;
+			this.content = content;
+			this.source = source;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+//@formatter:off
+/**
+ * Statistics of the samples of a band (or of many bands, scenes,..): count, min, max, mean, stddev and a histogram,
+ * which merge exactly, so partial statistics of blocks, tiles or scenes can be combined in any order, e.g.,
+ *
+ * RasterStats stats = RasterStats.fromConf(conf);
+ * for (double sample : samples) stats.add(sample);
+ * total.merge(stats);
+ *
+ * The histogram has `bins` equal bins over [low, high) plus one for samples below and one for samples at or above;
+ * statistics only merge if their bins are the same: -D bin2seq.geotiff.histogram=<low>,<high>,<bins>, default
+ * 0,256,256 (8 bit bands), so set it for 16 bit or float bands (see getOutOfRange). No data samples are counted
+ * apart and left out of everything else.
+ *
+ * The mean and the sum of squared differences from it (M2) are updated per sample (Welford) and merged with the
+ * parallel formula of Chan et al., rather than kept as a sum and a sum of squares: the variance from those,
+ * sumOfSquares/count - mean^2, loses all precision when the mean is large against the stddev.
+ *
+ * @author heq
+ */
+// @formatter:on
+public class RasterStats implements Writable {
+	public final static String HISTOGRAM = "bin2seq.geotiff.histogram";
+
+	double low = 0;
+	double high = 256;
+	long count = 0;
+	long noData = 0;
+	double min = Double.POSITIVE_INFINITY;
+	double max = Double.NEGATIVE_INFINITY;
+	double mean = 0;
+	double m2 = 0; // sum of (sample - mean)^2
+	long[] histogram = new long[256 + 2]; // below, bins, at or above
+
+	public RasterStats() {
+	}
+
+	public RasterStats(double low, double high, int bins) {
+		if (!(high > low) || bins < 1)
+			throw new IllegalArgumentException("bad histogram: " + low + "," + high + "," + bins);
+		this.low = low;
+		this.high = high;
+		this.histogram = new long[bins + 2];
+	}
+
+	public static RasterStats fromConf(Configuration conf) {
+		String[] histogram = conf.getTrimmedStrings(HISTOGRAM, "0", "256", "256");
+		if (histogram.length != 3)
+			throw new IllegalArgumentException(HISTOGRAM + " must be <low>,<high>,<bins>: " + conf.get(HISTOGRAM));
+		return new RasterStats(Double.parseDouble(histogram[0]), Double.parseDouble(histogram[1]),
+				Integer.parseInt(histogram[2]));
+	}
+
+	public void add(double sample) {
+		count++;
+		if (sample < min)
+			min = sample;
+		if (sample > max)
+			max = sample;
+		double delta = sample - mean;
+		mean += delta / count;
+		m2 += delta * (sample - mean);
+		histogram[bin(sample)]++;
+	}
+
+	/**
+	 * Add samples [0, length) of a buffer, skipping those equal to noDataValue (null if none) or NaN.
+	 */
+	public void add(double[] samples, int length, Double noDataValue) {
+		double nodata = noDataValue == null ? Double.NaN : noDataValue;
+		for (int i = 0; i < length; i++) {
+			double sample = samples[i];
+			if (sample == nodata || Double.isNaN(sample))
+				noData++;
+			else
+				add(sample);
+		}
+	}
+
+	int bin(double sample) {
+		if (sample < low)
+			return 0;
+		if (sample >= high)
+			return histogram.length - 1;
+		int bins = histogram.length - 2;
+		return 1 + Math.min(bins - 1, (int) ((sample - low) / (high - low) * bins));
+	}
+
+	public void merge(RasterStats other) {
+		if (other.low != low || other.high != high || other.histogram.length != histogram.length)
+			throw new IllegalArgumentException("cannot merge histograms of different bins: " + other.low + ","
+					+ other.high + "," + (other.histogram.length - 2) + " into " + low + "," + high + ","
+					+ (histogram.length - 2));
+		if (other.count > 0) {
+			long n = count + other.count;
+			double delta = other.mean - mean;
+			mean += delta * other.count / n;
+			m2 += other.m2 + delta * delta * ((double) count * other.count / n);
+			count = n;
+		}
+		noData += other.noData;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+		for (int i = 0; i < histogram.length; i++)
+			histogram[i] += other.histogram[i];
+	}
+
+	public void clear() {
+		count = 0;
+		noData = 0;
+		min = Double.POSITIVE_INFINITY;
+		max = Double.NEGATIVE_INFINITY;
+		mean = 0;
+		m2 = 0;
+		Arrays.fill(histogram, 0);
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getNoDataCount() {
+		return noData;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return count == 0 ? Double.NaN : mean;
+	}
+
+	/**
+	 * @return population standard deviation
+	 */
+	public double getStdDev() {
+		return count == 0 ? Double.NaN : Math.sqrt(m2 / count);
+	}
+
+	/**
+	 * @return fraction of the samples below low or at or above high, i.e. in no bin
+	 */
+	public double getOutOfRange() {
+		return count == 0 ? 0 : (double) (histogram[0] + histogram[histogram.length - 1]) / count;
+	}
+
+	/**
+	 * @return counts of samples below low, in each bin, at or above high
+	 */
+	public long[] getHistogram() {
+		return histogram;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeDouble(low);
+		out.writeDouble(high);
+		WritableUtils.writeVLong(out, count);
+		WritableUtils.writeVLong(out, noData);
+		out.writeDouble(min);
+		out.writeDouble(max);
+		out.writeDouble(mean);
+		out.writeDouble(m2);
+		WritableUtils.writeVInt(out, histogram.length);
+		for (long bin : histogram)
+			WritableUtils.writeVLong(out, bin); // mostly small or 0
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		low = in.readDouble();
+		high = in.readDouble();
+		count = WritableUtils.readVLong(in);
+		noData = WritableUtils.readVLong(in);
+		min = in.readDouble();
+		max = in.readDouble();
+		mean = in.readDouble();
+		m2 = in.readDouble();
+		int length = WritableUtils.readVInt(in);
+		if (histogram.length != length)
+			histogram = new long[length];
+		for (int i = 0; i < length; i++)
+			histogram[i] = WritableUtils.readVLong(in);
+	}
+
+	/**
+	 * @return e.g. "count=1000 nodata=24 min=3.0 max=255.0 mean=87.5 stddev=20.1 histogram=0,..,0"
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("count=").append(count).append(" nodata=").append(noData).append(" min=").append(min)
+				.append(" max=").append(max).append(" mean=").append(getMean()).append(" stddev=")
+				.append(getStdDev()).append(" histogram=");
+		for (int i = 0; i < histogram.length; i++)
+			sb.append(i == 0 ? "" : ",").append(histogram[i]);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,335 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.gdal.gdal.Band;
+import org.gdal.gdal.Dataset;
+import org.gdal.gdal.gdal;
+
+//@formatter:off
+/**
+ * A GeoTIFF stored as one record per band and internal tile (or group of strips), so a large scene is processed by
+ * many mappers instead of one:
+ *   key   = <scene>@b<band>/r<tile row>/c<tile col>, e.g., /Landsat/gls/p132r058.tif@b01/r0003/c0002
+ *   value = RasterTile: offset and size in the scene, GDAL data type, geotransform of the tile (its own origin),
+ *           projection (WKT), no data value, and the samples row by row
+ * so a record is georeferenced on its own and decoded without GDAL. A mapper can select tiles by key (parse())
+ * before it decodes any value.
+ *
+ * Tiles follow the internal blocks of each band (GetBlockSize), which GDAL reads without touching other blocks.
+ * Strips (blocks as wide as the scene) are grouped into tiles of about STRIP_GROUP_BYTES.
+ *
+ * @author heq
+ */
+// @formatter:on
+public class RasterTile {
+	final static Pattern TILE_KEY = Pattern.compile("^(.*)@b(\\d+)/r(\\d+)/c(\\d+)$");
+	final static int STRIP_GROUP_BYTES = 1024 * 1024;
+	// GDALDataType values; gdalconstConstants needs the native library, which decoding a tile does not
+	public final static int GDT_BYTE = 1, GDT_UINT16 = 2, GDT_INT16 = 3, GDT_UINT32 = 4, GDT_INT32 = 5,
+			GDT_FLOAT32 = 6, GDT_FLOAT64 = 7;
+
+	String scene;
+	int band;
+	int row;
+	int col;
+	int xoff, yoff, width, height;
+	int dataType; // gdalconst.GDT_*
+	double[] geoTransform = new double[6];
+	String projection = "";
+	Double noData; // null if none
+	ByteOrder order;
+	byte[] samples;
+
+	RasterTile() {
+	}
+
+	/**
+	 * A tile of scene, as append() stores it
+	 *
+	 * @param samples
+	 *            width * height samples of dataType, row by row, in order
+	 */
+	public RasterTile(String scene, int band, int row, int col, int xoff, int yoff, int width, int height,
+			int dataType, double[] geoTransform, String projection, Double noData, ByteOrder order, byte[] samples) {
+		this.scene = scene;
+		this.band = band;
+		this.row = row;
+		this.col = col;
+		this.xoff = xoff;
+		this.yoff = yoff;
+		this.width = width;
+		this.height = height;
+		this.dataType = dataType;
+		System.arraycopy(geoTransform, 0, this.geoTransform, 0, 6);
+		this.projection = projection;
+		this.noData = noData;
+		this.order = order;
+		this.samples = samples;
+	}
+
+	public static String tileKey(String scene, int band, int row, int col) {
+		return String.format("%s@b%02d/r%04d/c%04d", scene, band, row, col);
+	}
+
+	public static boolean isTileKey(String key) {
+		return TILE_KEY.matcher(key).matches();
+	}
+
+	/**
+	 * Parse a record key without decoding the value; only scene, band, row and col are set.
+	 *
+	 * @return null if key is not a tile key
+	 */
+	public static RasterTile parse(String key) {
+		Matcher m = TILE_KEY.matcher(key);
+		if (!m.matches())
+			return null;
+		RasterTile tile = new RasterTile();
+		tile.scene = m.group(1);
+		tile.band = Integer.parseInt(m.group(2));
+		tile.row = Integer.parseInt(m.group(3));
+		tile.col = Integer.parseInt(m.group(4));
+		return tile;
+	}
+
+	/**
+	 * Decode a record.
+	 */
+	public static RasterTile read(String key, RecordView value) throws IOException {
+		RasterTile tile = parse(key);
+		if (tile == null)
+			throw new IOException("not a tile key: " + key);
+		DataInputStream in = new DataInputStream(value.asInputStream());
+		tile.xoff = in.readInt();
+		tile.yoff = in.readInt();
+		tile.width = in.readInt();
+		tile.height = in.readInt();
+		tile.dataType = in.readInt();
+		for (int i = 0; i < 6; i++)
+			tile.geoTransform[i] = in.readDouble();
+		tile.projection = in.readUTF();
+		tile.noData = in.readBoolean() ? in.readDouble() : null;
+		tile.order = in.readBoolean() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+		tile.samples = new byte[in.readInt()];
+		in.readFully(tile.samples);
+		return tile;
+	}
+
+	/**
+	 * @return the value of the record, as read() decodes it
+	 */
+	public byte[] toBytes() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(samples.length + 256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(xoff);
+		out.writeInt(yoff);
+		out.writeInt(width);
+		out.writeInt(height);
+		out.writeInt(dataType);
+		for (double d : geoTransform)
+			out.writeDouble(d);
+		out.writeUTF(projection);
+		out.writeBoolean(noData != null);
+		if (noData != null)
+			out.writeDouble(noData);
+		out.writeBoolean(order == ByteOrder.BIG_ENDIAN);
+		out.writeInt(samples.length);
+		out.write(samples);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Append the tiles of every band of a GeoTIFF, in band, row, col order.
+	 *
+	 * @return # of records appended
+	 */
+	public static int append(PackingWriter writer, String scene, byte[] tiff) throws IOException {
+		GdalMemFile file = GdalMemFile.open(tiff);
+		try {
+			Dataset dataset = file.getDataset();
+			int records = 0;
+			for (int b = 1; b <= dataset.getRasterCount(); b++) {
+				Band band = dataset.GetRasterBand(b);
+				int[] blockWidth = new int[1], blockHeight = new int[1];
+				band.GetBlockSize(blockWidth, blockHeight);
+				int tileWidth = blockWidth[0], tileHeight = blockHeight[0];
+				int sampleSize = gdal.GetDataTypeSize(band.getDataType()) / 8;
+				if (tileWidth >= dataset.getRasterXSize()) { // strips
+					long stripBytes = (long) tileWidth * tileHeight * sampleSize;
+					tileHeight *= Math.max(1, STRIP_GROUP_BYTES / stripBytes);
+				}
+				int rows = (dataset.getRasterYSize() + tileHeight - 1) / tileHeight;
+				int cols = (dataset.getRasterXSize() + tileWidth - 1) / tileWidth;
+				for (int row = 0; row < rows; row++) {
+					for (int col = 0; col < cols; col++) {
+						RasterTile tile = read(dataset, band, col * tileWidth, row * tileHeight, tileWidth, tileHeight);
+						tile.scene = scene;
+						tile.band = b;
+						tile.row = row;
+						tile.col = col;
+						byte[] value = tile.toBytes();
+						String key = tileKey(scene, b, row, col);
+						writer.appendRecord(key, new ByteArrayInputStream(value), value.length);
+						writer.addBox(key, GeoTiff.getCorners(tile.geoTransform, tile.width, tile.height));
+						records++;
+					}
+				}
+			}
+			return records;
+		} finally {
+			file.close();
+		}
+	}
+
+	// read the window of band, clipped to the scene
+	static RasterTile read(Dataset dataset, Band band, int xoff, int yoff, int width, int height) throws IOException {
+		RasterTile tile = new RasterTile();
+		tile.xoff = xoff;
+		tile.yoff = yoff;
+		tile.width = Math.min(width, dataset.getRasterXSize() - xoff);
+		tile.height = Math.min(height, dataset.getRasterYSize() - yoff);
+		tile.dataType = band.getDataType();
+		double[] gt = dataset.GetGeoTransform();
+		System.arraycopy(gt, 0, tile.geoTransform, 0, 6);
+		tile.geoTransform[0] = gt[0] + xoff * gt[1] + yoff * gt[2];
+		tile.geoTransform[3] = gt[3] + xoff * gt[4] + yoff * gt[5];
+		tile.projection = dataset.GetProjectionRef();
+		Double[] noData = new Double[1];
+		band.GetNoDataValue(noData);
+		tile.noData = noData[0];
+		tile.order = ByteOrder.nativeOrder(); // as GDAL reads into the buffer
+		tile.samples = new byte[tile.width * tile.height * gdal.GetDataTypeSize(tile.dataType) / 8];
+		if (band.ReadRaster(tile.xoff, tile.yoff, tile.width, tile.height, tile.width, tile.height, tile.dataType,
+				tile.samples) != 0)
+			throw new IOException("cannot read " + tile.width + "x" + tile.height + " at " + xoff + "," + yoff + ": "
+					+ gdal.GetLastErrorMsg());
+		return tile;
+	}
+
+	public String getScene() {
+		return scene;
+	}
+
+	/**
+	 * @return 1-based, as in GDAL
+	 */
+	public int getBand() {
+		return band;
+	}
+
+	public int getRow() {
+		return row;
+	}
+
+	public int getCol() {
+		return col;
+	}
+
+	/**
+	 * @return x offset of the tile in the scene, in pixels
+	 */
+	public int getXOffset() {
+		return xoff;
+	}
+
+	/**
+	 * @return y offset of the tile in the scene, in lines
+	 */
+	public int getYOffset() {
+		return yoff;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return gdalconst.GDT_*
+	 */
+	public int getDataType() {
+		return dataType;
+	}
+
+	/**
+	 * @return geotransform with the tile's top left corner as origin
+	 */
+	public double[] getGeoTransform() {
+		return geoTransform;
+	}
+
+	public String getProjection() {
+		return projection;
+	}
+
+	/**
+	 * @return no data value, or null if none
+	 */
+	public Double getNoData() {
+		return noData;
+	}
+
+	/**
+	 * @param reuse
+	 *            returned if large enough, otherwise a new array is
+	 * @return samples row by row, as doubles, in [0, width * height)
+	 */
+	public double[] getSamples(double[] reuse) throws IOException {
+		int length = width * height;
+		double[] doubles = reuse != null && reuse.length >= length ? reuse : new double[length];
+		ByteBuffer buffer = getSamples();
+		switch (dataType) {
+		case GDT_BYTE:
+			for (int i = 0; i < length; i++)
+				doubles[i] = buffer.get(i) & 0xff;
+			break;
+		case GDT_UINT16:
+			for (int i = 0; i < length; i++)
+				doubles[i] = buffer.getShort(2 * i) & 0xffff;
+			break;
+		case GDT_INT16:
+			for (int i = 0; i < length; i++)
+				doubles[i] = buffer.getShort(2 * i);
+			break;
+		case GDT_UINT32:
+			for (int i = 0; i < length; i++)
+				doubles[i] = buffer.getInt(4 * i) & 0xffffffffL;
+			break;
+		case GDT_INT32:
+			for (int i = 0; i < length; i++)
+				doubles[i] = buffer.getInt(4 * i);
+			break;
+		case GDT_FLOAT32:
+			for (int i = 0; i < length; i++)
+				doubles[i] = buffer.getFloat(4 * i);
+			break;
+		case GDT_FLOAT64:
+			for (int i = 0; i < length; i++)
+				doubles[i] = buffer.getDouble(8 * i);
+			break;
+		default:
+			throw new IOException("unsupported GDAL data type " + dataType + " in " + tileKey(scene, band, row, col));
+		}
+		return doubles;
+	}
+
+	/**
+	 * @return samples row by row, in the byte order they were written in
+	 */
+	public ByteBuffer getSamples() {
+		return ByteBuffer.wrap(samples).order(order);
+	}
+}
@@ -0,0 +1,81 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.BytesWritable;
+
+//@formatter:off
+/**
+ * The valid bytes of a record value. BytesWritable.getBytes() returns its backing array, which grows by 1.5x when a
+ * larger value is read into it, so it is usually longer than getLength() and ends with stale bytes of an earlier
+ * record. Decoders given the whole array see a corrupt file; copyBytes() avoids that with a copy per record. A view
+ * exposes exactly getLength() bytes instead, e.g.,
+ *
+ * RecordView view = RecordView.of(value);
+ * BufferedImage image = ImageIO.read(view.asInputStream());      // no copy
+ * NetcdfFile nc = NetcdfFile.openInMemory(filename, view.toArray()); // no copy unless padded
+ *
+ * asBuffer() and asInputStream() never copy. NetcdfFile.openInMemory and gdal.FileFromMemBuffer only take a whole
+ * byte[] (the file size is the array length), so toArray() returns the backing array when it is exact and copies
+ * once otherwise.
+ *
+ * A view shares the array of the value, so it is only valid until the value is read into again.
+ *
+ * @author heq
+ */
+// @formatter:on
+public class RecordView {
+	final byte[] bytes;
+	final int length;
+
+	RecordView(byte[] bytes, int length) {
+		if (length < 0 || length > bytes.length)
+			throw new IllegalArgumentException("length " + length + " out of array of " + bytes.length);
+		this.bytes = bytes;
+		this.length = length;
+	}
+
+	public static RecordView of(BytesWritable value) {
+		return new RecordView(value.getBytes(), value.getLength());
+	}
+
+	/**
+	 * @param bytes
+	 *            backing array, of which the first length bytes are valid
+	 */
+	public static RecordView of(byte[] bytes, int length) {
+		return new RecordView(bytes, length);
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return a read-only buffer of exactly getLength() bytes, position 0
+	 */
+	public ByteBuffer asBuffer() {
+		return ByteBuffer.wrap(bytes, 0, length).slice().asReadOnlyBuffer();
+	}
+
+	public InputStream asInputStream() {
+		return new ByteArrayInputStream(bytes, 0, length);
+	}
+
+	/**
+	 * @return an array of exactly getLength() bytes, the backing array if it has no padding, otherwise a copy
+	 */
+	public byte[] toArray() {
+		return bytes.length == length ? bytes : Arrays.copyOf(bytes, length);
+	}
+
+	/**
+	 * @return true if toArray() does not copy
+	 */
+	public boolean isExact() {
+		return bytes.length == length;
+	}
+}
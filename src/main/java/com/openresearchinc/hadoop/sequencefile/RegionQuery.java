@@ -0,0 +1,369 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+
+import ucar.ma2.Array;
+import ucar.ma2.InvalidRangeException;
+import ucar.ma2.Range;
+import ucar.nc2.Attribute;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
+
+//@formatter:off
+/**
+ * Aggregate a variable of a NetCDF file over a lat/lon box and a time range, e.g.,
+ *
+ * -D bin2seq.netcdf.variable=pr -D bin2seq.netcdf.bbox=-110,-100,35,40 -D bin2seq.netcdf.time=20089,20454
+ *   -D bin2seq.netcdf.aggregates=min,max,mean
+ *
+ * - bbox: minlon,maxlon,minlat,maxlat in degrees; longitudes in -180..180 also match files in 0..360 and vice
+ *   versa, a box across the start of the grid (e.g. -10,10 on 0..360) is read as two boxes, and minlon > maxlon
+ *   crosses the antimeridian (e.g. 170,-170),
+ * - time: from,to in the units of the time variable, e.g., days since 1950-01-01,
+ * - aggregates: any of min,max,mean,sum,count,
+ * each unset for all. Bounds are inclusive.
+ *
+ * The box and time range are translated to index ranges by a binary search of the coordinate variables (ascending or
+ * descending), once per grid (see CoordinateCache), and only that hyperslab is read, in slices along the outermost
+ * dimension of about SLICE_BYTES, aligned to its chunks (_ChunkSizes) if the file has any. Samples are aggregated
+ * straight from the primitive arrays read, skipping _FillValue, missing_value and NaN; packed variables are unpacked
+ * with scale_factor and add_offset.
+ *
+ * @author heq
+ */
+// @formatter:on
+public class RegionQuery {
+	public final static String VARIABLE = "bin2seq.netcdf.variable";
+	public final static String BBOX = "bin2seq.netcdf.bbox";
+	public final static String TIME = "bin2seq.netcdf.time";
+	public final static String AGGREGATES = "bin2seq.netcdf.aggregates";
+	final static List<String> ALL = Arrays.asList("min", "max", "mean", "sum", "count");
+	final static long SLICE_BYTES = 8 * 1024 * 1024;
+
+	String variable = "pr";
+	double[] bbox = null; // minlon, maxlon, minlat, maxlat
+	double[] time = null; // from, to
+	List<String> aggregates = ALL;
+	CoordinateCache cache = CoordinateCache.get();
+
+	public static RegionQuery fromConf(Configuration conf) {
+		RegionQuery query = new RegionQuery().withVariable(conf.get(VARIABLE, "pr"));
+		if (conf.get(BBOX) != null)
+			query.withBoundingBox(parse(conf.getTrimmedStrings(BBOX), 4, BBOX));
+		if (conf.get(TIME) != null)
+			query.withTimeRange(parse(conf.getTrimmedStrings(TIME), 2, TIME));
+		if (conf.get(AGGREGATES) != null)
+			query.withAggregates(conf.getTrimmedStrings(AGGREGATES));
+		return query;
+	}
+
+	static double[] parse(String[] values, int length, String key) {
+		if (values.length != length)
+			throw new IllegalArgumentException(key + " must have " + length + " values: " + Arrays.toString(values));
+		double[] parsed = new double[length];
+		for (int i = 0; i < length; i++)
+			parsed[i] = Double.parseDouble(values[i]);
+		return parsed;
+	}
+
+	public RegionQuery withVariable(String variable) {
+		this.variable = variable;
+		return this;
+	}
+
+	/**
+	 * @param bbox
+	 *            minlon, maxlon, minlat, maxlat
+	 */
+	public RegionQuery withBoundingBox(double... bbox) {
+		if (bbox.length != 4 || bbox[2] > bbox[3])
+			throw new IllegalArgumentException("bounding box must be minlon,maxlon,minlat,maxlat with minlat <= maxlat: "
+					+ Arrays.toString(bbox));
+		this.bbox = bbox;
+		return this;
+	}
+
+	public RegionQuery withTimeRange(double... time) {
+		if (time.length != 2 || time[0] > time[1])
+			throw new IllegalArgumentException("time range must be from,to with from <= to: " + Arrays.toString(time));
+		this.time = time;
+		return this;
+	}
+
+	public RegionQuery withAggregates(String... aggregates) {
+		for (String aggregate : aggregates)
+			if (!ALL.contains(aggregate))
+				throw new IllegalArgumentException("unknown aggregate " + aggregate + ", must be one of " + ALL);
+		this.aggregates = Arrays.asList(aggregates);
+		return this;
+	}
+
+	/**
+	 * @return e.g. "pr[time=0:11,lat=100:199,lon=50:149] min=0.0 max=3.1E-4 mean=2.2E-5",
+	 *         "pr[time=0:11,lat=100:199,lon=700:719+0:19] ..." for a box across the start of the grid, "pr[] count=0"
+	 *         if the region is outside the file
+	 */
+	public String query(NetcdfFile nc) throws IOException {
+		Variable v = nc.findVariable(variable);
+		if (v == null)
+			throw new IOException("cannot find variable " + variable);
+		List<List<Range>> dimensions = new ArrayList<List<Range>>();
+		for (Dimension dimension : v.getDimensions()) {
+			List<Range> ranges = ranges(nc, dimension);
+			if (ranges.isEmpty())
+				return variable + "[] " + format(new Aggregate());
+			dimensions.add(ranges);
+		}
+
+		Aggregate aggregate = new Aggregate();
+		aggregate.setPacking(v);
+		if (dimensions.isEmpty()) {
+			aggregate.add(v.read());
+		} else {
+			for (List<Range> ranges : product(dimensions)) // one hyperslab unless the longitudes wrap
+				read(v, ranges, aggregate);
+		}
+
+		StringBuilder sb = new StringBuilder(variable).append('[');
+		for (int i = 0; i < dimensions.size(); i++) {
+			sb.append(i == 0 ? "" : ",").append(dimensions.get(i).get(0).getName()).append('=');
+			for (int j = 0; j < dimensions.get(i).size(); j++)
+				sb.append(j == 0 ? "" : "+").append(dimensions.get(i).get(j).first()).append(':')
+						.append(dimensions.get(i).get(j).last());
+		}
+		return sb.append("] ").append(format(aggregate)).toString();
+	}
+
+	// read a hyperslab into aggregate, in slices along the outermost dimension
+	void read(Variable v, List<Range> ranges, Aggregate aggregate) throws IOException {
+		ranges = new ArrayList<Range>(ranges);
+		Range outer = ranges.get(0);
+		long sliceBytes = (long) v.getElementSize();
+		for (int i = 1; i < ranges.size(); i++)
+			sliceBytes *= ranges.get(i).length();
+		int step = (int) Math.max(1, SLICE_BYTES / sliceBytes);
+		int chunk = chunkSize(v);
+		if (chunk > 1) // whole chunks, so no chunk is decoded twice
+			step = Math.max(chunk, step / chunk * chunk);
+		try {
+			for (int first = outer.first(); first <= outer.last();) {
+				int last = Math.min(outer.last(), (first / step + 1) * step - 1); // aligned to step, chunks
+				ranges.set(0, new Range(outer.getName(), first, last));
+				aggregate.add(v.read(ranges));
+				first = last + 1;
+			}
+		} catch (InvalidRangeException e) {
+			throw new IOException("cannot read " + ranges + " of " + variable, e);
+		}
+	}
+
+	// every combination of one range per dimension
+	static List<List<Range>> product(List<List<Range>> dimensions) {
+		List<List<Range>> product = new ArrayList<List<Range>>();
+		product.add(new ArrayList<Range>());
+		for (List<Range> ranges : dimensions) {
+			List<List<Range>> next = new ArrayList<List<Range>>();
+			for (List<Range> prefix : product)
+				for (Range range : ranges) {
+					List<Range> combination = new ArrayList<Range>(prefix);
+					combination.add(range);
+					next.add(combination);
+				}
+			product = next;
+		}
+		return product;
+	}
+
+	/**
+	 * @return index ranges of a dimension to read, all of it unless queried; two for longitudes across the start of the
+	 *         grid, in grid order of their bounds (see longitudeBounds); empty if the query selects none of it
+	 */
+	List<Range> ranges(NetcdfFile nc, Dimension dimension) throws IOException {
+		String name = dimension.getName();
+		double[] bounds = null;
+		boolean longitude = false;
+		if (bbox != null && (name.equalsIgnoreCase("lon") || name.equalsIgnoreCase("longitude"))) {
+			bounds = new double[] { bbox[0], bbox[1] };
+			longitude = true;
+		} else if (bbox != null && (name.equalsIgnoreCase("lat") || name.equalsIgnoreCase("latitude"))) {
+			bounds = new double[] { bbox[2], bbox[3] };
+		} else if (time != null && name.equalsIgnoreCase("time")) {
+			bounds = time;
+		}
+		List<Range> ranges = new ArrayList<Range>();
+		Variable coordinate = nc.findVariable(name);
+		if (dimension.getLength() == 0)
+			return ranges;
+		if (bounds == null || coordinate == null) {
+			ranges.add(rangeOf(name, 0, dimension.getLength() - 1));
+			return ranges;
+		}
+		CoordinateCache.Coordinates coordinates = cache.coordinates(coordinate); // once per grid
+		for (double[] piece : longitude ? longitudeBounds(bounds[0], bounds[1], coordinates.getMax())
+				: new double[][] { bounds }) {
+			int[] indexes = coordinates.indexRange(piece[0], piece[1]);
+			if (indexes != null)
+				ranges.add(rangeOf(name, indexes[0], indexes[1]));
+		}
+		return ranges;
+	}
+
+	/**
+	 * @param west
+	 *            degrees, in -180..180 or 0..360
+	 * @param east
+	 *            degrees, in -180..180 or 0..360; east < west crosses the antimeridian, e.g. 170,-170
+	 * @param max
+	 *            largest longitude of the grid: over 180 for a grid in 0..360, in -180..180 otherwise
+	 * @return west,east in the longitudes of the grid, or west,end and start,east (e.g. 350,360 and 0,10 for -10,10 on
+	 *         0..360) if they wrap around the start of the grid
+	 */
+	public static double[][] longitudeBounds(double west, double east, double max) {
+		if (east < west)
+			east += 360;
+		if (east - west >= 360) // all around
+			return new double[][] { { Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY } };
+		double start = max > 180 ? 0 : -180;
+		west = start + mod360(west - start);
+		east = start + mod360(east - start);
+		if (west <= east)
+			return new double[][] { { west, east } };
+		return new double[][] { { west, start + 360 }, { start, east } };
+	}
+
+	static double mod360(double degrees) {
+		double mod = degrees % 360;
+		return mod < 0 ? mod + 360 : mod;
+	}
+
+	static Range rangeOf(String name, int first, int last) throws IOException {
+		try {
+			return new Range(name, first, last);
+		} catch (InvalidRangeException e) {
+			throw new IOException(e);
+		}
+	}
+
+	static double max(double[] values) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (double value : values)
+			max = Math.max(max, value);
+		return max;
+	}
+
+	/**
+	 * @param coordinates
+	 *            ascending or descending
+	 * @return first and last index of the coordinates in [low, high], null if none
+	 */
+	public static int[] indexRange(double[] coordinates, double low, double high) {
+		if (coordinates.length == 0)
+			return null;
+		boolean ascending = coordinates[0] <= coordinates[coordinates.length - 1];
+		int first = ascending ? search(coordinates, low, false) : search(coordinates, high, false);
+		int last = (ascending ? search(coordinates, high, true) : search(coordinates, low, true)) - 1;
+		return first <= last ? new int[] { first, last } : null;
+	}
+
+	/**
+	 * @return first index whose coordinate is at (unless strict) or past value, in the order of the coordinates
+	 *         (ascending or descending), coordinates.length if none
+	 */
+	public static int search(double[] coordinates, double value, boolean strict) {
+		double sign = coordinates[0] <= coordinates[coordinates.length - 1] ? 1 : -1;
+		int low = 0, high = coordinates.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			double c = sign * coordinates[mid], v = sign * value;
+			if (strict ? c > v : c >= v)
+				high = mid;
+			else
+				low = mid + 1;
+		}
+		return low;
+	}
+
+	// chunk length of the outermost dimension, 0 if not chunked (e.g. NetCDF-3)
+	static int chunkSize(Variable v) {
+		Attribute chunks = v.findAttribute("_ChunkSizes");
+		return chunks == null || chunks.getLength() == 0 ? 0 : chunks.getNumericValue(0).intValue();
+	}
+
+	String format(Aggregate aggregate) {
+		StringBuilder sb = new StringBuilder();
+		for (String name : aggregates) {
+			sb.append(sb.length() == 0 ? "" : " ").append(name).append('=');
+			switch (name) {
+			case "min":
+				sb.append(aggregate.count == 0 ? Double.NaN : aggregate.min);
+				break;
+			case "max":
+				sb.append(aggregate.count == 0 ? Double.NaN : aggregate.max);
+				break;
+			case "mean":
+				sb.append(aggregate.count == 0 ? Double.NaN : aggregate.sum / aggregate.count);
+				break;
+			case "sum":
+				sb.append(aggregate.sum);
+				break;
+			case "count":
+				sb.append(aggregate.count);
+				break;
+			}
+		}
+		return sb.toString();
+	}
+
+	static class Aggregate {
+		long count = 0;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		double sum = 0;
+		double fillValue = Double.NaN;
+		double missingValue = Double.NaN;
+		double scale = 1;
+		double offset = 0;
+
+		void setPacking(Variable v) {
+			Attribute attribute;
+			if ((attribute = v.findAttribute("_FillValue")) != null)
+				fillValue = attribute.getNumericValue().doubleValue();
+			if ((attribute = v.findAttribute("missing_value")) != null)
+				missingValue = attribute.getNumericValue().doubleValue();
+			if ((attribute = v.findAttribute("scale_factor")) != null)
+				scale = attribute.getNumericValue().doubleValue();
+			if ((attribute = v.findAttribute("add_offset")) != null)
+				offset = attribute.getNumericValue().doubleValue();
+		}
+
+		void add(Array array) {
+			if (array.getElementType() == float.class) {
+				float[] samples = (float[]) array.get1DJavaArray(float.class); // the storage, if read contiguous
+				float fill = (float) fillValue, missing = (float) missingValue;
+				for (float sample : samples)
+					if (sample == sample && sample != fill && sample != missing)
+						add(sample * scale + offset);
+			} else {
+				double[] samples = (double[]) array.get1DJavaArray(double.class); // converted if not double
+				for (double sample : samples)
+					if (sample == sample && sample != fillValue && sample != missingValue)
+						add(sample * scale + offset);
+			}
+		}
+
+		void add(double sample) {
+			count++;
+			if (sample < min)
+				min = sample;
+			if (sample > max)
+				max = sample;
+			sum += sample;
+		}
+	}
+}
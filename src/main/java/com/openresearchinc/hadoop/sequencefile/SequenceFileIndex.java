@@ -0,0 +1,106 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+//@formatter:off
+/**
+ * Sidecar index of a packed sequence file for random access: <dir>/_index/N.seq is a MapFile of
+ *   key   = filename (the logical filename for chunked files, see ChunkedFile)
+ *   value = file position of its (first) record, i.e., writer.getLength() before it was appended
+ * written by PackingWriter when N.seq is closed.
+ *
+ * A lookup is a binary search in the MapFile, then
+ * - NONE/RECORD compressed: seek to the record,
+ * - BLOCK compressed: the position is the start of the block holding the record, so sync to it and scan the keys
+ *   of that block only.
+ * Files without an index (e.g. written before it existed) are scanned from the start.
+ *
+ * The directory starts with "_", so FileInputFormat does not read it as input.
+ *
+ * @author heq
+ */
+// @formatter:on
+public class SequenceFileIndex {
+	final static Logger logger = LoggerFactory.getLogger(SequenceFileIndex.class);
+	final static String DIR = "_index";
+
+	public static Path indexPath(Path seqfile) {
+		return new Path(new Path(seqfile.getParent(), DIR), seqfile.getName());
+	}
+
+	/**
+	 * @param offsets
+	 *            filename -> position of its (first) record, sorted as MapFile requires
+	 */
+	public static void write(Configuration conf, Path seqfile, SortedMap<String, Long> offsets) throws IOException {
+		MapFile.Writer writer = new MapFile.Writer(conf, indexPath(seqfile), MapFile.Writer.keyClass(Text.class),
+				SequenceFile.Writer.valueClass(LongWritable.class));
+		try {
+			Text key = new Text();
+			LongWritable offset = new LongWritable();
+			for (Map.Entry<String, Long> entry : offsets.entrySet()) {
+				key.set(entry.getKey());
+				offset.set(entry.getValue());
+				writer.append(key, offset);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Open a file in a sequence file as a stream, through the index if there is one. Aliases are not resolved, see
+	 * DedupIndex.open.
+	 *
+	 * @return the stream, or null if filename is not in the sequence file
+	 */
+	public static InputStream find(Configuration conf, Path seqfile, String filename) throws IOException {
+		Path index = indexPath(seqfile);
+		FileSystem fs = index.getFileSystem(conf);
+		if (!fs.exists(index))
+			return ChunkedFile.open(conf, seqfile, filename);
+
+		LongWritable offset = new LongWritable();
+		MapFile.Reader indexReader = new MapFile.Reader(index, conf);
+		try {
+			if (indexReader.get(new Text(filename), offset) == null)
+				return null;
+		} finally {
+			indexReader.close();
+		}
+
+		SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(seqfile));
+		try {
+			if (reader.isBlockCompressed()) {
+				if (offset.get() > reader.getPosition()) // the first block follows the header without a sync
+					reader.sync(offset.get() - 1); // sync marker of the block is right at offset
+			} else {
+				reader.seek(offset.get());
+			}
+			Text key = new Text();
+			while (reader.next(key)) { // values are not deserialized while scanning
+				ChunkedFile chunk = ChunkedFile.parse(key.toString());
+				if (chunk.index == 0 && chunk.filename.equals(filename))
+					return new ChunkedFile.ChunkInputStream(reader, chunk, true, Long.MAX_VALUE);
+			}
+		} catch (IOException e) {
+			reader.close();
+			throw e;
+		}
+		reader.close();
+		throw new IOException(filename + " is in " + index + " but not at " + offset + " of " + seqfile);
+	}
+}
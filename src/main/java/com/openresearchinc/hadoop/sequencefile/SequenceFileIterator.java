@@ -0,0 +1,137 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+
+//@formatter:off
+/**
+ * Read a SequenceFile of (Text, BytesWritable) one record at a time, instead of materializing it (see
+ * Util.readSequenceFile), e.g.,
+ *
+ * SequenceFileIterator records = new SequenceFileIterator(conf, path).withPrefix("/data/2013").withExtension("nc");
+ * try {
+ *     while (records.hasNext()) {
+ *         SequenceFileIterator.Record record = records.next();
+ *         ... record.getKey(), record.getValue() ...
+ *     }
+ * } finally {
+ *     records.close();
+ * }
+ *
+ * The key and value are read into the same buffers for every record, so heap use is constant (one record), and a
+ * Record is only valid until the following next(). Filters are applied to the key before the value is read, so
+ * the value of a skipped record is never decompressed. Chunk records (see ChunkedFile) are filtered by their
+ * logical filename and returned as-is.
+ *
+ * @author heq
+ */
+// @formatter:on
+public class SequenceFileIterator implements Iterator<SequenceFileIterator.Record>, Closeable {
+	final SequenceFile.Reader reader;
+	final Record record = new Record();
+	String prefix = null;
+	String extension = null;
+	boolean ready = false; // record holds the next match
+	boolean done = false;
+
+	public SequenceFileIterator(Configuration conf, Path path) throws IOException {
+		this.reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path));
+	}
+
+	/**
+	 * Only records whose filename starts with prefix.
+	 */
+	public SequenceFileIterator withPrefix(String prefix) {
+		this.prefix = prefix;
+		return this;
+	}
+
+	/**
+	 * Only records whose filename ends with the extension (case-insensitive), e.g., "tif" or ".tif".
+	 */
+	public SequenceFileIterator withExtension(String extension) {
+		this.extension = (extension.startsWith(".") ? extension : "." + extension).toLowerCase();
+		return this;
+	}
+
+	boolean accept(Text key) {
+		if (prefix == null && extension == null)
+			return true;
+		String filename = ChunkedFile.parse(key.toString()).getFilename();
+		return (prefix == null || filename.startsWith(prefix))
+				&& (extension == null || filename.toLowerCase().endsWith(extension));
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (ready)
+			return true;
+		if (done)
+			return false;
+		try {
+			while (reader.next(record.key)) { // values are not deserialized while filtering
+				if (accept(record.key)) {
+					reader.getCurrentValue(record.value);
+					ready = true;
+					return true;
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("cannot read next record", e);
+		}
+		done = true;
+		return false;
+	}
+
+	/**
+	 * @return the next record, overwritten by the following call
+	 */
+	@Override
+	public Record next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		ready = false;
+		return record;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	public static class Record {
+		final Text key = new Text();
+		final BytesWritable value = new BytesWritable();
+
+		public Text getKey() {
+			return key;
+		}
+
+		/**
+		 * @return the value, whose backing array may be longer than getLength()
+		 */
+		public BytesWritable getValue() {
+			return value;
+		}
+
+		/**
+		 * @return exactly the valid bytes of the value, see RecordView
+		 */
+		public RecordView getView() {
+			return RecordView.of(value);
+		}
+	}
+}
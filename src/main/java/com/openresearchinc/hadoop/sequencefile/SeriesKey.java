@@ -0,0 +1,157 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+//@formatter:off
+/**
+ * Map output key of a time series job (see NetCDF -series): a block of grid cells and a time step,
+ *   (row of the block, col of the block, time)
+ * sorted by block, then time, so the reducer of a block receives its time steps in order (secondary sort):
+ *
+ * job.setPartitionerClass(SeriesKey.BlockPartitioner.class);
+ * job.setGroupingComparatorClass(SeriesKey.BlockComparator.class);
+ *
+ * Both compare the serialized keys, 4 + 4 + 8 bytes, without deserializing them.
+ *
+ * @author heq
+ */
+// @formatter:on
+public class SeriesKey implements WritableComparable<SeriesKey> {
+	final static int BLOCK_BYTES = 8; // row and col, the prefix the grouping compares
+
+	int row;
+	int col;
+	double time;
+
+	static {
+		WritableComparator.define(SeriesKey.class, new Comparator());
+	}
+
+	public SeriesKey() {
+	}
+
+	public SeriesKey(int row, int col, double time) {
+		set(row, col, time);
+	}
+
+	public void set(int row, int col, double time) {
+		this.row = row;
+		this.col = col;
+		this.time = time;
+	}
+
+	public int getRow() {
+		return row;
+	}
+
+	public int getCol() {
+		return col;
+	}
+
+	public double getTime() {
+		return time;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(row);
+		out.writeInt(col);
+		out.writeDouble(time);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		row = in.readInt();
+		col = in.readInt();
+		time = in.readDouble();
+	}
+
+	@Override
+	public int compareTo(SeriesKey other) {
+		int c = compareBlock(other);
+		return c != 0 ? c : Double.compare(time, other.time);
+	}
+
+	int compareBlock(SeriesKey other) {
+		if (row != other.row)
+			return row < other.row ? -1 : 1;
+		return col == other.col ? 0 : col < other.col ? -1 : 1;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof SeriesKey && compareTo((SeriesKey) o) == 0;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (31 * row + col) + Double.valueOf(time).hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "r" + row + "/c" + col + "@" + time;
+	}
+
+	static int compareBlock(byte[] b1, int s1, byte[] b2, int s2) {
+		int c = Integer.compare(WritableComparator.readInt(b1, s1), WritableComparator.readInt(b2, s2));
+		return c != 0 ? c : Integer.compare(WritableComparator.readInt(b1, s1 + 4), WritableComparator.readInt(b2, s2 + 4));
+	}
+
+	/**
+	 * Sorts by block, then time.
+	 */
+	public static class Comparator extends WritableComparator {
+		public Comparator() {
+			super(SeriesKey.class);
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			int c = compareBlock(b1, s1, b2, s2);
+			if (c != 0)
+				return c;
+			try {
+				return Double.compare(readDouble(b1, s1 + BLOCK_BYTES), readDouble(b2, s2 + BLOCK_BYTES));
+			} catch (Exception e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+	}
+
+	/**
+	 * Groups the time steps of a block into one reduce call.
+	 */
+	public static class BlockComparator extends WritableComparator {
+		public BlockComparator() {
+			super(SeriesKey.class);
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			return compareBlock(b1, s1, b2, s2);
+		}
+
+		@Override
+		@SuppressWarnings("rawtypes")
+		public int compare(WritableComparable a, WritableComparable b) {
+			return ((SeriesKey) a).compareBlock((SeriesKey) b);
+		}
+	}
+
+	/**
+	 * Sends every time step of a block to the same reducer.
+	 */
+	public static class BlockPartitioner extends Partitioner<SeriesKey, Object> {
+		@Override
+		public int getPartition(SeriesKey key, Object value, int partitions) {
+			return ((31 * key.row + key.col) & Integer.MAX_VALUE) % partitions;
+		}
+	}
+}
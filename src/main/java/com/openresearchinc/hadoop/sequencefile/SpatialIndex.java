@@ -0,0 +1,138 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+//@formatter:off
+/**
+ * Sidecar spatial index of a packed sequence file, so a regional query skips files and records outside its
+ * bounding box (see SpatialInputFormat): <dir>/_spatial/N.seq is a SequenceFile of
+ *   key   = filename (the logical filename for chunked files, see ChunkedFile)
+ *   value = "<minx>,<maxx>,<miny>,<maxy>"
+ * for every GeoTIFF (or tile, see RasterTile) in N.seq, with the corners GeoTiff.getCoordinatesodCorners computes,
+ * and the # of files in N.seq as its "files" metadata. Keys are Text, so any filename (tabs, newlines,...) is
+ * stored as is. It is written by PackingWriter (-spatial) when N.seq is closed.
+ *
+ * A file is a leaf of a two level tree: the union of its boxes decides whether it is read at all, then the box of
+ * each record whether the record is. Files hold a block of records, so a linear scan of a leaf is cheap.
+ * Records without a box (other formats, or packed without -spatial) always intersect.
+ *
+ * The directory starts with "_", so FileInputFormat does not read it as input.
+ *
+ * @author heq
+ */
+// @formatter:on
+public class SpatialIndex {
+	final static Logger logger = LoggerFactory.getLogger(SpatialIndex.class);
+	final static String DIR = "_spatial";
+	final static String FILES = "files"; // metadata key
+
+	final int files; // # of files in the sequence file
+	final Map<String, double[]> boxes = new HashMap<String, double[]>();
+
+	SpatialIndex(int files) {
+		this.files = files;
+	}
+
+	public static Path indexPath(Path seqfile) {
+		return new Path(new Path(seqfile.getParent(), DIR), seqfile.getName());
+	}
+
+	/**
+	 * @param boxes
+	 *            filename -> (minx, maxx, miny, maxy)
+	 * @param files
+	 *            # of files in seqfile, with a box or not
+	 */
+	public static void write(Configuration conf, Path seqfile, Map<String, double[]> boxes, int files)
+			throws IOException {
+		SequenceFile.Metadata metadata = new SequenceFile.Metadata();
+		metadata.set(new Text(FILES), new Text(Integer.toString(files)));
+		SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(indexPath(seqfile)),
+				SequenceFile.Writer.keyClass(Text.class), SequenceFile.Writer.valueClass(Text.class),
+				SequenceFile.Writer.compression(CompressionType.NONE), SequenceFile.Writer.metadata(metadata));
+		try {
+			Text key = new Text(), value = new Text();
+			for (Map.Entry<String, double[]> entry : boxes.entrySet()) {
+				double[] box = entry.getValue();
+				key.set(entry.getKey());
+				value.set(box[0] + "," + box[1] + "," + box[2] + "," + box[3]);
+				writer.append(key, value);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * @return the index of seqfile, or null if it has none
+	 */
+	public static SpatialIndex read(Configuration conf, Path seqfile) throws IOException {
+		Path path = indexPath(seqfile);
+		FileSystem fs = path.getFileSystem(conf);
+		if (!fs.exists(path))
+			return null;
+		SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path));
+		try {
+			Text files = reader.getMetadata().get(new Text(FILES));
+			if (files == null)
+				throw new IOException(path + " is not a spatial index, it has no " + FILES + " metadata");
+			SpatialIndex index = new SpatialIndex(Integer.parseInt(files.toString()));
+			Text key = new Text(), value = new Text();
+			while (reader.next(key, value))
+				index.boxes.put(key.toString(), parseBox(value.toString()));
+			return index;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * @param query
+	 *            (minx, maxx, miny, maxy)
+	 * @return false only if filename has a box and it does not intersect query
+	 */
+	public boolean intersects(String filename, double[] query) {
+		double[] box = boxes.get(filename);
+		return box == null || intersects(box, query);
+	}
+
+	/**
+	 * @return false only if every file has a box and none intersects query
+	 */
+	public boolean anyIntersects(double[] query) {
+		if (boxes.size() < files)
+			return true;
+		for (double[] box : boxes.values())
+			if (intersects(box, query))
+				return true;
+		return false;
+	}
+
+	static boolean intersects(double[] a, double[] b) {
+		return a[0] <= b[1] && b[0] <= a[1] && a[2] <= b[3] && b[2] <= a[3];
+	}
+
+	/**
+	 * @return (minx, maxx, miny, maxy) of a box given as "minx,maxx,miny,maxy"
+	 */
+	public static double[] parseBox(String box) {
+		String[] corners = box.split(",");
+		if (corners.length != 4)
+			throw new IllegalArgumentException("bounding box must be minx,maxx,miny,maxy: " + box);
+		double[] parsed = new double[4];
+		for (int i = 0; i < 4; i++)
+			parsed[i] = Double.parseDouble(corners[i].trim());
+		return parsed;
+	}
+}
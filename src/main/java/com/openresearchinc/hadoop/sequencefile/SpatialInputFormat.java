@@ -0,0 +1,153 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+//@formatter:off
+/**
+ * CombinedSequenceFileInputFormat which only reads GeoTIFFs (and tiles, see RasterTile) intersecting a bounding
+ * box, through the spatial index written at ingest (see SpatialIndex, -spatial), e.g.,
+ *
+ * job.setInputFormatClass(SpatialInputFormat.class);
+ * SpatialInputFormat.setBoundingBox(job, "100.5,101.5,13.0,14.0"); // minx,maxx,miny,maxy
+ *
+ * or -D bin2seq.spatial.bbox=100.5,101.5,13.0,14.0, in the coordinates of the scenes.
+ * - files none of whose records intersect are left out before splits are computed, so they cost no map task,
+ * - records which do not intersect are skipped by the record reader before their value is deserialized; in BLOCK
+ *   compressed files the values of a block are only decompressed if one of them is read.
+ * Files and records without an index entry are always read. Without a bounding box, it reads everything.
+ *
+ * @author heq
+ */
+// @formatter:on
+public class SpatialInputFormat extends CombinedSequenceFileInputFormat {
+	final static Logger logger = LoggerFactory.getLogger(SpatialInputFormat.class);
+	public final static String BBOX = "bin2seq.spatial.bbox";
+
+	/**
+	 * @param bbox
+	 *            minx,maxx,miny,maxy
+	 */
+	public static void setBoundingBox(Job job, String bbox) {
+		SpatialIndex.parseBox(bbox); // fail early
+		job.getConfiguration().set(BBOX, bbox);
+	}
+
+	static double[] getBoundingBox(Configuration conf) {
+		String bbox = conf.get(BBOX);
+		return bbox == null ? null : SpatialIndex.parseBox(bbox);
+	}
+
+	@Override
+	protected List<FileStatus> listStatus(JobContext job) throws IOException {
+		List<FileStatus> files = super.listStatus(job);
+		double[] query = getBoundingBox(job.getConfiguration());
+		if (query == null)
+			return files;
+		List<FileStatus> intersecting = new ArrayList<FileStatus>();
+		for (FileStatus file : files) {
+			SpatialIndex index = SpatialIndex.read(job.getConfiguration(), file.getPath());
+			if (index == null || index.anyIntersects(query))
+				intersecting.add(file);
+		}
+		logger.info("{} of {} files intersect {}", intersecting.size(), files.size(), job.getConfiguration().get(BBOX));
+		return intersecting;
+	}
+
+	@Override
+	public RecordReader<Text, BytesWritable> createRecordReader(InputSplit split, TaskAttemptContext context)
+			throws IOException {
+		return new CombineFileRecordReader<Text, BytesWritable>((CombineFileSplit) split, context, Reader.class);
+	}
+
+	/**
+	 * Reads the records of one file of a CombineFileSplit as SequenceFileRecordReader does, skipping those outside
+	 * the bounding box.
+	 */
+	public static class Reader extends RecordReader<Text, BytesWritable> {
+		final Path path;
+		final long start;
+		final long end;
+		SequenceFile.Reader in;
+		SpatialIndex index; // null if none, or no bounding box
+		double[] query;
+		boolean more = true;
+		Text key = new Text();
+		BytesWritable value = new BytesWritable();
+
+		// as CombineFileRecordReader constructs it
+		public Reader(CombineFileSplit split, TaskAttemptContext context, Integer idx) {
+			this.path = split.getPath(idx);
+			this.start = split.getOffset(idx);
+			this.end = start + split.getLength(idx);
+		}
+
+		@Override
+		public void initialize(InputSplit split, TaskAttemptContext context) throws IOException {
+			Configuration conf = context.getConfiguration();
+			in = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path));
+			if (start > in.getPosition())
+				in.sync(start); // to the next sync marker
+			more = start < end;
+			query = getBoundingBox(conf);
+			if (query != null)
+				index = SpatialIndex.read(conf, path);
+		}
+
+		@Override
+		public boolean nextKeyValue() throws IOException {
+			while (more) {
+				long pos = in.getPosition();
+				if (!in.next(key) || (pos >= end && in.syncSeen())) {
+					more = false;
+					break;
+				}
+				if (index == null || index.intersects(ChunkedFile.parse(key.toString()).getFilename(), query)) {
+					in.getCurrentValue(value);
+					return true;
+				} // otherwise the value is skipped by the next in.next(key)
+			}
+			return false;
+		}
+
+		@Override
+		public Text getCurrentKey() {
+			return key;
+		}
+
+		@Override
+		public BytesWritable getCurrentValue() {
+			return value;
+		}
+
+		@Override
+		public float getProgress() throws IOException {
+			if (end == start)
+				return 0.0f;
+			return Math.min(1.0f, (in.getPosition() - start) / (float) (end - start));
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (in != null)
+				in.close();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * An output buffer that stays in memory up to a threshold and spills to a local temp file beyond it, so files of
+ * unknown (e.g. decompressed) size can be measured and replayed without holding them in the heap.
+ *
+ * @author heq
+ */
+public class SpillBuffer extends OutputStream {
+	public final static String THRESHOLD_KEY = "bin2seq.spill.threshold";
+	public final static int DEFAULT_THRESHOLD = 4 * 1024 * 1024; // 4MB in heap at most per buffer
+
+	final DeferredFileOutputStream out;
+	boolean closed = false;
+
+	public SpillBuffer(int threshold) {
+		this.out = new DeferredFileOutputStream(threshold, "bin2seq-", ".spill", null);
+	}
+
+	public static int threshold(Configuration conf) {
+		return conf.getInt(THRESHOLD_KEY, DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * Drain the input stream (without closing it) into a new buffer.
+	 */
+	public static SpillBuffer copyOf(InputStream in, int threshold) throws IOException {
+		SpillBuffer buffer = new SpillBuffer(threshold);
+		try {
+			IOUtils.copyLarge(in, buffer);
+		} catch (IOException e) {
+			buffer.release();
+			throw e;
+		}
+		buffer.close();
+		return buffer;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			out.close();
+		}
+	}
+
+	public long length() {
+		return out.getByteCount();
+	}
+
+	public boolean isInMemory() {
+		return out.isInMemory();
+	}
+
+	/**
+	 * Replay buffered content; the buffer is closed for writing first.
+	 */
+	public InputStream getInputStream() throws IOException {
+		close();
+		if (out.isInMemory())
+			return new ByteArrayInputStream(out.getData());
+		return new BufferedInputStream(new FileInputStream(out.getFile()));
+	}
+
+	/**
+	 * Delete the spill file, if any. Streams returned by getInputStream() must be closed before.
+	 */
+	public void release() {
+		try {
+			close();
+		} catch (IOException e) {
+			// nothing to flush any more
+		}
+		if (!out.isInMemory() && out.getFile() != null)
+			out.getFile().delete();
+	}
+}
@@ -0,0 +1,196 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+
+//@formatter:off
+/**
+ * A SequenceFile.Writer of (Text, BytesWritable) records whose values are copied from an InputStream straight
+ * into the file, instead of being materialized as byte[] first:
+ * 1. known length (file size, S3 content length, tar entry size): streamed as-is,
+ * 2. unknown length (e.g. decompressed bz2): measured through a SpillBuffer (heap up to a threshold, then local disk),
+ * 3. RECORD compression: the value is compressed into a SpillBuffer first, since its compressed size precedes it.
+ *
+ * Records are binary compatible with SequenceFile.Writer.append(Text, BytesWritable). Note a BLOCK compressed
+ * writer buffers a whole block in heap by design, so very large files should go to NONE/RECORD compressed files.
+ *
+ * @author heq
+ */
+// @formatter:on
+public class StreamingWriter implements Closeable {
+	final SequenceFile.Writer writer;
+	final CompressionType compressionType;
+	final CompressionCodec codec;
+	final int threshold;
+	final DataOutputBuffer keyBuffer = new DataOutputBuffer();
+	final Text key = new Text();
+
+	public StreamingWriter(Configuration conf, Path path, CompressionType compressionType, CompressionCodec codec)
+			throws IOException {
+		this.compressionType = (codec == null && compressionType != CompressionType.RECORD) ? CompressionType.NONE
+				: compressionType;
+		this.writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(path),
+				SequenceFile.Writer.compression(this.compressionType, codec), SequenceFile.Writer.keyClass(Text.class),
+				SequenceFile.Writer.valueClass(BytesWritable.class));
+		this.codec = writer.getCompressionCodec(); // DefaultCodec if compressed without a codec
+		this.threshold = SpillBuffer.threshold(conf);
+	}
+
+	public void append(String filename, byte[] bytes) throws IOException {
+		writer.append(new Text(filename), new BytesWritable(bytes));
+	}
+
+	/**
+	 * Append the content of the stream as the value of one record. The stream is not closed.
+	 *
+	 * @param filename
+	 *            record key
+	 * @param in
+	 *            record value
+	 * @param length
+	 *            # of bytes to copy from in, or -1 if unknown (read to the end of the stream)
+	 * @throws IOException
+	 */
+	public void append(String filename, InputStream in, long length) throws IOException {
+		SpillBuffer spill = null;
+		try {
+			if (length < 0) {
+				spill = SpillBuffer.copyOf(in, threshold);
+				in = spill.getInputStream();
+				length = spill.length();
+			}
+			if (length > Integer.MAX_VALUE - 4) // BytesWritable: int length + bytes
+				throw new IOException(filename + " is too large (" + length + " bytes) for one record");
+			appendRaw(filename, in, (int) length);
+		} finally {
+			if (spill != null) {
+				IOUtils.closeQuietly(in);
+				spill.release();
+			}
+		}
+	}
+
+	void appendRaw(String filename, InputStream in, int length) throws IOException {
+		key.set(filename);
+		keyBuffer.reset();
+		key.write(keyBuffer);
+
+		if (compressionType != CompressionType.RECORD) {
+			// NONE: straight to the file, BLOCK: to the writer's block buffer
+			writer.appendRaw(keyBuffer.getData(), 0, keyBuffer.getLength(), new StreamValueBytes(in, length));
+			return;
+		}
+
+		SpillBuffer compressed = new SpillBuffer(threshold);
+		InputStream compressedIn = null;
+		Compressor compressor = CodecPool.getCompressor(codec);
+		try {
+			CompressionOutputStream deflateFilter = codec.createOutputStream(compressed, compressor);
+			DataOutputStream deflateOut = new DataOutputStream(deflateFilter);
+			new StreamValueBytes(in, length).writeUncompressedBytes(deflateOut);
+			deflateOut.flush();
+			deflateFilter.finish();
+			deflateOut.close();
+			if (compressed.length() > Integer.MAX_VALUE)
+				throw new IOException(filename + " is too large after compression for one record");
+			compressedIn = compressed.getInputStream();
+			writer.appendRaw(keyBuffer.getData(), 0, keyBuffer.getLength(), new CompressedValueBytes(compressedIn,
+					(int) compressed.length()));
+		} finally {
+			CodecPool.returnCompressor(compressor);
+			IOUtils.closeQuietly(compressedIn);
+			compressed.release();
+		}
+	}
+
+	public long getLength() throws IOException {
+		return writer.getLength();
+	}
+
+	public CompressionType getCompressionType() {
+		return compressionType;
+	}
+
+	public SequenceFile.Writer getWriter() {
+		return writer;
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+
+	static void copyExactly(InputStream in, DataOutputStream out, int length) throws IOException {
+		long copied = IOUtils.copyLarge(in, out, 0, length);
+		if (copied != length)
+			throw new IOException("premature end of stream: expected " + length + " bytes, got " + copied);
+	}
+
+	// serialized BytesWritable (int length + bytes) of a stream of known length
+	static class StreamValueBytes implements SequenceFile.ValueBytes {
+		final InputStream in;
+		final int length;
+
+		StreamValueBytes(InputStream in, int length) {
+			this.in = in;
+			this.length = length;
+		}
+
+		@Override
+		public void writeUncompressedBytes(DataOutputStream outStream) throws IOException {
+			outStream.writeInt(length);
+			copyExactly(in, outStream, length);
+		}
+
+		@Override
+		public void writeCompressedBytes(DataOutputStream outStream) throws IOException {
+			throw new IllegalArgumentException("value is not compressed");
+		}
+
+		@Override
+		public int getSize() {
+			return 4 + length;
+		}
+	}
+
+	// a value already compressed by the writer's codec
+	static class CompressedValueBytes implements SequenceFile.ValueBytes {
+		final InputStream in;
+		final int size;
+
+		CompressedValueBytes(InputStream in, int size) {
+			this.in = in;
+			this.size = size;
+		}
+
+		@Override
+		public void writeUncompressedBytes(DataOutputStream outStream) throws IOException {
+			throw new IllegalArgumentException("value is compressed");
+		}
+
+		@Override
+		public void writeCompressedBytes(DataOutputStream outStream) throws IOException {
+			copyExactly(in, outStream, size);
+		}
+
+		@Override
+		public int getSize() {
+			return size;
+		}
+	}
+}
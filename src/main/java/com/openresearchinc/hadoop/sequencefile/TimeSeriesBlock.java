@@ -0,0 +1,160 @@
+package com.openresearchinc.hadoop.sequencefile;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.io.Writable;
+
+//@formatter:off
+/**
+ * Time series of a block of grid cells, as NetCDF -series writes them:
+ *   key   = <variable>@r<block row>/c<block col>, e.g., pr@r0012/c0034
+ *   value = TimeSeriesBlock: index of the first cell in the grid (lat, lon), rows and cols of the block, the times
+ *           of the steps in order, and the samples cell by cell, so the series of a cell is contiguous:
+ *           samples[(row * cols + col) * steps + step]
+ * A map output holds one time step of a block; the reducer assembles the steps of a block (assemble()).
+ * Samples are unpacked (scale_factor, add_offset) floats; fill and missing values are NaN.
+ *
+ * @author heq
+ */
+// @formatter:on
+public class TimeSeriesBlock implements Writable {
+	int firstRow;
+	int firstCol;
+	int rows;
+	int cols;
+	double[] times = new double[0];
+	float[] samples = new float[0];
+
+	public TimeSeriesBlock() {
+	}
+
+	/**
+	 * One time step of a block.
+	 */
+	public TimeSeriesBlock(int firstRow, int firstCol, int rows, int cols, double time, float[] samples) {
+		this.firstRow = firstRow;
+		this.firstCol = firstCol;
+		this.rows = rows;
+		this.cols = cols;
+		this.times = new double[] { time };
+		this.samples = samples;
+	}
+
+	public static String blockKey(String variable, int row, int col) {
+		return String.format("%s@r%04d/c%04d", variable, row, col);
+	}
+
+	/**
+	 * @param steps
+	 *            one time step each, in time order, all of the same block; not referenced afterwards
+	 * @return the series of the block, cell by cell
+	 * @throws IOException
+	 *             if a step is not of the block, or not after the step before it, e.g. a time step in two input files
+	 */
+	public static TimeSeriesBlock assemble(List<TimeSeriesBlock> steps) throws IOException {
+		TimeSeriesBlock first = steps.get(0);
+		TimeSeriesBlock series = new TimeSeriesBlock();
+		series.firstRow = first.firstRow;
+		series.firstCol = first.firstCol;
+		series.rows = first.rows;
+		series.cols = first.cols;
+		int cells = first.rows * first.cols, n = steps.size();
+		series.times = new double[n];
+		series.samples = new float[cells * n];
+		for (int step = 0; step < n; step++) {
+			TimeSeriesBlock block = steps.get(step);
+			if (block.firstRow != first.firstRow || block.firstCol != first.firstCol || block.samples.length != cells
+					|| block.times.length != 1)
+				throw new IOException("time step " + Arrays.toString(block.times) + " is not a step of the block at "
+						+ first.firstRow + "," + first.firstCol);
+			if (step > 0 && !(block.times[0] > series.times[step - 1]))
+				throw new IOException("time step " + block.times[0] + " of the block at " + first.firstRow + ","
+						+ first.firstCol + " follows " + series.times[step - 1] + ", steps must be unique and in order");
+			series.times[step] = block.times[0];
+			for (int cell = 0; cell < cells; cell++)
+				series.samples[cell * n + step] = block.samples[cell];
+		}
+		return series;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(firstRow);
+		out.writeInt(firstCol);
+		out.writeInt(rows);
+		out.writeInt(cols);
+		out.writeInt(times.length);
+		ByteBuffer buffer = ByteBuffer.allocate(times.length * 8 + samples.length * 4);
+		buffer.asDoubleBuffer().put(times);
+		buffer.position(times.length * 8);
+		buffer.asFloatBuffer().put(samples);
+		out.write(buffer.array()); // in bulk, not value by value
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		firstRow = in.readInt();
+		firstCol = in.readInt();
+		rows = in.readInt();
+		cols = in.readInt();
+		int steps = in.readInt();
+		byte[] bytes = new byte[steps * 8 + rows * cols * steps * 4];
+		in.readFully(bytes);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		times = new double[steps];
+		buffer.asDoubleBuffer().get(times);
+		buffer.position(steps * 8);
+		samples = new float[rows * cols * steps];
+		buffer.asFloatBuffer().get(samples);
+	}
+
+	/**
+	 * @return lat index of the first row in the grid
+	 */
+	public int getFirstRow() {
+		return firstRow;
+	}
+
+	/**
+	 * @return lon index of the first col in the grid
+	 */
+	public int getFirstCol() {
+		return firstCol;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getCols() {
+		return cols;
+	}
+
+	public double[] getTimes() {
+		return times;
+	}
+
+	/**
+	 * @param reuse
+	 *            returned if large enough, otherwise a new array is
+	 * @return series of a cell of the block, in [0, # of steps)
+	 */
+	public float[] getSeries(int row, int col, float[] reuse) {
+		int steps = times.length;
+		float[] series = reuse != null && reuse.length >= steps ? reuse : new float[steps];
+		System.arraycopy(samples, (row * cols + col) * steps, series, 0, steps);
+		return series;
+	}
+
+	/**
+	 * @return samples cell by cell, the series of each contiguous
+	 */
+	public float[] getSamples() {
+		return samples;
+	}
+}
@@ -11,11 +11,13 @@ package com.openresearchinc.hadoop.sequencefile;
 
 import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URL;
+import java.net.URLConnection;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -43,7 +45,9 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.SequenceFile.CompressionType;
@@ -56,7 +60,6 @@ import org.apache.hadoop.io.compress.GzipCodec;
 import org.apache.hadoop.io.compress.SnappyCodec;
 import org.apache.hadoop.util.GenericOptionsParser;
 import org.apache.hadoop.util.ReflectionUtils;
-import org.apache.tools.bzip2.CBZip2InputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.InputSource;
@@ -75,7 +78,7 @@ import com.amazonaws.services.s3.model.S3ObjectSummary;
 /**
  * $export LIBJARS=/path/jar1,/path/jar2 
  * $export HADOOP_CLASSPATH=`echo ${LIBJARS} | sed s/,/:/g` 
- * $hadoop jar <path>/bin2seq.jar com.openresearchinc.hadoop.sequencefile.Util -libjars $LIBJARS [-pack] -in  <inuri> -out <outuri> -codec <default|gzip|bz2|snappy>"
+ * $hadoop jar <path>/bin2seq.jar com.openresearchinc.hadoop.sequencefile.Util -libjars $LIBJARS [-pack] -in  <inuri> -out <outuri> -codec <default|gzip|bz2|snappy> [-threads <n>] [-chunk <MB>] [-dedup] [-tiles] [-spatial]"
  * 
  * @author heq
  */
@@ -87,11 +90,17 @@ public class Util {
 	final static Configuration conf = new Configuration();
 	final static AmazonS3 s3Client = new AmazonS3Client(new BasicAWSCredentials(System.getenv("AWS_ACCESS_KEY"),
 			System.getenv("AWS_SECRET_KEY")), new ClientConfiguration());
+	static volatile int hdfsBlockSize = 0; // cached by getHDFSBlockSize()
+	static int chunkSize = 0; // if > 0, files larger than chunkSize are stored as chunk records (see ChunkedFile)
+	static boolean dedup = false; // if true, duplicate files are stored as aliases (see DedupIndex)
+	static boolean tiles = false; // if true, GeoTIFFs are stored as tile records (see RasterTile)
+	static boolean spatial = false; // if true, a spatial index of GeoTIFFs is written (see SpatialIndex)
 
 	public static void main(String[] args) throws Exception {
-		String usage = "Usage: hadoop jar ./target/bin2seq*.jar com.openresearchinc.hadoop.sequencefile.Util -list -in <input-uri> -ext <ext> -out <output-uri> -codec <none|default|gzip|bz2|snappy>";
+		String usage = "Usage: hadoop jar ./target/bin2seq*.jar com.openresearchinc.hadoop.sequencefile.Util -list -in <input-uri> -ext <ext> -out <output-uri> -codec <none|default|gzip|bz2|snappy> [-threads <n>] [-chunk <MB>] [-dedup] [-tiles] [-spatial]";
 		String inputURI = null, outputURI = null, codec = null;
 		CompressionCodec compression = null;
+		int threads = 0; // 0: single-threaded copy
 		String[] otherArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
 
 		List<String> argList = Arrays.asList(otherArgs);
@@ -104,37 +113,37 @@ public class Util {
 
 		if ((pos = argList.indexOf("-codec")) != -1) {
 			codec = otherArgs[pos + 1];
-			switch (codec.toLowerCase()) {
-			case "none":
-				compression = null;
-				break;
-			case "gzip":
-				compression = new GzipCodec();
-				break;
-			case "bz2":
-				compression = new BZip2Codec();
-				break;
-			case "snappy":
-				compression = new SnappyCodec();
-				break;
-			case "default":
-				compression = new DefaultCodec();
-				break;
-			default:
+			try {
+				compression = getCodec(codec);
+			} catch (IllegalArgumentException e) {
 				System.err.println(usage);
 				System.exit(2);
 			}
 		}
 
+		if ((pos = argList.indexOf("-threads")) != -1)
+			threads = Integer.parseInt(otherArgs[pos + 1]);
+
+		if ((pos = argList.indexOf("-chunk")) != -1)
+			chunkSize = Integer.parseInt(otherArgs[pos + 1]) * 1024 * 1024;
+
+		dedup = argList.indexOf("-dedup") != -1;
+		tiles = argList.indexOf("-tiles") != -1;
+		spatial = argList.indexOf("-spatial") != -1;
+
 		if (inputURI != null && argList.indexOf("-list") != -1) {
 			listSequenceFileKeys(inputURI);
 			System.exit(0);
 		}
-		if (inputURI.startsWith("s3://") && (outputURI.startsWith("hdfs://") || outputURI.startsWith("s3://"))
+		// ingest from s3:// or any other Hadoop file system (see listObjects), into any output resolveOutputDir takes
+		if (inputURI != null && inputURI.contains("://") && outputURI != null
 				&& (pos = argList.indexOf("-ext")) != -1) {
 			String ext = otherArgs[pos + 1];
 			logger.info("input ={},outputURI={}, ext={}", inputURI, outputURI, ext);
-			copyEncodeFilesFromS3ToHDFSS3(inputURI, outputURI, ext, compression);
+			if (threads > 0)
+				new ParallelIngest(threads).run(inputURI, outputURI, ext, compression);
+			else
+				copyEncodeFilesFromS3ToHDFSS3(inputURI, outputURI, ext, compression);
 			System.exit(0);
 		}
 
@@ -159,6 +168,28 @@ public class Util {
 		}
 	}
 
+	/**
+	 * @param codec
+	 *            none|default|gzip|bz2|snappy
+	 * @return the codec, or null for none
+	 */
+	static CompressionCodec getCodec(String codec) {
+		switch (codec.toLowerCase()) {
+		case "none":
+			return null;
+		case "gzip":
+			return new GzipCodec();
+		case "bz2":
+			return new BZip2Codec();
+		case "snappy":
+			return new SnappyCodec();
+		case "default":
+			return new DefaultCodec();
+		default:
+			throw new IllegalArgumentException("unsupported codec: " + codec);
+		}
+	}
+
 	/**
 	 * Return Hadoop Cluster Master URI in the format of hdfs://namenode-ip:port
 	 * 
@@ -169,21 +200,26 @@ public class Util {
 	}
 
 	/**
-	 * Return HDFS block size (to maximize data locality)
+	 * Return HDFS block size (to maximize data locality), parsed from hdfs-site.xml once per JVM
 	 * 
 	 * @return
 	 */
 	public static int getHDFSBlockSize() {
-		int size = 64 * 1024 * 1024; // default Apache Hadoop HDFS block size
-		String mb = parseHadoopConf("hdfs-site.xml", "dfs.block.size");
-		if (mb.toUpperCase().contains("MB")) {
-			size = Integer.parseInt(mb.replaceAll("[^\\d.]", ""));
-		} else if (mb.matches("\\d+")) {
-			size = Integer.parseInt(mb);
-		} else {
-			logger.warn("dfs.block.size in hdfs-site.xml is not specified or not in 'MB', use default 64MB HDFS block size");
+		if (hdfsBlockSize == 0) {
+			int size = 64 * 1024 * 1024; // default Apache Hadoop HDFS block size
+			String mb = parseHadoopConf("hdfs-site.xml", "dfs.block.size");
+			if (mb.isEmpty())
+				mb = parseHadoopConf("hdfs-site.xml", "dfs.blocksize"); // Hadoop 2 name
+			if (mb.toUpperCase().matches("\\d+\\s*M[B]?")) {
+				size = Integer.parseInt(mb.replaceAll("[^\\d.]", "")) * 1024 * 1024;
+			} else if (mb.matches("\\d+")) {
+				size = Integer.parseInt(mb);
+			} else {
+				logger.warn("dfs.block.size in hdfs-site.xml is not specified or not in 'MB', use default 64MB HDFS block size");
+			}
+			hdfsBlockSize = size;
 		}
-		return size;
+		return hdfsBlockSize;
 	}
 
 	/**
@@ -213,10 +249,11 @@ public class Util {
 	}
 
 	/**
-	 * Copy file on AWS s3 recursively to Hadoop HDFS, keep the file structure the same as S3.
+	 * Copy file on AWS s3 (or any Hadoop file system, see listObjects) recursively to Hadoop HDFS, keep the file
+	 * structure the same as S3.
 	 * 
 	 * @param s3URI
-	 *            , e.g., s3://object/key or s3n://object/key
+	 *            , e.g., s3://object/key, s3n://object/key or file:///path
 	 * @param hdfsDir
 	 *            , e.g. hdfs://master:port/path/file
 	 * @param ext
@@ -227,87 +264,112 @@ public class Util {
 	 */
 	public static void copyEncodeFilesFromS3ToHDFSS3(String s3URI, String outputDir, String ext, CompressionCodec codec)
 			throws IOException {
+		Path outpath = resolveOutputDir(outputDir);
+		logger.debug("HDFS Output dir={}", outputDir);
+
+		List<S3ObjectSummary> summaries = listObjects(s3URI);
+		logger.debug("file #={}", summaries.size());
+
+		IngestJournal journal = new IngestJournal(conf, outpath); // resume after the last journaled N.seq, if any
+		PackingWriter writer = createPackingWriter(outpath, codec, journal); // packed into 1.seq, 2.seq,...
+		ext = "." + (ext.startsWith(".") ? ext.substring(1) : ext);
+		for (S3ObjectSummary summary : summaries) {
+			if (journal.isDone(summary))
+				continue;
+			InputStream objectContent = openObject(summary);
+			try {
+				writer.appendObject(summary.getKey(), objectContent, summary.getSize(), ext);
+			} finally {
+				objectContent.close();
+			}
+			journal.completed(summary.getKey(), summary.getETag());
+		}
+		writer.close();
+	}
+
+
+	/**
+	 * Resolve the output directory of packed sequence files (hdfs:// or s3://) and point fs.defaultFS to the cluster
+	 * master.
+	 * 
+	 * @param outputDir
+	 *            e.g., hdfs:///path, s3://bucket/path or file:///path
+	 * @return
+	 * @throws IOException
+	 */
+	static Path resolveOutputDir(String outputDir) throws IOException {
 		String masterURL = getHadoopMasterURI();
 		conf.set("fs.defaultFS", masterURL);
 
-		Path outpath = null;
 		if (outputDir.startsWith("hdfs://"))
-			outpath = new Path(masterURL + outputDir.replaceAll("^hdfs:/{2,}", "/"));
-		else if (outputDir.startsWith("s3://") || outputDir.startsWith("s3n://")) {
-			outpath = new Path(outputDir);
-		} else {
+			return new Path(masterURL + outputDir.replaceAll("^hdfs:/{2,}", "/"));
+		else if (outputDir.startsWith("s3://") || outputDir.startsWith("s3n://") || outputDir.startsWith("file://"))
+			return new Path(outputDir);
+		else
 			throw new IOException("unsupported output format");
-		}
-		logger.debug("HDFS Output dir={}", outputDir);
+	}
 
+	/**
+	 * List all objects recursively under s3://bucket/prefix, following truncated listings.
+	 * 
+	 * @param s3URI
+	 *            , e.g., s3://bucket/prefix or s3n://bucket/prefix
+	 * @return
+	 */
+	static List<S3ObjectSummary> listS3Objects(String s3URI) {
 		String trimmedS3URI = s3URI.replaceAll("^s3[n]?:/{2,}", ""); //trim protocol part
 		String bucket = StringUtils.substringBefore(trimmedS3URI, "/"); //the first as bucket
 		String prefix = StringUtils.substringAfter(trimmedS3URI, "/"); //the rest are prefix
 
 		ObjectListing listing = s3Client.listObjects(bucket, prefix);
-		// list all objects recursively under bucket/prefix
-		List<S3ObjectSummary> summaries = listing.getObjectSummaries();
+		List<S3ObjectSummary> summaries = new ArrayList<S3ObjectSummary>(listing.getObjectSummaries());
 		while (listing.isTruncated()) {// only if there are 1000+ objects
 			listing = s3Client.listNextBatchOfObjects(listing);
 			summaries.addAll(listing.getObjectSummaries());
 		}
-		logger.debug("file #={}", summaries.size());
-
-		int seq = 1; //starting number of packed sequence File 1.seq, 2.seq,...
-		SequenceFile.Writer writer = createSequenceFileWriter(outpath + "/" + seq + ".seq", codec);
-		for (S3ObjectSummary summary : summaries) {
-			String filename = summary.getKey();
-			S3Object s3object = s3Client.getObject(summary.getBucketName(), summary.getKey());
-			InputStream objectContent = s3object.getObjectContent();
-
-			ext = "." + (ext.startsWith(".") ? ext.substring(1) : ext);
+		return summaries;
+	}
 
-			if (filename.endsWith(".tar.gz")) {
-				GZIPInputStream gzipInputStream = new GZIPInputStream(objectContent);
-				TarArchiveInputStream tarArchiveInputStream = new TarArchiveInputStream(gzipInputStream);
-				TarArchiveEntry tarArchiveEntry;
-				while ((tarArchiveEntry = tarArchiveInputStream.getNextTarEntry()) != null) {
-					if (!tarArchiveEntry.isDirectory()// not a dir and match ext
-							&& tarArchiveEntry.getName().toLowerCase().contains(ext.toLowerCase())) {
-						byte[] bytes = IOUtils.toByteArray(tarArchiveInputStream, tarArchiveEntry.getSize());
-						logger.debug("tar filename={}", tarArchiveEntry.getName());
-						String filenameInTar = StringUtils.substringBeforeLast(filename, "/")
-								+ tarArchiveEntry.getName().replaceAll("^\\.", "");
-						logger.debug("hdfs path={}", outpath + "/" + filenameInTar + ".seq");
-						if (packingManyFilesToOneSequenceFile(writer, filenameInTar, bytes) == 0) {
-							writer.close();
-							writer = createSequenceFileWriter(outpath + "/" + seq++ + ".seq", codec);
-						}
-					}
-				}
-				tarArchiveInputStream.close();
-			} else {
-				if (filename.toLowerCase().contains(ext.toLowerCase())) {
-					byte[] bytes;
-					if (filename.endsWith(".bz2")) {
-						objectContent.read();// read two bytes as a workround to
-						objectContent.read();// to deal with bzip2 size issue
-						bytes = IOUtils.toByteArray(new CBZip2InputStream(objectContent));
-					} else if (filename.endsWith(".gz")) {
-						bytes = IOUtils.toByteArray(new java.util.zip.GZIPInputStream(objectContent));
-					} else if (filename.endsWith(".zip")) {
-						bytes = IOUtils.toByteArray(new java.util.zip.ZipInputStream(objectContent));
-					} else {// TODO other compression we care?
-						if (filename.toLowerCase().endsWith(ext.toLowerCase()))
-							bytes = IOUtils.toByteArray(objectContent);
-						else
-							continue; //skip if it is other meta data like *.<ext>.md5
-					}
-					logger.debug("hdfs path={}", outpath + "/" + filename + ".seq");
-					if (packingManyFilesToOneSequenceFile(writer, filename, bytes) == 0) {
-						writer.close();
-						writer = createSequenceFileWriter(outpath + "/" + seq++ + ".seq", codec);
-					}
-				}
-			}
-			objectContent.close();
+	/**
+	 * List the objects to ingest: all objects under s3://bucket/prefix, or all files under a directory of any other
+	 * Hadoop file system, e.g., file:///path or hdfs:///path. A file is described as an S3ObjectSummary whose bucket
+	 * is the URI of its file system (see openObject), key its path and ETag its length and modification time, so the
+	 * journal (see IngestJournal) ingests it again if it is replaced.
+	 * 
+	 * @param uri
+	 *            , e.g., s3://bucket/prefix or file:///path
+	 * @return
+	 * @throws IOException
+	 */
+	static List<S3ObjectSummary> listObjects(String uri) throws IOException {
+		if (uri.startsWith("s3://") || uri.startsWith("s3n://"))
+			return listS3Objects(uri);
+		Path dir = new Path(uri);
+		FileSystem fs = dir.getFileSystem(conf);
+		List<S3ObjectSummary> summaries = new ArrayList<S3ObjectSummary>();
+		RemoteIterator<LocatedFileStatus> files = fs.listFiles(dir, true);
+		while (files.hasNext()) {
+			LocatedFileStatus status = files.next();
+			S3ObjectSummary summary = new S3ObjectSummary();
+			summary.setBucketName(fs.getUri().toString());
+			summary.setKey(status.getPath().toUri().getPath());
+			summary.setSize(status.getLen());
+			summary.setETag(status.getLen() + "-" + status.getModificationTime());
+			summaries.add(summary);
 		}
-		writer.close();
+		return summaries;
+	}
+
+	/**
+	 * @param summary
+	 *            an object of listObjects
+	 * @return content of the object, from S3 or its file system
+	 * @throws IOException
+	 */
+	static InputStream openObject(S3ObjectSummary summary) throws IOException {
+		if (summary.getBucketName().contains("://"))
+			return FileSystem.get(URI.create(summary.getBucketName()), conf).open(new Path(summary.getKey()));
+		return s3Client.getObject(summary.getBucketName(), summary.getKey()).getObjectContent();
 	}
 
 	/**
@@ -346,8 +408,7 @@ public class Util {
 			summaries.addAll(listing.getObjectSummaries());
 		}
 
-		int seq = 1;
-		SequenceFile.Writer writer = createSequenceFileWriter(outpath + "/" + seq + ".seq", codec);
+		PackingWriter writer = createPackingWriter(outpath, codec);
 		for (S3ObjectSummary summary : summaries) {
 			String filename = summary.getKey();
 			logger.info("filename=" + filename);
@@ -363,32 +424,16 @@ public class Util {
 				while ((tarArchiveEntry = tarArchiveInputStream.getNextTarEntry()) != null) {
 					if (!tarArchiveEntry.isDirectory()// not a dir and match ext
 							&& tarArchiveEntry.getName().toLowerCase().contains(ext.toLowerCase())) {
-						byte[] bytes = IOUtils.toByteArray(tarArchiveInputStream, tarArchiveEntry.getSize());
-						if (packingManyFilesToOneSequenceFile(writer, filename, bytes) == 0) {
-							writer.close();
-							writer = createSequenceFileWriter(outpath + "/" + seq++ + ".seq", codec);
-						}
+						writer.append(filename, tarArchiveInputStream, tarArchiveEntry.getSize());
 					}
 				}
 				tarArchiveInputStream.close();
 			} else {
 				if (filename.toLowerCase().contains(ext.toLowerCase())) {
-					byte[] bytes;
-					if (filename.endsWith(".bz2")) {
-						objectContent.read();// read two bytes as a workround to
-						objectContent.read();// to deal with bzip2 size issue
-						bytes = IOUtils.toByteArray(new CBZip2InputStream(objectContent));
-					} else if (filename.endsWith(".gz")) {
-						bytes = IOUtils.toByteArray(new java.util.zip.GZIPInputStream(objectContent));
-					} else if (filename.endsWith(".zip")) {
-						bytes = IOUtils.toByteArray(new java.util.zip.ZipInputStream(objectContent));
-					} else {// TODO other compression we care?
-						bytes = IOUtils.toByteArray(objectContent);
-					}
-					if (packingManyFilesToOneSequenceFile(writer, filename, bytes) == 0) {
-						writer.close();
-						writer = createSequenceFileWriter(outpath + "/" + seq++ + ".seq", codec);
-					}
+					// TODO other compression we care?
+					boolean compressed = CompressUtil.isCompressed(filename);
+					InputStream in = CompressUtil.decompress(filename, objectContent);
+					writer.append(filename, in, compressed ? -1 : summary.getSize());
 				}
 			}
 			objectContent.close();
@@ -410,6 +455,35 @@ public class Util {
 		return writer;
 	}
 
+	static PackingWriter createPackingWriter(Path outpath, CompressionCodec codec) {
+		PackingWriter writer = new PackingWriter(conf, outpath, "", 1, codec);
+		writer.setChunkSize(chunkSize);
+		writer.setTiling(tiles);
+		writer.setSpatialIndex(spatial);
+		return writer;
+	}
+
+	static PackingWriter createPackingWriter(Path outpath, CompressionCodec codec, IngestJournal journal)
+			throws IOException {
+		PackingWriter writer = new PackingWriter(conf, outpath, "", journal.nextSeq(), codec);
+		writer.setChunkSize(chunkSize);
+		writer.setTiling(tiles);
+		writer.setSpatialIndex(spatial);
+		writer.addListener(journal);
+		if (dedup)
+			writer.setDedup(new DedupIndex(conf, outpath, journal.nextSeq() - 1));
+		return writer;
+	}
+
+	// append a file as one record, or as chunk records if it is larger than -chunk
+	static void appendFile(StreamingWriter writer, String filename, InputStream in, long length) throws IOException {
+		ChunkedFile.checkFilename(filename);
+		if (chunkSize > 0)
+			ChunkedFile.append(writer, filename, in, length, chunkSize);
+		else
+			writer.append(filename, in, length);
+	}
+
 	//Deprecated
 	static int packingManyFilesToOneSequenceFile(Writer sqwriter, String filename, byte[] fileinbytes)
 			throws IOException {
@@ -474,25 +548,22 @@ public class Util {
 			throws IOException, NoSuchAlgorithmException {
 		Path outpath = null;
 		String inputFile = null;
-		byte[] bytes = null;
-		Text key = null;
-		BytesWritable value = null;
+		String key = null;
+		InputStream in = null; // streamed into the record value, never materialized as byte[]
+		long length = -1; // -1: unknown, e.g., decompressed bz2
 
 		if (inputURI.startsWith("file://")) {
 			inputFile = inputURI.substring(7, inputURI.length());
 			File dataFile = new File(inputFile);
 			if (!dataFile.exists())
 				return;
-			bytes = FileUtils.readFileToByteArray(dataFile);
-
-			byte[] uncompressed = null;
+			in = new BufferedInputStream(new FileInputStream(dataFile));
 			if (inputURI.endsWith("bz2")) {
-				uncompressed = CompressUtil.unBZip2(bytes);
+				in = CompressUtil.unBZip2(in);
 			} else {
-				uncompressed = bytes;
+				length = dataFile.length();
 			}
-			key = new Text(dataFile.getAbsolutePath());
-			value = new BytesWritable(uncompressed);
+			key = dataFile.getAbsolutePath();
 		} else if (inputURI.startsWith("s3://") || inputURI.startsWith("s3n://")) {
 
 			String trimmedS3URI = inputURI.replaceAll("^s3[n]?:/{2,}", ""); //trim protocol part
@@ -510,27 +581,21 @@ public class Util {
 
 			GetObjectRequest request = new GetObjectRequest(bucket, prefix);
 			S3Object s3object = s3Client.getObject(request);
-			InputStream objectContent = s3object.getObjectContent();
-			bytes = org.apache.commons.io.IOUtils.toByteArray(objectContent);
-			objectContent.close();
-
-			byte[] uncompressed = null;
+			in = s3object.getObjectContent();
 			if (inputURI.endsWith("bz2")) {
-				uncompressed = CompressUtil.unBZip2(bytes);
+				in = CompressUtil.unBZip2(in);
 			} else {
-				uncompressed = bytes;
+				length = s3object.getObjectMetadata().getContentLength();
 			}
-			key = new Text(inputURI);
-			value = new BytesWritable(uncompressed);
+			key = inputURI;
 		} else if (inputURI.startsWith("http://")) {
 			String[] args = inputURI.split("/");
 			String host = args[2];
 			String uri = inputURI.replaceAll("http://[a-zA-Z0-9-.]+", "");
-			InputStream in = new BufferedInputStream(new URL("http", host, uri).openStream());
-			key = new Text(inputURI);
-			bytes = org.apache.commons.io.IOUtils.toByteArray(in);
-			value = new BytesWritable(bytes);
-
+			URLConnection connection = new URL("http", host, uri).openConnection();
+			in = new BufferedInputStream(connection.getInputStream());
+			length = connection.getContentLengthLong(); // -1 if not declared
+			key = inputURI;
 		} else {
 			logger.error("File system option have not been implemented yet");
 			System.exit(2); // TODO
@@ -553,11 +618,13 @@ public class Util {
 			System.exit(2); // TODO
 		}
 
-		SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(outpath),
-				SequenceFile.Writer.compression(CompressionType.RECORD, codec),
-				SequenceFile.Writer.keyClass(Text.class), SequenceFile.Writer.valueClass(BytesWritable.class));
-		writer.append(key, value);
-		org.apache.hadoop.io.IOUtils.closeStream(writer);
+		StreamingWriter writer = new StreamingWriter(conf, outpath, CompressionType.RECORD, codec);
+		try {
+			appendFile(writer, key, in, length);
+		} finally {
+			org.apache.hadoop.io.IOUtils.closeStream(writer);
+			in.close();
+		}
 	}
 
 	public static void listSequenceFileKeys(String sequenceFileURI) throws Exception {
@@ -628,17 +695,92 @@ public class Util {
 		SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path));
 		Text key = (Text) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
 		BytesWritable value = (BytesWritable) ReflectionUtils.newInstance(reader.getValueClass(), conf);
-		while (reader.next(key, value)) {
-			logger.info("key= {},value size={}", key.toString(), value.getBytes().length);
-			return value.getBytes();
+		try {
+			while (reader.next(key, value)) {
+				logger.info("key= {},value size={}", key.toString(), value.getLength());
+				return RecordView.of(value).toArray();
+			}
+		} finally {
+			org.apache.hadoop.io.IOUtils.closeStream(reader);
 		}
-		org.apache.hadoop.io.IOUtils.closeStream(reader);
 		return null;
 	}
 
-	// @Deprecated
+	/**
+	 * Random access to one file in a packed sequence file, through its sidecar index (see SequenceFileIndex) instead
+	 * of a scan, following an alias (see DedupIndex) to the first occurrence.
+	 * 
+	 * @param sequenceFileURI
+	 *            , e.g., hdfs:///path/1.seq, s3n://bucket/path/1.seq or file:///path/1.seq
+	 * @param key
+	 *            filename
+	 * @return the file, or null if it is not in the sequence file
+	 * @throws IOException
+	 */
+	public static byte[] get(String sequenceFileURI, String key) throws IOException {
+		InputStream in = DedupIndex.open(conf, resolveSequenceFilePath(sequenceFileURI), key);
+		if (in == null)
+			return null;
+		try {
+			return IOUtils.toByteArray(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Iterate over the records of a sequence file one at a time with constant heap use, e.g.,
+	 * iterateSequenceFile(uri).withExtension("nc"); see SequenceFileIterator.
+	 * 
+	 * @param sequenceFileURI
+	 *            , e.g., hdfs:///path/1.seq, s3n://bucket/path/1.seq or file:///path/1.seq
+	 * @return
+	 * @throws IOException
+	 */
+	public static SequenceFileIterator iterateSequenceFile(String sequenceFileURI) throws IOException {
+		return new SequenceFileIterator(conf, resolveSequenceFilePath(sequenceFileURI));
+	}
+
+	/**
+	 * Read all files of a sequence file into heap.
+	 * 
+	 * @deprecated costs as much heap as the sequence file, use iterateSequenceFile
+	 */
+	@Deprecated
 	public static Map<Text, byte[]> readSequenceFile(String sequenceFileURI) throws IOException {
 		Map<Text, byte[]> map = new HashMap<Text, byte[]>();
+		Path path = resolveSequenceFilePath(sequenceFileURI);
+
+		SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path));
+		Text key = (Text) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+		BytesWritable value = (BytesWritable) ReflectionUtils.newInstance(reader.getValueClass(), conf);
+		Map<Text, DedupIndex.Alias> aliases = new HashMap<Text, DedupIndex.Alias>();
+		while (reader.next(key, value)) {
+			logger.debug("key={}, value size={}", key.toString(), value.getLength());
+			DedupIndex.Alias alias = DedupIndex.Alias.parse(value.getBytes(), value.getLength());
+			if (alias != null)
+				aliases.put(new Text(key), alias);
+			else
+				map.put(new Text(key), value.copyBytes()); // key and value are reused by next()
+		}
+		org.apache.hadoop.io.IOUtils.closeStream(reader);
+		for (Map.Entry<Text, DedupIndex.Alias> entry : aliases.entrySet()) { // resolve to the first occurrence
+			DedupIndex.Alias alias = entry.getValue();
+			if (alias.getSeqfile().equals(path.getName()) && map.containsKey(new Text(alias.getKey()))) {
+				map.put(entry.getKey(), map.get(new Text(alias.getKey())));
+			} else {
+				InputStream in = DedupIndex.open(conf, new Path(path.getParent(), alias.getSeqfile()), alias.getKey());
+				try {
+					map.put(entry.getKey(), IOUtils.toByteArray(in));
+				} finally {
+					in.close();
+				}
+			}
+		}
+		return map;
+	}
+
+	static Path resolveSequenceFilePath(String sequenceFileURI) {
 		Path path = null;
 		if (sequenceFileURI.startsWith("hdfs://")) {
 			if (!conf.get("fs.defaultFS").contains("hdfs://")) {
@@ -655,16 +797,7 @@ public class Util {
 			logger.error("File system option have not been implemented yet");
 			System.exit(2); // TODO
 		}
-
-		SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path));
-		Text key = (Text) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
-		BytesWritable value = (BytesWritable) ReflectionUtils.newInstance(reader.getValueClass(), conf);
-		while (reader.next(key, value)) {
-			logger.debug("key={}, value size={}", key.toString(), value.getBytes().length);
-			map.put(key, value.getBytes());
-		}
-		org.apache.hadoop.io.IOUtils.closeStream(reader);
-		return map;
+		return path;
 	}
 
 	/**
@@ -2,6 +2,7 @@ package com.openresearchinc.hadoop.test;
 
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.List;
 
 import javax.imageio.ImageIO;
@@ -10,10 +11,14 @@ import javax.imageio.stream.ImageInputStream;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.hadoop.io.compress.SnappyCodec;
 import org.apache.log4j.Logger;
+import org.bytedeco.javacpp.opencv_core.IplImage;
 import org.joda.time.DateTime;
 import org.junit.Test;
 
+import com.openresearchinc.hadoop.sequencefile.DetectionContext;
+import com.openresearchinc.hadoop.sequencefile.DetectionProfile;
 import com.openresearchinc.hadoop.sequencefile.OpenCV;
+import com.openresearchinc.hadoop.sequencefile.PPMDecoder;
 import com.openresearchinc.hadoop.sequencefile.PPMImageReader;
 import com.openresearchinc.hadoop.sequencefile.Util;
 
@@ -88,4 +93,67 @@ public class Benchmarks extends BaseTest {
 
 	}
 
+	// @formatter:off
+	/**
+	 * Accuracy vs throughput of detection profiles on lena.png and PPM samples of it (512x512 and a 2048x2048 upscale,
+	 * as large as a Colorferet scan gets): ms per image, and the share of the faces found with the default profile
+	 * (full resolution, scale 1.1) which are found again (IoU >= 0.5).
+	 */
+	// @formatter:on
+	@Test
+	// mvn test -Dtest=Benchmarks#detectionProfiles
+	public void detectionProfiles() throws Exception {
+		BufferedImage lena = ImageIO.read(OpenCV.class.getResource("/lena.png"));
+		java.util.Map<String, IplImage> samples = new java.util.LinkedHashMap<String, IplImage>();
+		samples.put("lena.png", IplImage.createFrom(lena));
+		for (int size : new int[] { 512, 2048 }) {
+			BufferedImage scaled = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+			scaled.createGraphics().drawImage(lena, 0, 0, size, size, null);
+			ByteArrayOutputStream ppm = new ByteArrayOutputStream();
+			ppm.write(("P6\n" + size + " " + size + "\n255\n").getBytes("US-ASCII"));
+			for (int y = 0; y < size; y++)
+				for (int x = 0; x < size; x++) {
+					int rgb = scaled.getRGB(x, y);
+					ppm.write(rgb >> 16);
+					ppm.write(rgb >> 8);
+					ppm.write(rgb);
+				}
+			samples.put("lena-" + size + ".ppm", new PPMDecoder().decode(ppm.toByteArray(), ppm.size(), null, false));
+		}
+		DetectionProfile[] profiles = { new DetectionProfile(), new DetectionProfile().withMaxDimension(640),
+				new DetectionProfile().withMaxDimension(320), new DetectionProfile().withMinSize(40),
+				new DetectionProfile().withScaleFactor(1.2),
+				new DetectionProfile().withMaxDimension(320).withMinSize(60).withScaleFactor(1.2) };
+		DetectionContext context = DetectionContext.forThread(DetectionContext.FACE);
+		int runs = 5;
+		for (java.util.Map.Entry<String, IplImage> sample : samples.entrySet()) {
+			List<int[]> reference = context.detect(sample.getValue(), profiles[0]);
+			for (DetectionProfile profile : profiles) {
+				List<int[]> faces = context.detect(sample.getValue(), profile); // warm up
+				long start = System.nanoTime();
+				for (int i = 0; i < runs; i++)
+					faces = context.detect(sample.getValue(), profile);
+				double ms = (System.nanoTime() - start) / 1e6 / runs;
+				int found = 0;
+				for (int[] expected : reference)
+					for (int[] face : faces)
+						if (iou(expected, face) >= 0.5) {
+							found++;
+							break;
+						}
+				logger.info(String.format("%-14s %-55s %8.1f ms %2d faces, recall %d/%d", sample.getKey(), profile,
+						ms, faces.size(), found, reference.size()));
+			}
+		}
+		DetectionContext.closeThread();
+	}
+
+	static double iou(int[] a, int[] b) {
+		int w = Math.min(a[2], b[2]) - Math.max(a[0], b[0]);
+		int h = Math.min(a[3], b[3]) - Math.max(a[1], b[1]);
+		if (w <= 0 || h <= 0)
+			return 0;
+		double intersection = (double) w * h;
+		return intersection / ((a[2] - a[0]) * (a[3] - a[1]) + (b[2] - b[0]) * (b[3] - b[1]) - intersection);
+	}
 }
@@ -0,0 +1,116 @@
+package com.openresearchinc.hadoop.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.openresearchinc.hadoop.sequencefile.DetectionCache;
+
+/**
+ * mvn test -Dtest=DetectionCacheTest#<method>
+ *
+ * DetectionCache in a local directory, as written by the mappers of OpenCV and compacted by its client.
+ */
+public class DetectionCacheTest {
+	final Configuration conf = new Configuration();
+	final Path dir = new Path("file:///tmp/detection-cache");
+	FileSystem fs;
+
+	@Before
+	public void setUp() throws Exception {
+		fs = dir.getFileSystem(conf);
+		fs.delete(dir, true);
+	}
+
+	@Test
+	public void testHitAndMiss() throws Exception {
+		DetectionCache cache = new DetectionCache(conf, dir, "task_0");
+		assertTrue(cache.get("image1:detector") == null);
+		cache.put("image1:detector", "[10, 10, 90, 90]");
+		cache.put("image2:detector", ""); // nothing detected, still a hit
+		assertEquals("[10, 10, 90, 90]", cache.get("image1:detector")); // added by this writer
+		cache.close();
+
+		cache = new DetectionCache(conf, dir, "task_1");
+		assertTrue(cache.get("image1:detector") == null); // not compacted yet
+		cache.close();
+		assertEquals(1, DetectionCache.compact(conf, dir));
+
+		cache = new DetectionCache(conf, dir, "task_2");
+		assertEquals("[10, 10, 90, 90]", cache.get("image1:detector"));
+		assertEquals("", cache.get("image2:detector"));
+		assertTrue(cache.get("image1:another detector") == null);
+		assertTrue(cache.get("image3:detector") == null);
+		assertEquals(2, cache.getHits());
+		cache.close();
+		assertEquals(0, DetectionCache.compact(conf, dir)); // nothing added
+	}
+
+	@Test
+	public void testCompactionMergesIntoOneFile() throws Exception {
+		for (int job = 0; job < 3; job++) {
+			for (int task = 0; task < 4; task++) {
+				DetectionCache cache = new DetectionCache(conf, dir, "task_" + task);
+				for (int image = task; image < 100; image += 4) {
+					String key = "image" + image + ":detector";
+					if (cache.get(key) == null)
+						cache.put(key, "job" + job);
+				}
+				cache.put("job" + job + ":detector", "task" + task); // added by every task
+				cache.close();
+			}
+			DetectionCache.compact(conf, dir);
+			assertEquals(Collections.singletonList("cache-" + (job + 1)), files(dir));
+			assertTrue(files(new Path(dir, "_added")).isEmpty());
+		}
+		DetectionCache cache = new DetectionCache(conf, dir, "task_0");
+		for (int image = 0; image < 100; image++)
+			assertEquals("job0", cache.get("image" + image + ":detector")); // hits from the second job on
+		for (int job = 0; job < 3; job++)
+			assertTrue(cache.get("job" + job + ":detector").startsWith("task"));
+		cache.close();
+	}
+
+	@Test
+	public void testRetriedTaskReplacesItsFile() throws Exception {
+		DetectionCache attempt = new DetectionCache(conf, dir, "task_0");
+		attempt.put("image1:detector", "first attempt");
+		attempt.put("image2:detector", "first attempt");
+		attempt.close();
+		attempt = new DetectionCache(conf, dir, "task_0"); // the retry of the task
+		attempt.put("image1:detector", "second attempt");
+		attempt.close();
+		assertEquals(Collections.singletonList("task_0"), files(new Path(dir, "_added")));
+
+		// a failed attempt which died while writing leaves only its temporary file, which nothing reads
+		fs.mkdirs(new Path(dir, "_added/.task_1.tmp"));
+		fs.create(new Path(dir, "_added/.task_1.tmp/data")).close();
+		assertEquals(1, DetectionCache.compact(conf, dir));
+		DetectionCache cache = new DetectionCache(conf, dir, "task_2");
+		assertEquals("second attempt", cache.get("image1:detector"));
+		assertTrue(cache.get("image2:detector") == null);
+		cache.close();
+	}
+
+	// names of the visible files in a directory
+	List<String> files(Path path) throws Exception {
+		List<String> names = new ArrayList<String>();
+		for (FileStatus status : fs.listStatus(path)) {
+			String name = status.getPath().getName();
+			if (!name.startsWith(".") && !name.startsWith("_"))
+				names.add(name);
+		}
+		Collections.sort(names);
+		return names;
+	}
+}
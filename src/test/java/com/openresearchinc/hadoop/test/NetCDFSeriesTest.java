@@ -0,0 +1,329 @@
+package com.openresearchinc.hadoop.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.MapContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.junit.Test;
+
+import ucar.nc2.NetcdfFile;
+
+import com.openresearchinc.hadoop.sequencefile.CoordinateCache;
+import com.openresearchinc.hadoop.sequencefile.NetCDF;
+import com.openresearchinc.hadoop.sequencefile.RegionQuery;
+import com.openresearchinc.hadoop.sequencefile.SeriesKey;
+import com.openresearchinc.hadoop.sequencefile.TimeSeriesBlock;
+
+/**
+ * mvn test -Dtest=NetCDFSeriesTest#<method>
+ *
+ * NetCDF -series on small NetCDF-3 grids written to /tmp (see RegionQueryTest.grid), its map run on records in memory,
+ * and the keys and values of its shuffle.
+ */
+public class NetCDFSeriesTest {
+	final static double[] LON = { 0.25, 0.5, 0.75, 1, 1.25 }; // not the grid of any other test, see the cache
+	final static double[] LAT = { 40, 39.75, 39.5 };
+
+	@Test
+	public void testCoordinatesOfGridsWithSameSignatureAreReadOnce() throws Exception {
+		CoordinateCache cache = new CoordinateCache();
+		NetcdfFile a = NetcdfFile.open(RegionQueryTest.grid("/tmp/series-a.nc", LON, LAT, 0));
+		NetcdfFile b = NetcdfFile.open(RegionQueryTest.grid("/tmp/series-b.nc", LON, LAT, 0));
+		NetcdfFile c = NetcdfFile.open(RegionQueryTest.grid("/tmp/series-c.nc", LON, LAT, 31));
+		try {
+			CoordinateCache.Coordinates lat = cache.coordinates(a.findVariable("lat"));
+			assertArrayEquals(LAT, lat.getValues(), 0);
+			assertTrue(lat == cache.coordinates(b.findVariable("lat"))); // another file on the same grid
+			assertTrue(lat == cache.coordinates(c.findVariable("lat")));
+			assertTrue(cache.coordinates(a.findVariable("time")) == cache.coordinates(b.findVariable("time")));
+			assertTrue(cache.coordinates(a.findVariable("time")) != cache.coordinates(c.findVariable("time")));
+			assertEquals(3, cache.getMisses()); // lat, time 0, time 31
+			assertEquals(4, cache.getHits());
+		} finally {
+			a.close();
+			b.close();
+			c.close();
+		}
+	}
+
+	@Test
+	public void testSeriesMapReadsCoordinatesThroughCache() throws Exception {
+		List<String> files = new ArrayList<String>();
+		for (int month = 0; month < 3; month++)
+			files.add(RegionQueryTest.grid("/tmp/series-" + month + ".nc", LON, LAT, 31 * month + 15));
+		Configuration conf = new Configuration();
+		conf.set(NetCDF.BLOCK, "2,2");
+		conf.set(RegionQuery.BBOX, "0.5,1.25,39,40"); // all rows, cols 1..4
+		conf.set(RegionQuery.TIME, "0,100");
+
+		CoordinateCache cache = CoordinateCache.get(); // the one of the mapper
+		long misses = cache.getMisses(), hits = cache.getHits();
+		List<TimeSeriesBlock> outputs = new ArrayList<TimeSeriesBlock>();
+		List<SeriesKey> keys = new ArrayList<SeriesKey>();
+		runSeriesMap(conf, files, keys, outputs);
+		// lat, lon once; time once per file, then from the cache for the steps of the file
+		assertEquals(2 + 3, cache.getMisses() - misses);
+		assertEquals(2 * 2 + 3, cache.getHits() - hits);
+
+		// rows 0..1 and 2, cols 1, 2..3 and 4, one step each
+		assertEquals(3 * 6, outputs.size());
+		for (int i = 0; i < outputs.size(); i++) {
+			TimeSeriesBlock block = outputs.get(i);
+			double time = 31 * (i / 6) + 15;
+			assertEquals(time, keys.get(i).getTime(), 0);
+			assertArrayEquals(new double[] { time }, block.getTimes(), 0);
+			for (int row = 0; row < block.getRows(); row++)
+				for (int col = 0; col < block.getCols(); col++)
+					assertEquals((float) (LON[block.getFirstCol() + col] + time),
+							block.getSamples()[row * block.getCols() + col], 0);
+		}
+	}
+
+	@Test
+	public void testUnreadableFilesAreCounted() throws Exception {
+		List<String> files = new ArrayList<String>();
+		files.add(RegionQueryTest.grid("/tmp/series-0.nc", LON, LAT, 15));
+		FileUtils.writeByteArrayToFile(new File("/tmp/series-garbage.nc"), new byte[] { 'C', 'D', 'F', 1, 0, 0 });
+		files.add("/tmp/series-garbage.nc");
+		files.add(RegionQueryTest.grid("/tmp/series-1.nc", LON, LAT, 46));
+		Configuration conf = new Configuration();
+		List<TimeSeriesBlock> outputs = new ArrayList<TimeSeriesBlock>();
+		Counters counters = runSeriesMap(conf, files, new ArrayList<SeriesKey>(), outputs);
+		assertEquals(1, counters.findCounter("bin2seq", NetCDF.UNREADABLE).getValue());
+		assertEquals(2, outputs.size()); // one 32 x 32 block of each readable file
+
+		conf.set(RegionQuery.VARIABLE, "tas"); // in none of them
+		counters = runSeriesMap(conf, files, new ArrayList<SeriesKey>(), new ArrayList<TimeSeriesBlock>());
+		assertEquals(3, counters.findCounter("bin2seq", NetCDF.UNREADABLE).getValue());
+	}
+
+	@Test
+	public void testRawCompareAgreesWithCompareTo() throws Exception {
+		Random random = new Random(42);
+		List<SeriesKey> keys = new ArrayList<SeriesKey>();
+		for (int i = 0; i < 200; i++)
+			keys.add(new SeriesKey(random.nextInt(4) - 1, random.nextInt(4) - 1, random.nextInt(5) - 2.5));
+		keys.add(new SeriesKey(0, 0, -0.0));
+		keys.add(new SeriesKey(0, 0, 0.0));
+		keys.add(new SeriesKey(Integer.MAX_VALUE, Integer.MIN_VALUE, Double.MAX_VALUE));
+		keys.add(new SeriesKey(Integer.MIN_VALUE, Integer.MAX_VALUE, -Double.MAX_VALUE));
+		WritableComparator comparator = WritableComparator.get(SeriesKey.class);
+		assertTrue(comparator instanceof SeriesKey.Comparator);
+		for (SeriesKey a : keys) {
+			byte[] b1 = serialize(a);
+			for (SeriesKey b : keys) {
+				byte[] b2 = serialize(b);
+				assertEquals(a + " " + b, Integer.signum(a.compareTo(b)),
+						Integer.signum(comparator.compare(b1, 0, b1.length, b2, 0, b2.length)));
+				assertEquals(a.compareTo(b) == 0, a.equals(b));
+			}
+		}
+		// sorted by block, then time
+		assertTrue(new SeriesKey(0, 1, 100).compareTo(new SeriesKey(1, 0, 0)) < 0);
+		assertTrue(new SeriesKey(1, 0, 100).compareTo(new SeriesKey(1, 1, 0)) < 0);
+		assertTrue(new SeriesKey(1, 1, 0).compareTo(new SeriesKey(1, 1, 100)) < 0);
+	}
+
+	@Test
+	public void testGroupingAndPartitioningIgnoreTime() throws Exception {
+		SeriesKey.BlockComparator grouping = new SeriesKey.BlockComparator();
+		SeriesKey.BlockPartitioner partitioner = new SeriesKey.BlockPartitioner();
+		for (int row = 0; row < 10; row++) {
+			for (int col = 0; col < 10; col++) {
+				SeriesKey first = new SeriesKey(row, col, 15), later = new SeriesKey(row, col, 20454);
+				byte[] b1 = serialize(first), b2 = serialize(later);
+				assertEquals(0, grouping.compare(first, later));
+				assertEquals(0, grouping.compare(b1, 0, b1.length, b2, 0, b2.length));
+				assertTrue(first.compareTo(later) < 0); // but sorted
+				for (int partitions = 1; partitions <= 16; partitions++) {
+					int partition = partitioner.getPartition(first, null, partitions);
+					assertTrue(partition >= 0 && partition < partitions);
+					assertEquals(partition, partitioner.getPartition(later, null, partitions));
+				}
+			}
+		}
+		SeriesKey a = new SeriesKey(1, 2, 0), b = new SeriesKey(1, 3, 0);
+		byte[] b1 = serialize(a), b2 = serialize(b);
+		assertTrue(grouping.compare(a, b) < 0);
+		assertTrue(grouping.compare(b1, 0, b1.length, b2, 0, b2.length) < 0);
+		assertTrue(new SeriesKey.BlockPartitioner().getPartition(new SeriesKey(-7, -9, 0), null, 5) >= 0);
+	}
+
+	@Test
+	public void testAssembleRejectsMismatchedSteps() throws Exception {
+		float[] samples = { 1, 2, 3, 4, 5, 6 };
+		TimeSeriesBlock step0 = new TimeSeriesBlock(32, 64, 2, 3, 15, samples);
+		assertRejected(step0, new TimeSeriesBlock(32, 96, 2, 3, 46, samples)); // another block
+		assertRejected(step0, new TimeSeriesBlock(0, 64, 2, 3, 46, samples));
+		assertRejected(step0, new TimeSeriesBlock(32, 64, 3, 2, 46, new float[5])); // another size
+		assertRejected(step0, new TimeSeriesBlock(32, 64, 2, 3, 15, samples)); // the same step twice
+		assertRejected(step0, new TimeSeriesBlock(32, 64, 2, 3, 14, samples)); // out of order
+		assertRejected(step0, TimeSeriesBlock.assemble(Arrays.asList(new TimeSeriesBlock(32, 64, 2, 3, 46, samples),
+				new TimeSeriesBlock(32, 64, 2, 3, 77, samples)))); // a series, not a step
+	}
+
+	@Test
+	public void testAssembledBlockRoundTrip() throws Exception {
+		int rows = 2, cols = 3, steps = 4;
+		List<TimeSeriesBlock> blocks = new ArrayList<TimeSeriesBlock>();
+		for (int step = 0; step < steps; step++) {
+			float[] samples = new float[rows * cols];
+			for (int cell = 0; cell < samples.length; cell++)
+				samples[cell] = step == 2 && cell == 1 ? Float.NaN : 100 * cell + step;
+			blocks.add(new TimeSeriesBlock(32, 64, rows, cols, 31 * step + 15, samples));
+		}
+		TimeSeriesBlock series = TimeSeriesBlock.assemble(blocks);
+		TimeSeriesBlock copy = WritableUtils.clone(series, new Configuration());
+		assertEquals(32, copy.getFirstRow());
+		assertEquals(64, copy.getFirstCol());
+		assertEquals(rows, copy.getRows());
+		assertEquals(cols, copy.getCols());
+		assertArrayEquals(new double[] { 15, 46, 77, 108 }, copy.getTimes(), 0);
+		assertArrayEquals(series.getSamples(), copy.getSamples(), 0);
+		float[] cell = null;
+		for (int row = 0; row < rows; row++) {
+			for (int col = 0; col < cols; col++) {
+				cell = copy.getSeries(row, col, cell);
+				for (int step = 0; step < steps; step++)
+					if (row == 0 && col == 1 && step == 2)
+						assertTrue(Float.isNaN(cell[step]));
+					else
+						assertEquals(100 * (row * cols + col) + step, cell[step], 0);
+			}
+		}
+
+		TimeSeriesBlock empty = WritableUtils.clone(new TimeSeriesBlock(), new Configuration());
+		assertEquals(0, empty.getTimes().length);
+		assertEquals(0, empty.getSamples().length);
+	}
+
+	static void assertRejected(TimeSeriesBlock first, TimeSeriesBlock second) {
+		try {
+			TimeSeriesBlock.assemble(Arrays.asList(first, second));
+			fail("assembled " + Arrays.toString(second.getTimes()) + " after " + Arrays.toString(first.getTimes()));
+		} catch (IOException e) {
+		}
+	}
+
+	static byte[] serialize(SeriesKey key) throws IOException {
+		DataOutputBuffer out = new DataOutputBuffer();
+		key.write(out);
+		return Arrays.copyOf(out.getData(), out.getLength());
+	}
+
+	/**
+	 * Run NetCDF.SeriesMap on files, as records of a sequence file
+	 *
+	 * @return the counters of the task
+	 */
+	static Counters runSeriesMap(final Configuration conf, List<String> files, final List<SeriesKey> keys,
+			final List<TimeSeriesBlock> outputs) throws IOException, InterruptedException {
+		final Iterator<String> input = files.iterator();
+		RecordReader<Text, BytesWritable> reader = new RecordReader<Text, BytesWritable>() {
+			final Text key = new Text();
+			final BytesWritable value = new BytesWritable();
+
+			@Override
+			public void initialize(InputSplit split, TaskAttemptContext context) {
+			}
+
+			@Override
+			public boolean nextKeyValue() throws IOException {
+				if (!input.hasNext())
+					return false;
+				String file = input.next();
+				key.set(file);
+				byte[] bytes = FileUtils.readFileToByteArray(new File(file));
+				value.set(bytes, 0, bytes.length);
+				return true;
+			}
+
+			@Override
+			public Text getCurrentKey() {
+				return key;
+			}
+
+			@Override
+			public BytesWritable getCurrentValue() {
+				return value;
+			}
+
+			@Override
+			public float getProgress() {
+				return 0;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		RecordWriter<SeriesKey, TimeSeriesBlock> writer = new RecordWriter<SeriesKey, TimeSeriesBlock>() {
+			@Override
+			public void write(SeriesKey key, TimeSeriesBlock value) {
+				keys.add(WritableUtils.clone(key, conf));
+				outputs.add(WritableUtils.clone(value, conf));
+			}
+
+			@Override
+			public void close(TaskAttemptContext context) {
+			}
+		};
+		final Counters counters = new Counters();
+		StatusReporter reporter = new StatusReporter() {
+			@Override
+			public Counter getCounter(Enum<?> name) {
+				return counters.findCounter(name);
+			}
+
+			@Override
+			public Counter getCounter(String group, String name) {
+				return counters.findCounter(group, name);
+			}
+
+			@Override
+			public void progress() {
+			}
+
+			@Override
+			public float getProgress() {
+				return 0;
+			}
+
+			@Override
+			public void setStatus(String status) {
+			}
+		};
+		MapContext<Text, BytesWritable, SeriesKey, TimeSeriesBlock> context = new MapContextImpl<Text, BytesWritable, SeriesKey, TimeSeriesBlock>(
+				conf, new TaskAttemptID(), reader, writer, null, reporter, null);
+		new NetCDF.SeriesMap().run(new WrappedMapper<Text, BytesWritable, SeriesKey, TimeSeriesBlock>()
+				.getMapContext(context));
+		return counters;
+	}
+}
@@ -0,0 +1,152 @@
+package com.openresearchinc.hadoop.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.MapContext;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Test;
+
+import com.openresearchinc.hadoop.sequencefile.OrderedMultithreadedMapper;
+
+/**
+ * mvn test -Dtest=OrderedMultithreadedMapperTest#<method>
+ *
+ * OrderedMultithreadedMapper run on a MapContext over records in memory, no cluster needed.
+ */
+public class OrderedMultithreadedMapperTest {
+
+	/**
+	 * Writes 2 outputs per record after a random delay, so records finish out of order; fails on "fail".
+	 */
+	public static class SlowEcho extends Mapper<LongWritable, Text, LongWritable, Text> {
+		final Random random = new Random();
+
+		@Override
+		protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+			Thread.sleep(random.nextInt(5));
+			if (value.toString().equals("fail"))
+				throw new IOException("mapper failed on record " + key);
+			context.write(key, new Text(value + "a"));
+			context.write(key, new Text(value + "b"));
+		}
+
+		@Override
+		protected void cleanup(Context context) throws IOException, InterruptedException {
+			context.write(new LongWritable(-1), new Text("cleanup"));
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testOutputsInInputOrder() throws Exception {
+		List<String> lines = new ArrayList<String>();
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 500; i++) {
+			lines.add("line" + i);
+			expected.add(i + "\tline" + i + "a");
+			expected.add(i + "\tline" + i + "b");
+		}
+		int threads = 4;
+		List<String> output = run(lines, threads);
+		assertEquals(expected, output.subList(0, expected.size()));
+		for (String cleanup : output.subList(expected.size(), output.size()))
+			assertEquals("-1\tcleanup", cleanup);
+		assertEquals(threads, output.size() - expected.size()); // one mapper instance per thread
+	}
+
+	@Test(timeout = 60000)
+	public void testMapperExceptionFailsTask() throws Exception {
+		List<String> lines = new ArrayList<String>();
+		for (int i = 0; i < 500; i++)
+			lines.add(i == 123 ? "fail" : "line" + i);
+		try {
+			run(lines, 4);
+			fail("the task did not fail");
+		} catch (IOException e) {
+			assertEquals("mapper failed on record 123", e.getMessage());
+		}
+	}
+
+	/**
+	 * @return "<key>\t<value>" of each output, in the order written to the task's output
+	 */
+	static List<String> run(List<String> lines, int threads) throws IOException, InterruptedException {
+		Configuration conf = new Configuration();
+		conf.setInt(OrderedMultithreadedMapper.THREADS, threads);
+		conf.setClass(OrderedMultithreadedMapper.MAPPER_CLASS, SlowEcho.class, Mapper.class);
+		final Iterator<String> input = lines.iterator();
+		RecordReader<LongWritable, Text> reader = new RecordReader<LongWritable, Text>() {
+			final LongWritable key = new LongWritable(-1); // reused, as by LineRecordReader
+			final Text value = new Text();
+
+			@Override
+			public void initialize(InputSplit split, TaskAttemptContext context) {
+			}
+
+			@Override
+			public boolean nextKeyValue() {
+				if (!input.hasNext())
+					return false;
+				key.set(key.get() + 1);
+				value.set(input.next());
+				return true;
+			}
+
+			@Override
+			public LongWritable getCurrentKey() {
+				return key;
+			}
+
+			@Override
+			public Text getCurrentValue() {
+				return value;
+			}
+
+			@Override
+			public float getProgress() {
+				return 0;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		final List<String> output = new ArrayList<String>();
+		RecordWriter<LongWritable, Text> writer = new RecordWriter<LongWritable, Text>() {
+			final Thread task = Thread.currentThread();
+
+			@Override
+			public void write(LongWritable key, Text value) {
+				assertTrue(Thread.currentThread() == task); // the output collector is not thread safe
+				output.add(key + "\t" + value);
+			}
+
+			@Override
+			public void close(TaskAttemptContext context) {
+			}
+		};
+		MapContext<LongWritable, Text, LongWritable, Text> context = new MapContextImpl<LongWritable, Text, LongWritable, Text>(
+				conf, new TaskAttemptID(), reader, writer, null, new TaskAttemptContextImpl.DummyReporter(), null);
+		new OrderedMultithreadedMapper<LongWritable, Text, LongWritable, Text>()
+				.run(new WrappedMapper<LongWritable, Text, LongWritable, Text>().getMapContext(context));
+		return output;
+	}
+}
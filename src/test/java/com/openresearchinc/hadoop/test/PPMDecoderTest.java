@@ -0,0 +1,227 @@
+package com.openresearchinc.hadoop.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.bytedeco.javacpp.opencv_core.IplImage;
+import org.junit.Test;
+
+import com.openresearchinc.hadoop.sequencefile.PPMDecoder;
+import com.openresearchinc.hadoop.sequencefile.PPMImageReader;
+
+/**
+ * mvn test -Dtest=PPMDecoderTest#<method>
+ *
+ * PBM/PGM/PPM images built in memory, decoded from bytes and from an ImageInputStream.
+ */
+public class PPMDecoderTest {
+
+	@Test
+	public void testP4() throws Exception {
+		// 10 x 2, rows padded to 2 bytes; 1 is black
+		byte[] raster = { (byte) 0xA0, (byte) 0x40, (byte) 0x0F, (byte) 0xFF };
+		BufferedImage image = decode(ppm("P4\n10 2\n", raster));
+		assertEquals(BufferedImage.TYPE_BYTE_BINARY, image.getType());
+		int[][] black = { { 1, 0, 1, 0, 0, 0, 0, 0, 0, 1 }, { 0, 0, 0, 0, 1, 1, 1, 1, 1, 1 } };
+		for (int y = 0; y < 2; y++)
+			for (int x = 0; x < 10; x++)
+				assertEquals(x + "," + y, black[y][x] == 1 ? 0xFF000000 : 0xFFFFFFFF, image.getRGB(x, y));
+	}
+
+	@Test
+	public void testP5() throws Exception {
+		byte[] raster = { 0, 1, 127, (byte) 128, (byte) 254, (byte) 255 };
+		BufferedImage image = decode(ppm("P5\n3 2\n255\n", raster));
+		assertEquals(BufferedImage.TYPE_BYTE_GRAY, image.getType());
+		for (int i = 0; i < raster.length; i++)
+			assertEquals(raster[i] & 0xFF, image.getRaster().getSample(i % 3, i / 3, 0));
+
+		raster = new byte[] { 0, 1, 7, 8, 14, 15 }; // scaled from maxval 15 to 255
+		image = decode(ppm("P5\n3 2\n15\n", raster));
+		for (int i = 0; i < raster.length; i++)
+			assertEquals((raster[i] * 255 + 7) / 15, image.getRaster().getSample(i % 3, i / 3, 0));
+	}
+
+	@Test
+	public void testP5With16BitSamples() throws Exception {
+		int[] samples = { 0, 1, 256, 4660, 65534, 65535 };
+		BufferedImage image = decode(ppm("P5\n3 2\n65535\n", bigEndian(samples)));
+		assertEquals(BufferedImage.TYPE_USHORT_GRAY, image.getType());
+		for (int i = 0; i < samples.length; i++)
+			assertEquals(samples[i], image.getRaster().getSample(i % 3, i / 3, 0));
+
+		samples = new int[] { 0, 1, 512, 1000, 1022, 1023 }; // scaled from maxval 1023 to 65535
+		image = decode(ppm("P5\n3 2\n1023\n", bigEndian(samples)));
+		for (int i = 0; i < samples.length; i++)
+			assertEquals((samples[i] * 65535 + 511) / 1023, image.getRaster().getSample(i % 3, i / 3, 0));
+	}
+
+	@Test
+	public void testP6() throws Exception {
+		byte[] raster = { 1, 2, 3, (byte) 200, 100, 50, (byte) 255, 0, (byte) 128, 0, 0, 0 };
+		BufferedImage image = decode(ppm("P6\n2 2\n255\n", raster));
+		assertEquals(BufferedImage.TYPE_3BYTE_BGR, image.getType());
+		for (int i = 0; i < 4; i++)
+			assertEquals(rgb(raster[3 * i] & 0xFF, raster[3 * i + 1] & 0xFF, raster[3 * i + 2] & 0xFF),
+					image.getRGB(i % 2, i / 2));
+
+		raster = new byte[] { 0, 50, 100, 1, 99, 49, 25, 75, 0, 100, 100, 100 }; // scaled from maxval 100 to 255
+		image = decode(ppm("P6\n2 2\n100\n", raster));
+		for (int i = 0; i < 4; i++)
+			assertEquals(rgb(scale(raster[3 * i], 100), scale(raster[3 * i + 1], 100), scale(raster[3 * i + 2], 100)),
+					image.getRGB(i % 2, i / 2));
+	}
+
+	@Test
+	public void testP6With16BitSamples() throws Exception {
+		int[] samples = { 0, 65535, 32768, 257, 514, 771 }; // 2 pixels, scaled to 8 bits
+		BufferedImage image = decode(ppm("P6\n2 1\n65535\n", bigEndian(samples)));
+		assertEquals(BufferedImage.TYPE_3BYTE_BGR, image.getType());
+		assertEquals(rgb(0, 255, 128), image.getRGB(0, 0));
+		assertEquals(rgb(1, 2, 3), image.getRGB(1, 0));
+	}
+
+	@Test
+	public void testHeaderComments() throws Exception {
+		byte[] raster = { 10, 20, 30, 40, 50, 60 };
+		BufferedImage image = decode(ppm("P5 # from a scanner\n# size\n3 # width\n2\t# height\n255\n", raster));
+		assertEquals(3, image.getWidth());
+		assertEquals(2, image.getHeight());
+		for (int i = 0; i < raster.length; i++)
+			assertEquals(raster[i], image.getRaster().getSample(i % 3, i / 3, 0));
+	}
+
+	@Test
+	public void testTruncatedInput() throws Exception {
+		byte[] bytes = ppm("P6\n4 4\n255\n", new byte[4 * 4 * 3 - 1]);
+		try {
+			new PPMDecoder().decode(bytes, bytes.length, (BufferedImage) null);
+			fail("decoded a truncated raster");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("truncated raster"));
+		}
+		try {
+			new PPMDecoder().decode(ImageIO.createImageInputStream(new ByteArrayInputStream(bytes)), null);
+			fail("decoded a truncated raster");
+		} catch (EOFException e) {
+		}
+		for (String header : new String[] { "", "P", "P6\n4 4\n", "P6\n4 4 # maxval cut off" }) {
+			bytes = header.getBytes("US-ASCII");
+			try {
+				new PPMDecoder().decode(bytes, bytes.length, (BufferedImage) null);
+				fail("decoded the header " + header);
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	@Test
+	public void testAsciiFormatsAreRejected() throws Exception {
+		for (String format : new String[] { "P1\n1 1\n1\n", "P2\n1 1\n255\n7\n", "P3\n1 1\n255\n1 2 3\n" }) {
+			byte[] bytes = format.getBytes("US-ASCII");
+			try {
+				new PPMDecoder().decode(bytes, bytes.length, (BufferedImage) null);
+				fail("decoded " + format);
+			} catch (IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().startsWith("unsupported ASCII"));
+			}
+		}
+	}
+
+	@Test
+	public void testReuseOfImage() throws Exception {
+		PPMDecoder decoder = new PPMDecoder();
+		byte[] bytes = ppm("P5\n3 2\n255\n", new byte[6]);
+		BufferedImage image = decoder.decode(bytes, bytes.length, (BufferedImage) null);
+		assertTrue(image == decoder.decode(bytes, bytes.length, image));
+		bytes = ppm("P5\n2 3\n255\n", new byte[6]); // another size
+		assertTrue(image != decoder.decode(bytes, bytes.length, image));
+	}
+
+	@Test
+	/**
+	 * An IplImage passed for reuse is never released by the decoder, the caller owns it; needs the OpenCV natives
+	 * @throws Exception
+	 */
+	public void testReuseOfIplImageIsLeftToCaller() throws Exception {
+		PPMDecoder decoder = new PPMDecoder();
+		byte[] bytes = ppm("P5\n3 2\n255\n", new byte[] { 1, 2, 3, 4, 5, 6 });
+		IplImage image = decoder.decode(bytes, bytes.length, null, true);
+		assertTrue(image == decoder.decode(bytes, bytes.length, image, true));
+		bytes = ppm("P5\n2 3\n255\n", new byte[] { 1, 2, 3, 4, 5, 6 }); // another size
+		IplImage decoded = decoder.decode(bytes, bytes.length, image, true);
+		assertTrue(decoded != image);
+		assertTrue(!image.isNull()); // still valid
+		assertEquals(3, image.width());
+		assertEquals(2, decoded.width());
+		image.release();
+		decoded.release();
+	}
+
+	@Test
+	public void testStaticHelpers() throws Exception {
+		byte[] raster = { 1, 2, 3, 4, 5, 6 };
+		assertSameImage(decode(ppm("P6\n2 1\n255\n", raster)), PPMImageReader.ppm(2, 1, 255, raster));
+		assertSameImage(decode(ppm("P5\n3 2\n255\n", raster)), PPMImageReader.pgm(3, 2, 255, raster));
+		assertSameImage(decode(ppm("P4\n10 3\n", raster)), PPMImageReader.pbm(10, 3, raster));
+
+		PPMDecoder header = PPMImageReader.readHeader(ImageIO.createImageInputStream(new ByteArrayInputStream(ppm(
+				"P5\n# comment\n3 2\n1023\n", new byte[12]))));
+		assertEquals(PPMDecoder.PGM_RAW, header.getFormat());
+		assertEquals(3, header.getWidth());
+		assertEquals(2, header.getHeight());
+		assertEquals(1023, header.getMaxval());
+		assertEquals(12, PPMImageReader.readAsciiInt(ImageIO.createImageInputStream(new ByteArrayInputStream(
+				" # comment\n12 ".getBytes("US-ASCII")))));
+	}
+
+	// decode from bytes and from a stream, which must agree
+	static BufferedImage decode(byte[] bytes) throws IOException {
+		BufferedImage image = new PPMDecoder().decode(bytes, bytes.length, (BufferedImage) null);
+		assertSameImage(image, PPMImageReader.read(ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))));
+		return image;
+	}
+
+	static void assertSameImage(BufferedImage expected, BufferedImage actual) {
+		assertEquals(expected.getType(), actual.getType());
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		for (int y = 0; y < expected.getHeight(); y++)
+			for (int x = 0; x < expected.getWidth(); x++)
+				for (int band = 0; band < expected.getRaster().getNumBands(); band++)
+					assertEquals(expected.getRaster().getSample(x, y, band), actual.getRaster().getSample(x, y, band));
+	}
+
+	static byte[] ppm(String header, byte[] raster) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(header.getBytes("US-ASCII"));
+		out.write(raster);
+		return out.toByteArray();
+	}
+
+	static byte[] bigEndian(int[] samples) {
+		byte[] bytes = new byte[2 * samples.length];
+		for (int i = 0; i < samples.length; i++) {
+			bytes[2 * i] = (byte) (samples[i] >> 8);
+			bytes[2 * i + 1] = (byte) samples[i];
+		}
+		return bytes;
+	}
+
+	static int scale(byte sample, int maxval) {
+		return ((sample & 0xFF) * 255 + (maxval >> 1)) / maxval;
+	}
+
+	static int rgb(int r, int g, int b) {
+		return 0xFF000000 | (r << 16) | (g << 8) | b;
+	}
+}
@@ -0,0 +1,100 @@
+package com.openresearchinc.hadoop.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.WritableUtils;
+import org.junit.Test;
+
+import com.openresearchinc.hadoop.sequencefile.RasterStats;
+
+/**
+ * mvn test -Dtest=RasterStatsTest#<method>
+ */
+public class RasterStatsTest {
+
+	@Test
+	public void testMergeEqualsOnePass() throws Exception {
+		Random random = new Random(42);
+		double[] samples = new double[10000];
+		for (int i = 0; i < samples.length; i++)
+			samples[i] = random.nextInt(10) == 0 ? -9999 : 100 + 30 * random.nextGaussian();
+		RasterStats all = new RasterStats(0, 256, 64);
+		all.add(samples, samples.length, -9999.0);
+
+		for (int[] cuts : new int[][] { { 5000 }, { 1, 2, 9999 }, { 0, 3333, 6666 }, { 10000 } }) {
+			RasterStats merged = new RasterStats(0, 256, 64);
+			int from = 0;
+			for (int i = 0; i <= cuts.length; i++) {
+				int to = i < cuts.length ? cuts[i] : samples.length;
+				RasterStats part = new RasterStats(0, 256, 64);
+				double[] block = new double[to - from];
+				System.arraycopy(samples, from, block, 0, block.length);
+				part.add(block, block.length, -9999.0);
+				merged.merge(part);
+				from = to;
+			}
+			assertEquals(all.getCount(), merged.getCount());
+			assertEquals(all.getNoDataCount(), merged.getNoDataCount());
+			assertEquals(all.getMin(), merged.getMin(), 0);
+			assertEquals(all.getMax(), merged.getMax(), 0);
+			assertEquals(all.getMean(), merged.getMean(), 1e-9);
+			assertEquals(all.getStdDev(), merged.getStdDev(), 1e-9);
+			assertArrayEquals(all.getHistogram(), merged.getHistogram());
+		}
+	}
+
+	@Test
+	public void testStdDevOfLargeMean() throws Exception {
+		// 1e9 + 0..999: a sum of squares of ~1e21 has no digits left for a variance of ~8e4
+		RasterStats one = new RasterStats(), two = new RasterStats();
+		for (int i = 0; i < 1000; i++)
+			(i % 2 == 0 ? one : two).add(1e9 + i);
+		one.merge(two);
+		assertEquals(1e9 + 499.5, one.getMean(), 1e-6);
+		assertEquals(Math.sqrt((1000.0 * 1000 - 1) / 12), one.getStdDev(), 1e-6);
+	}
+
+	@Test
+	public void testWritableRoundTrip() throws Exception {
+		RasterStats stats = new RasterStats(-1, 1, 10);
+		Random random = new Random(7);
+		for (int i = 0; i < 1000; i++)
+			stats.add(random.nextGaussian());
+		stats.add(new double[] { Double.NaN, 0.5 }, 2, null);
+		RasterStats copy = WritableUtils.clone(stats, new Configuration());
+		assertEquals(stats.toString(), copy.toString());
+		assertEquals(stats.getMean(), copy.getMean(), 0);
+		assertEquals(stats.getStdDev(), copy.getStdDev(), 0);
+		assertArrayEquals(stats.getHistogram(), copy.getHistogram());
+		copy.merge(stats); // same bins
+		assertEquals(2 * stats.getCount(), copy.getCount());
+		assertEquals(stats.getStdDev(), copy.getStdDev(), 1e-9);
+
+		RasterStats empty = WritableUtils.clone(new RasterStats(), new Configuration());
+		assertEquals(0, empty.getCount());
+		assertTrue(Double.isNaN(empty.getMean()));
+		empty.merge(new RasterStats());
+		assertTrue(Double.isNaN(empty.getStdDev()));
+	}
+
+	@Test
+	public void testOutOfRange() throws Exception {
+		RasterStats stats = RasterStats.fromConf(new Configuration()); // 0,256,256
+		for (int i = 0; i < 100; i++)
+			stats.add(i * 600); // 16 bit samples
+		assertEquals(0.99, stats.getOutOfRange(), 1e-9);
+		assertEquals(99, stats.getHistogram()[stats.getHistogram().length - 1]);
+
+		Configuration conf = new Configuration();
+		conf.set(RasterStats.HISTOGRAM, "0,65536,256");
+		stats = RasterStats.fromConf(conf);
+		for (int i = 0; i < 100; i++)
+			stats.add(i * 600);
+		assertEquals(0, stats.getOutOfRange(), 0);
+	}
+}
@@ -0,0 +1,158 @@
+package com.openresearchinc.hadoop.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+import com.openresearchinc.hadoop.sequencefile.RasterTile;
+import com.openresearchinc.hadoop.sequencefile.RecordView;
+
+/**
+ * mvn test -Dtest=RasterTileTest#<method>
+ *
+ * Tile records built by hand, so no GDAL is needed to encode or decode them.
+ */
+public class RasterTileTest {
+	final static String SCENE = "/Landsat/gls/p132r058.tif";
+	final static double[] GEO_TRANSFORM = { 399960, 30, 0, 1100040, 0, -30 };
+	final static ByteOrder[] ORDERS = { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN };
+
+	@Test
+	public void testTileKey() throws Exception {
+		String key = RasterTile.tileKey(SCENE, 1, 3, 2);
+		assertEquals("/Landsat/gls/p132r058.tif@b01/r0003/c0002", key);
+		assertTrue(RasterTile.isTileKey(key));
+		assertTile(SCENE, 1, 3, 2, RasterTile.parse(key));
+		assertTile("a@b01/r0001/c0001.tif", 12, 10000, 0,
+				RasterTile.parse(RasterTile.tileKey("a@b01/r0001/c0001.tif", 12, 10000, 0)));
+
+		assertTrue(!RasterTile.isTileKey(SCENE));
+		assertTrue(RasterTile.parse(SCENE) == null);
+		assertTrue(RasterTile.parse(SCENE + "@b01/r0003") == null);
+		try {
+			RasterTile.read(SCENE, RecordView.of(new byte[0], 0));
+			fail("not a tile key");
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		for (ByteOrder order : ORDERS) {
+			for (Double noData : new Double[] { null, -9999.0, Double.NaN }) {
+				short[] shorts = { -32768, -1, 0, 1, 32767, -9999 };
+				RasterTile tile = tile(RasterTile.GDT_INT16, 3, 2, noData, order, shorts(order, shorts));
+				byte[] value = tile.toBytes();
+				byte[] padded = new byte[value.length + 7]; // as a BytesWritable grown by an earlier record
+				System.arraycopy(value, 0, padded, 0, value.length);
+				for (RecordView view : new RecordView[] { RecordView.of(value, value.length),
+						RecordView.of(padded, value.length) }) {
+					RasterTile read = RasterTile.read(RasterTile.tileKey(SCENE, 4, 5, 6), view);
+					String message = order + ", noData=" + noData;
+					assertTile(SCENE, 4, 5, 6, read);
+					assertEquals(message, 64, read.getXOffset());
+					assertEquals(message, 128, read.getYOffset());
+					assertEquals(message, 3, read.getWidth());
+					assertEquals(message, 2, read.getHeight());
+					assertEquals(message, RasterTile.GDT_INT16, read.getDataType());
+					assertArrayEquals(message, GEO_TRANSFORM, read.getGeoTransform(), 0);
+					assertEquals(message, "PROJCS[\"WGS 84 / UTM zone 47N\"]", read.getProjection());
+					assertEquals(message, noData, read.getNoData());
+					assertEquals(message, order, read.getSamples().order());
+					assertEquals(message, ByteBuffer.wrap(shorts(order, shorts)), read.getSamples());
+					assertArrayEquals(message, new double[] { -32768, -1, 0, 1, 32767, -9999 }, read.getSamples(null),
+							0);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSamples() throws Exception {
+		for (ByteOrder order : ORDERS) {
+			byte[] bytes = { 0, 1, 127, (byte) 128, (byte) 255, (byte) 0xfe };
+			assertSamples(new double[] { 0, 1, 127, 128, 255, 254 },
+					tile(RasterTile.GDT_BYTE, 3, 2, null, order, bytes));
+
+			short[] shorts = { 0, 1, 32767, (short) 32768, (short) 65535, (short) 0xabcd };
+			assertSamples(new double[] { 0, 1, 32767, 32768, 65535, 0xabcd },
+					tile(RasterTile.GDT_UINT16, 3, 2, null, order, shorts(order, shorts)));
+			assertSamples(new double[] { 0, 1, 32767, -32768, -1, (short) 0xabcd },
+					tile(RasterTile.GDT_INT16, 3, 2, null, order, shorts(order, shorts)));
+
+			ByteBuffer floats = ByteBuffer.allocate(6 * 4).order(order);
+			floats.putFloat(-1.5f).putFloat(0).putFloat(3.25f).putFloat(Float.MAX_VALUE).putFloat(-9999)
+					.putFloat(Float.NaN);
+			assertSamples(new double[] { -1.5, 0, 3.25, Float.MAX_VALUE, -9999, Double.NaN },
+					tile(RasterTile.GDT_FLOAT32, 3, 2, -9999.0, order, floats.array()));
+
+			ByteBuffer ints = ByteBuffer.allocate(2 * 4).order(order);
+			ints.putInt(-1).putInt(Integer.MIN_VALUE);
+			assertSamples(new double[] { 0xffffffffL, 0x80000000L },
+					tile(RasterTile.GDT_UINT32, 2, 1, null, order, ints.array()));
+			assertSamples(new double[] { -1, Integer.MIN_VALUE },
+					tile(RasterTile.GDT_INT32, 2, 1, null, order, ints.array()));
+
+			ByteBuffer doubles = ByteBuffer.allocate(2 * 8).order(order);
+			doubles.putDouble(Math.PI).putDouble(-Double.MAX_VALUE);
+			assertSamples(new double[] { Math.PI, -Double.MAX_VALUE },
+					tile(RasterTile.GDT_FLOAT64, 1, 2, null, order, doubles.array()));
+		}
+	}
+
+	@Test
+	public void testSamplesReuse() throws Exception {
+		RasterTile tile = tile(RasterTile.GDT_BYTE, 2, 2, null, ByteOrder.BIG_ENDIAN, new byte[] { 1, 2, 3, 4 });
+		double[] large = new double[5];
+		large[4] = -1;
+		assertTrue(tile.getSamples(large) == large);
+		assertArrayEquals(new double[] { 1, 2, 3, 4, -1 }, large, 0); // beyond width * height is left as is
+		double[] small = new double[3];
+		double[] samples = tile.getSamples(small);
+		assertTrue(samples != small);
+		assertArrayEquals(new double[] { 1, 2, 3, 4 }, samples, 0);
+
+		try {
+			tile(10, 2, 2, null, ByteOrder.BIG_ENDIAN, new byte[16]).getSamples(null); // GDT_CInt16
+			fail("complex samples");
+		} catch (IOException e) {
+		}
+	}
+
+	// a tile at (64, 128) of band 4, tile row 5, tile col 6 of SCENE
+	static RasterTile tile(int dataType, int width, int height, Double noData, ByteOrder order, byte[] samples) {
+		return new RasterTile(SCENE, 4, 5, 6, 64, 128, width, height, dataType, GEO_TRANSFORM,
+				"PROJCS[\"WGS 84 / UTM zone 47N\"]", noData, order, samples);
+	}
+
+	static byte[] shorts(ByteOrder order, short... shorts) {
+		ByteBuffer buffer = ByteBuffer.allocate(2 * shorts.length).order(order);
+		for (short s : shorts)
+			buffer.putShort(s);
+		return buffer.array();
+	}
+
+	// the samples of tile, and of the tile decoded from its record
+	static void assertSamples(double[] expected, RasterTile tile) throws IOException {
+		String message = "GDT " + tile.getDataType() + ", " + tile.getSamples().order();
+		assertArrayEquals(message, expected, tile.getSamples(null), 0);
+		byte[] value = tile.toBytes();
+		RasterTile read = RasterTile.read(RasterTile.tileKey(tile.getScene(), tile.getBand(), tile.getRow(),
+				tile.getCol()), RecordView.of(value, value.length));
+		assertArrayEquals(message, expected, read.getSamples(null), 0);
+	}
+
+	static void assertTile(String scene, int band, int row, int col, RasterTile tile) {
+		assertEquals(scene, tile.getScene());
+		assertEquals(band, tile.getBand());
+		assertEquals(row, tile.getRow());
+		assertEquals(col, tile.getCol());
+	}
+}
@@ -0,0 +1,175 @@
+package com.openresearchinc.hadoop.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.NetcdfFileWriteable;
+
+import com.openresearchinc.hadoop.sequencefile.RegionQuery;
+
+/**
+ * mvn test -Dtest=RegionQueryTest#<method>
+ *
+ * Index ranges of coordinates, and queries of small NetCDF-3 grids written to /tmp, so no native code is needed.
+ */
+public class RegionQueryTest {
+
+	@Test
+	public void testIndexRangeAscending() throws Exception {
+		double[] lat = { -30, -20, -10, 0, 10, 20, 30 };
+		assertArrayEquals(new int[] { 2, 4 }, RegionQuery.indexRange(lat, -10, 10)); // bounds are inclusive
+		assertArrayEquals(new int[] { 2, 3 }, RegionQuery.indexRange(lat, -15, 5));
+		assertArrayEquals(new int[] { 0, 6 }, RegionQuery.indexRange(lat, -90, 90));
+		assertArrayEquals(new int[] { 3, 3 }, RegionQuery.indexRange(lat, 0, 0));
+		assertArrayEquals(new int[] { 0, 0 }, RegionQuery.indexRange(lat, -40, -30));
+		assertArrayEquals(new int[] { 6, 6 }, RegionQuery.indexRange(lat, 30, 40));
+		assertEquals(3, RegionQuery.search(lat, 0, false));
+		assertEquals(4, RegionQuery.search(lat, 0, true));
+		assertEquals(7, RegionQuery.search(lat, 31, false));
+	}
+
+	@Test
+	public void testIndexRangeDescending() throws Exception {
+		double[] lat = { 30, 20, 10, 0, -10, -20, -30 }; // north to south, as many grids are
+		assertArrayEquals(new int[] { 2, 4 }, RegionQuery.indexRange(lat, -10, 10));
+		assertArrayEquals(new int[] { 3, 4 }, RegionQuery.indexRange(lat, -15, 5));
+		assertArrayEquals(new int[] { 0, 6 }, RegionQuery.indexRange(lat, -90, 90));
+		assertArrayEquals(new int[] { 3, 3 }, RegionQuery.indexRange(lat, 0, 0));
+		assertArrayEquals(new int[] { 6, 6 }, RegionQuery.indexRange(lat, -40, -30));
+		assertEquals(3, RegionQuery.search(lat, 0, false));
+		assertEquals(4, RegionQuery.search(lat, 0, true));
+		assertEquals(7, RegionQuery.search(lat, -31, false));
+	}
+
+	@Test
+	public void testIndexRangeOutOfRange() throws Exception {
+		double[] lat = { -30, -20, -10, 0, 10, 20, 30 };
+		assertTrue(RegionQuery.indexRange(lat, 31, 40) == null);
+		assertTrue(RegionQuery.indexRange(lat, -40, -31) == null);
+		assertTrue(RegionQuery.indexRange(lat, 1, 9) == null); // between two coordinates
+		assertTrue(RegionQuery.indexRange(lat, 10, -10) == null);
+		assertTrue(RegionQuery.indexRange(new double[] { 30, 20, 10 }, 31, 40) == null);
+		assertTrue(RegionQuery.indexRange(new double[0], -90, 90) == null);
+		assertArrayEquals(new int[] { 0, 0 }, RegionQuery.indexRange(new double[] { 5 }, 0, 10));
+	}
+
+	@Test
+	public void testWrappedLongitudes() throws Exception {
+		// -180..180 query on a 0..360 grid, within and across its start
+		assertBounds(new double[][] { { 250, 260 } }, RegionQuery.longitudeBounds(-110, -100, 359));
+		assertBounds(new double[][] { { 350, 360 }, { 0, 10 } }, RegionQuery.longitudeBounds(-10, 10, 359));
+		assertBounds(new double[][] { { 0, 10 } }, RegionQuery.longitudeBounds(0, 10, 359));
+		// 0..360 query on a -180..180 grid
+		assertBounds(new double[][] { { -170, -160 } }, RegionQuery.longitudeBounds(190, 200, 179));
+		assertBounds(new double[][] { { 170, 180 }, { -180, -170 } }, RegionQuery.longitudeBounds(170, 190, 179));
+		// across the antimeridian, minlon > maxlon
+		assertBounds(new double[][] { { 170, 180 }, { -180, -170 } }, RegionQuery.longitudeBounds(170, -170, 179));
+		assertBounds(new double[][] { { 170, 190 } }, RegionQuery.longitudeBounds(170, -170, 359));
+		// all around
+		assertBounds(new double[][] { { Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY } },
+				RegionQuery.longitudeBounds(-180, 180, 359));
+		assertBounds(new double[][] { { Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY } },
+				RegionQuery.longitudeBounds(0, 360, 179));
+	}
+
+	@Test
+	public void testQueryAcrossStartOfGrid() throws Exception {
+		double[] lon = new double[36]; // 0, 10,.., 350
+		for (int i = 0; i < lon.length; i++)
+			lon[i] = 10 * i;
+		NetcdfFile nc = NetcdfFile.open(grid("/tmp/region-query-0-360.nc", lon, new double[] { 10, 0, -10 }, 0, 1));
+		try {
+			// the samples are their longitude (plus 0 or 1)
+			assertEquals("pr[time=0:1,lat=0:2,lon=35:35+0:1] min=0.0 max=351.0 count=18",
+					query(-10, 10, -90, 90).query(nc));
+			assertEquals("pr[time=0:1,lat=1:1,lon=25:26] min=250.0 max=261.0 count=4", query(-110, -100, 0, 0)
+					.query(nc));
+			assertEquals("pr[time=0:1,lat=0:1,lon=17:19] min=170.0 max=191.0 count=12", query(170, -170, 0, 10)
+					.query(nc));
+			assertEquals("pr[] min=NaN max=NaN count=0", query(0, 10, 20, 30).query(nc));
+		} finally {
+			nc.close();
+		}
+
+		for (int i = 0; i < lon.length; i++)
+			lon[i] = 10 * i - 180;
+		nc = NetcdfFile.open(grid("/tmp/region-query-180-180.nc", lon, new double[] { -10, 0, 10 }, 0));
+		try {
+			assertEquals("pr[time=0:0,lat=0:2,lon=35:35+0:1] min=-180.0 max=170.0 count=9", query(170, -170, -10, 10)
+					.query(nc));
+			assertEquals("pr[time=0:0,lat=0:2,lon=35:35+0:1] min=-180.0 max=170.0 count=9", query(170, 190, -10, 10)
+					.query(nc));
+		} finally {
+			nc.close();
+		}
+	}
+
+	@Test
+	public void testInvalidBoxIsRejected() throws Exception {
+		try {
+			new RegionQuery().withBoundingBox(0, 10, 40, 35);
+			fail("minlat > maxlat");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			new RegionQuery().withTimeRange(20454, 20089);
+			fail("from > to");
+		} catch (IllegalArgumentException e) {
+		}
+		new RegionQuery().withBoundingBox(170, -170, 35, 40); // across the antimeridian
+	}
+
+	static RegionQuery query(double... bbox) {
+		return new RegionQuery().withVariable("pr").withBoundingBox(bbox).withAggregates("min", "max", "count");
+	}
+
+	static void assertBounds(double[][] expected, double[][] actual) {
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++)
+			assertArrayEquals(expected[i], actual[i], 1e-9);
+	}
+
+	/**
+	 * Write a NetCDF-3 file of pr(time, lat, lon), whose samples are their longitude plus their time
+	 *
+	 * @return its path
+	 */
+	static String grid(String path, double[] lon, double[] lat, double... times) throws IOException {
+		int steps = times.length;
+		new File(path).delete();
+		NetcdfFileWriteable nc = NetcdfFileWriteable.createNew(path, false);
+		try {
+			Dimension time = nc.addDimension("time", steps);
+			Dimension latitude = nc.addDimension("lat", lat.length);
+			Dimension longitude = nc.addDimension("lon", lon.length);
+			nc.addVariable("time", DataType.DOUBLE, new Dimension[] { time });
+			nc.addVariable("lat", DataType.DOUBLE, new Dimension[] { latitude });
+			nc.addVariable("lon", DataType.DOUBLE, new Dimension[] { longitude });
+			nc.addVariable("pr", DataType.FLOAT, new Dimension[] { time, latitude, longitude });
+			nc.create();
+			float[] samples = new float[steps * lat.length * lon.length];
+			for (int i = 0; i < samples.length; i++)
+				samples[i] = (float) (lon[i % lon.length] + times[i / (lat.length * lon.length)]);
+			nc.write("time", Array.factory(times));
+			nc.write("lat", Array.factory(lat));
+			nc.write("lon", Array.factory(lon));
+			nc.write("pr", Array.factory(DataType.FLOAT, new int[] { steps, lat.length, lon.length }, samples));
+		} catch (Exception e) {
+			throw new IOException("cannot write " + path, e);
+		} finally {
+			nc.close();
+		}
+		return path;
+	}
+}
@@ -2,14 +2,23 @@ package com.openresearchinc.hadoop.test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 import javax.imageio.ImageIO;
 import javax.imageio.stream.ImageInputStream;
@@ -18,12 +27,30 @@ import ncsa.hdf.object.h5.H5File;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.DefaultCodec;
 import org.apache.hadoop.io.compress.GzipCodec;
 import org.apache.hadoop.io.compress.Lz4Codec;
 import org.apache.hadoop.io.compress.SnappyCodec;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.NLineInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.gdal.gdal.Dataset;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -35,8 +62,21 @@ import ucar.ma2.ArrayFloat;
 import ucar.nc2.NetcdfFile;
 import ucar.nc2.Variable;
 
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.openresearchinc.hadoop.sequencefile.ChunkedFile;
+import com.openresearchinc.hadoop.sequencefile.CombinedSequenceFileInputFormat;
+import com.openresearchinc.hadoop.sequencefile.CompressUtil;
+import com.openresearchinc.hadoop.sequencefile.DedupIndex;
+import com.openresearchinc.hadoop.sequencefile.DistributedIngest;
+import com.openresearchinc.hadoop.sequencefile.GdalMemFile;
+import com.openresearchinc.hadoop.sequencefile.IngestJournal;
 import com.openresearchinc.hadoop.sequencefile.OpenCV;
+import com.openresearchinc.hadoop.sequencefile.PackingWriter;
+import com.openresearchinc.hadoop.sequencefile.ParallelIngest;
+import com.openresearchinc.hadoop.sequencefile.SequenceFileIndex;
+import com.openresearchinc.hadoop.sequencefile.SequenceFileIterator;
 import com.openresearchinc.hadoop.sequencefile.PPMImageReader;
+import com.openresearchinc.hadoop.sequencefile.StreamingWriter;
 import com.openresearchinc.hadoop.sequencefile.Util;
 import com.openresearchinc.hadoop.sequencefile.hdf5_getters;
 
@@ -66,6 +106,33 @@ public class SequenceFileTest extends BaseTest {
 		assertEquals(1, dataset.getRasterCount());
 	}
 
+	@Test
+	public void testGdalMemFileReleasesNativeMemory() throws Exception {
+		String path = new File(this.getClass().getResource("/p132r058_3dm19790123_z48_10.tif").getPath())
+				.getAbsolutePath();
+		byte[] bytes = IOUtils.toByteArray(new FileInputStream(path));
+		long before = GdalMemFile.getNativeBytes();
+		for (int i = 0; i < 50; i++) {
+			GdalMemFile file = GdalMemFile.open(bytes);
+			try {
+				assertEquals(1, file.getDataset().getRasterCount());
+				assertEquals(before + bytes.length, GdalMemFile.getNativeBytes());
+			} finally {
+				file.close();
+			}
+			assertEquals(before, GdalMemFile.getNativeBytes());
+			assertTrue(org.gdal.gdal.gdal.Open(file.getName()) == null); // unlinked, not just counted
+			file.close(); // again, a no-op
+			assertEquals(before, GdalMemFile.getNativeBytes());
+		}
+		try {
+			GdalMemFile.open(new byte[] { 1, 2, 3 }); // closed by the failed open
+			fail("GDAL opened 3 bytes");
+		} catch (IOException e) {
+		}
+		assertEquals(before, GdalMemFile.getNativeBytes());
+	}
+
 	@Test
 	/**
 	 *  Test image in compressed PPM format as used in NIST Colorferet database 
@@ -110,6 +177,24 @@ public class SequenceFileTest extends BaseTest {
 		assertTrue(faces.size() == 1);
 	}
 
+	@Test
+	/**
+	 * Every cascade a map task loads is shipped to it, including the configured feature cascades
+	 * @throws Exception
+	 */
+	public void testOpenCVDistributesFeatureCascades() throws Exception {
+		Job job = Job.getInstance(new Configuration());
+		job.getConfiguration().set(OpenCV.FEATURES, "haarcascade_mcs_mouth.xml, haarcascade_eye.xml");
+		job.getConfiguration().set(OpenCV.CASCADES, "hdfs:///cascades");
+		OpenCV.addCascadeFiles(job);
+		List<String> files = new ArrayList<String>();
+		for (URI uri : job.getCacheFiles())
+			files.add(uri.toString());
+		assertEquals(Arrays.asList("hdfs:///cascades/haarcascade_frontalface_default.xml#haarcascade_frontalface_default.xml",
+				"hdfs:///cascades/haarcascade_eye.xml#haarcascade_eye.xml",
+				"hdfs:///cascades/haarcascade_mcs_mouth.xml#haarcascade_mcs_mouth.xml"), files);
+	}
+
 	@Test
 	/**
 	 * List NASA OpenNex netCDF files under an randomly-selected folder
@@ -240,6 +325,31 @@ public class SequenceFileTest extends BaseTest {
 		}
 	}
 
+	@Test
+	public void testIterateWithFilters() throws Exception {
+		Configuration conf = new Configuration();
+		Path seqfile = new Path("/tmp/filtered.seq");
+		StreamingWriter writer = new StreamingWriter(conf, seqfile, CompressionType.BLOCK, new DefaultCodec());
+		for (int i = 0; i < 100; i++)
+			writer.append("/data/" + (i % 2 == 0 ? "a/" : "b/") + i + (i % 3 == 0 ? ".nc" : ".tif"), new byte[i]);
+		writer.close();
+		SequenceFileIterator records = new SequenceFileIterator(conf, seqfile).withPrefix("/data/a/").withExtension(
+				"NC");
+		int n = 0;
+		try {
+			while (records.hasNext()) {
+				SequenceFileIterator.Record record = records.next();
+				assertTrue(record.getKey().toString().endsWith(".nc"));
+				assertEquals(Integer.parseInt(record.getKey().toString().replaceAll("\\D", "")), record.getValue()
+						.getLength());
+				n++;
+			}
+		} finally {
+			records.close();
+		}
+		assertEquals(17, n); // multiples of 6 in [0, 100)
+	}
+
 	@Test
 	public void testGzipBzip2Lz4SnappyCodecs() throws Exception {
 		// should work if all native in enabled by checking $hadoop checknative
@@ -252,6 +362,491 @@ public class SequenceFileTest extends BaseTest {
 		Util.writeToSequenceFile("file://" + path, hadoopMaster + "/tmp/TRAXLZU12903D05F94.h5.seq", new SnappyCodec());
 	}
 
+	@Test
+	/**
+	 * bz2 input of unknown uncompressed size is streamed (via spill buffer) into the record value
+	 * @throws Exception
+	 */
+	public void testStreamingWriteOfBzip2File() throws Exception {
+		File file = new File(this.getClass().getResource("/ncar.nc").getPath());
+		byte[] original = FileUtils.readFileToByteArray(file);
+		FileUtils.writeByteArrayToFile(new File("/tmp/ncar.nc.bz2"), CompressUtil.bZip2(original));
+		Util.writeToSequenceFile("file:///tmp/ncar.nc.bz2", "file:///tmp/ncar.nc.bz2.seq", new DefaultCodec());
+		byte[] value = Util.readSequenceFileFromFS("file:///tmp/ncar.nc.bz2.seq"); // getLength() bytes, see RecordView
+		assertEquals(original.length, value.length);
+		assertTrue(Arrays.equals(original, value));
+	}
+
+	@Test
+	/**
+	 * A file larger than the chunk size is stored as chunk records and read back as one stream
+	 * @throws Exception
+	 */
+	public void testChunkedLargeFile() throws Exception {
+		File file = new File(this.getClass().getResource("/ncar.nc").getPath());
+		byte[] original = FileUtils.readFileToByteArray(file);
+		Configuration conf = new Configuration();
+		Path seqfile = new Path("/tmp/ncar.nc.chunked.seq");
+		StreamingWriter writer = new StreamingWriter(conf, seqfile, CompressionType.BLOCK, new DefaultCodec());
+		int chunks = ChunkedFile.append(writer, file.getAbsolutePath(), new FileInputStream(file), file.length(),
+				64 * 1024);
+		writer.close();
+		assertTrue(chunks > 1);
+		InputStream in = ChunkedFile.open(conf, seqfile, file.getAbsolutePath());
+		assertTrue(Arrays.equals(original, IOUtils.toByteArray(in)));
+		in.close();
+		assertTrue(ChunkedFile.open(conf, seqfile, "/not/there") == null);
+	}
+
+	@Test
+	/**
+	 * A filename which reads back as a chunk key is rejected instead of being read as a chunk of another file
+	 * @throws Exception
+	 */
+	public void testChunkKeyFilenameIsRejected() throws Exception {
+		Configuration conf = new Configuration();
+		Path seqfile = new Path("/tmp/chunkkey.seq");
+		StreamingWriter writer = new StreamingWriter(conf, seqfile, CompressionType.NONE, null);
+		try {
+			ChunkedFile.append(writer, "/data/x.nc#000001/000002", new ByteArrayInputStream(new byte[10]), 10, 4);
+			assertTrue("chunk key accepted as a filename", false);
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("chunk key"));
+		} finally {
+			writer.close();
+		}
+		ChunkedFile.append(writer = new StreamingWriter(conf, seqfile, CompressionType.NONE, null), "/data/x#1.nc",
+				new ByteArrayInputStream(new byte[10]), 10, 4); // '#' alone is fine
+		writer.close();
+		InputStream in = ChunkedFile.open(conf, seqfile, "/data/x#1.nc");
+		assertEquals(10, IOUtils.toByteArray(in).length);
+		in.close();
+	}
+
+	@Test
+	/**
+	 * A local directory packed by 2 fetchers gives one record per file matching ext, with its exact content
+	 * @throws Exception
+	 */
+	public void testParallelIngestOfLocalDirectory() throws Exception {
+		File in = new File("/tmp/pingest");
+		FileUtils.deleteDirectory(in);
+		Random random = new Random(1);
+		Map<String, byte[]> files = new HashMap<String, byte[]>();
+		for (int i = 0; i < 50; i++) {
+			byte[] bytes = new byte[random.nextInt(100000)];
+			random.nextBytes(bytes);
+			File file = new File(in, i % 5 + "/" + i + ".bin");
+			FileUtils.writeByteArrayToFile(file, bytes);
+			files.put(file.getAbsolutePath(), bytes);
+		}
+		FileUtils.writeStringToFile(new File(in, "0/0.bin.md5"), "not ingested");
+		Configuration conf = new Configuration();
+		Path out = new Path("file:///tmp/pingest.seq");
+		out.getFileSystem(conf).delete(out, true);
+
+		ParallelIngest ingest = new ParallelIngest(2);
+		ingest.run("file://" + in.getAbsolutePath(), "file:///tmp/pingest.seq", "bin", new DefaultCodec());
+		assertEquals(files.size(), ingest.getObjects());
+
+		int n = 0;
+		for (FileStatus status : out.getFileSystem(conf).listStatus(out)) {
+			if (!status.getPath().getName().endsWith(".seq"))
+				continue;
+			SequenceFileIterator records = new SequenceFileIterator(conf, status.getPath());
+			try {
+				while (records.hasNext()) {
+					SequenceFileIterator.Record record = records.next();
+					byte[] expected = files.get(record.getKey().toString());
+					assertTrue(record.getKey().toString(), expected != null);
+					assertTrue(Arrays.equals(expected, record.getView().toArray()));
+					n++;
+				}
+			} finally {
+				records.close();
+			}
+		}
+		assertEquals(files.size(), n);
+	}
+
+	@Test(timeout = 120000)
+	/**
+	 * A writer failing mid-way (e.g. disk full) fails the ingest: run() returns with its exception, the stages finish,
+	 * and no spill file is left behind
+	 * @throws Exception
+	 */
+	public void testParallelIngestFailsOnWriterError() throws Exception {
+		File in = new File("/tmp/pingest-fail");
+		FileUtils.deleteDirectory(in);
+		Random random = new Random(2);
+		for (int i = 0; i < 24; i++) {
+			byte[] bytes = new byte[(i % 2 == 0 ? 5 : 0) * 1024 * 1024 + 1000]; // half of them spill to disk
+			random.nextBytes(bytes);
+			FileUtils.writeByteArrayToFile(new File(in, i + ".bin"), bytes);
+		}
+		Path out = new Path("file:///tmp/pingest-fail.seq");
+		out.getFileSystem(new Configuration()).delete(out, true);
+		File tmp = new File(System.getProperty("java.io.tmpdir"));
+		int spills = spillFiles(tmp);
+
+		ParallelIngest ingest = new ParallelIngest(4) {
+			@Override
+			protected PackingWriter newWriter(Path outpath, CompressionCodec codec, IngestJournal journal)
+					throws IOException {
+				return new PackingWriter(new Configuration(), outpath, "", 1, codec) {
+					int files = 0;
+
+					@Override
+					public void append(String filename, InputStream in, long length) throws IOException {
+						if (++files == 3)
+							throw new IOException("No space left on device");
+						super.append(filename, in, length);
+					}
+				};
+			}
+		};
+		try {
+			ingest.run("file://" + in.getAbsolutePath(), "file:///tmp/pingest-fail.seq", "bin", null);
+			fail("the ingest did not fail");
+		} catch (IOException e) {
+			assertEquals("No space left on device", e.getCause().getMessage());
+		}
+		assertEquals(2, ingest.getObjects());
+		assertEquals(spills, spillFiles(tmp));
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+			assertTrue(thread.getName(), !thread.getName().startsWith("ingest-") || !thread.isAlive());
+	}
+
+	static int spillFiles(File dir) {
+		int n = 0;
+		for (String name : dir.list())
+			if (name.startsWith("bin2seq-") && name.endsWith(".spill"))
+				n++;
+		return n;
+	}
+
+	@Test
+	public void testPackingWriterFitsInBlock() throws Exception {
+		Configuration conf = new Configuration();
+		Path dir = new Path("file:///tmp/packed");
+		FileSystem fs = dir.getFileSystem(conf);
+		fs.delete(dir, true);
+		long blockSize = 1024 * 1024;
+		PackingWriter writer = new PackingWriter(conf, dir, "", 1, new DefaultCodec(), blockSize);
+		Random random = new Random();
+		for (int i = 0; i < 1000; i++) {
+			byte[] bytes = new byte[1000 + random.nextInt(20000)];
+			for (int j = 0; j < bytes.length; j++)
+				bytes[j] = (byte) ('a' + random.nextInt(4));
+			writer.append("file" + i, new ByteArrayInputStream(bytes), bytes.length);
+		}
+		writer.close();
+		FileStatus[] packed = fs.listStatus(dir, new PathFilter() {
+			public boolean accept(Path path) {
+				return path.getName().endsWith(".seq");
+			}
+		});
+		assertTrue(packed.length > 1);
+		for (FileStatus status : packed)
+			assertTrue(status.getLen() <= blockSize);
+	}
+
+	@Test
+	/**
+	 * Records are sized by the UTF-8 bytes of their keys, so files of long non-ASCII keys still fit in a block
+	 * @throws Exception
+	 */
+	public void testPackingWriterFitsNonAsciiKeysInBlock() throws Exception {
+		Configuration conf = new Configuration();
+		Path dir = new Path("file:///tmp/packed-utf8");
+		FileSystem fs = dir.getFileSystem(conf);
+		fs.delete(dir, true);
+		long blockSize = 64 * 1024;
+		PackingWriter writer = new PackingWriter(conf, dir, "", 1, null, blockSize);
+		writer.setChunkSize(16 * 1024);
+		StringBuilder name = new StringBuilder("/\u96e8/");
+		for (int i = 0; i < 8000; i++)
+			name.append('\u964d'); // 3 bytes in UTF-8
+		writer.append("/ascii", new ByteArrayInputStream(new byte[50000]), 50000);
+		for (int i = 0; i < 5; i++) // 24KB of key each, 8KB if counted in chars
+			writer.append(name + "." + i, new ByteArrayInputStream(new byte[10]), 10);
+		byte[] large = new byte[40 * 1024]; // chunked, all chunks in one file
+		new Random().nextBytes(large);
+		writer.append("/\u96e8/large", new ByteArrayInputStream(large), large.length);
+		writer.close();
+		FileStatus[] packed = fs.listStatus(dir, new PathFilter() {
+			public boolean accept(Path path) {
+				return path.getName().endsWith(".seq");
+			}
+		});
+		assertTrue(packed.length > 1);
+		for (FileStatus status : packed)
+			assertTrue(status.getPath() + ": " + status.getLen(), status.getLen() <= blockSize);
+		InputStream in = SequenceFileIndex.find(conf, new Path(dir, packed.length + ".seq"), "/\u96e8/large");
+		assertTrue(Arrays.equals(large, IOUtils.toByteArray(in)));
+		in.close();
+	}
+
+	@Test
+	/**
+	 * Map task of DistributedIngest, run locally on a manifest of local files, with dfs.blocksize as hdfs-site.xml
+	 * gives it (128m)
+	 * @throws Exception
+	 */
+	public void testDistributedIngestMapWithBlockSizeSuffix() throws Exception {
+		Configuration conf = new Configuration();
+		conf.set("fs.defaultFS", "file:///");
+		conf.set("mapreduce.framework.name", "local");
+		conf.set("dfs.blocksize", "128m");
+		conf.set(DistributedIngest.EXT_KEY, ".tif");
+		Path src = new Path("file:///tmp/dingest-src"), manifest = new Path("file:///tmp/dingest-manifest");
+		Path out = new Path("file:///tmp/dingest-out");
+		FileSystem fs = src.getFileSystem(conf);
+		fs.delete(src, true);
+		fs.delete(manifest, true);
+		fs.delete(out, true);
+		Map<String, byte[]> files = new HashMap<String, byte[]>();
+		StringBuilder group = new StringBuilder();
+		for (String name : new String[] { "a.tif", "b.tif" }) {
+			byte[] bytes = new byte[1000 + files.size()];
+			new Random().nextBytes(bytes);
+			Path file = new Path(src, name);
+			FSDataOutputStream os = fs.create(file);
+			os.write(bytes);
+			os.close();
+			files.put(file.toUri().getPath().substring(1), bytes);
+			group.append(file).append('\t').append(bytes.length).append('\n');
+		}
+		FSDataOutputStream os = fs.create(new Path(manifest, "group-00000"));
+		os.write(group.toString().getBytes("UTF-8"));
+		os.close();
+		os = fs.create(new Path(manifest, "groups"));
+		os.write((new Path(manifest, "group-00000") + "\n").getBytes("UTF-8"));
+		os.close();
+
+		Job job = Job.getInstance(conf);
+		job.setMapperClass(DistributedIngest.Map.class);
+		job.setNumReduceTasks(0);
+		job.setOutputKeyClass(NullWritable.class);
+		job.setOutputValueClass(NullWritable.class);
+		job.setInputFormatClass(NLineInputFormat.class);
+		FileInputFormat.addInputPath(job, new Path(manifest, "groups"));
+		LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
+		FileOutputFormat.setOutputPath(job, out);
+		assertTrue(job.waitForCompletion(false));
+
+		Path packed = new Path(out, "part-m-00000-1.seq");
+		for (Map.Entry<String, byte[]> file : files.entrySet()) {
+			InputStream in = SequenceFileIndex.find(conf, packed, file.getKey());
+			assertTrue(Arrays.equals(file.getValue(), IOUtils.toByteArray(in)));
+			in.close();
+		}
+	}
+
+	@Test
+	/**
+	 * Small files are combined into splits of dfs.blocksize, given with a unit suffix as in hdfs-site.xml
+	 * @throws Exception
+	 */
+	public void testCombinedSplitsOfBlockSize() throws Exception {
+		Configuration conf = new Configuration();
+		Path dir = new Path("file:///tmp/combined");
+		dir.getFileSystem(conf).delete(dir, true);
+		byte[] bytes = new byte[10 * 1024];
+		new Random().nextBytes(bytes); // incompressible
+		for (int i = 0; i < 8; i++) {
+			SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+					SequenceFile.Writer.file(new Path(dir, i + ".seq")), SequenceFile.Writer.keyClass(Text.class),
+					SequenceFile.Writer.valueClass(BytesWritable.class),
+					SequenceFile.Writer.compression(CompressionType.NONE));
+			writer.append(new Text("/" + i), new BytesWritable(bytes));
+			writer.close();
+		}
+		CombinedSequenceFileInputFormat format = new CombinedSequenceFileInputFormat();
+		Job job = Job.getInstance(conf);
+		FileInputFormat.addInputPath(job, dir);
+		job.getConfiguration().set("dfs.blocksize", "1m");
+		assertEquals(1, format.getSplits(job).size());
+		job.getConfiguration().set("dfs.blocksize", "20k"); // 2 files a split
+		List<InputSplit> splits = format.getSplits(job);
+		assertEquals(4, splits.size());
+		long length = 0;
+		for (InputSplit split : splits)
+			length += split.getLength();
+		assertEquals(8 * new File("/tmp/combined/0.seq").length(), length);
+		job.getConfiguration().set(FileInputFormat.SPLIT_MAXSIZE, "1m"); // over dfs.blocksize
+		assertEquals(1, format.getSplits(job).size());
+	}
+
+	@Test
+	/**
+	 * An ingest stopped after 2 closed (journaled) files and resumed: nothing is lost, and only the objects of the
+	 * file still open when it stopped are written again
+	 * @throws Exception
+	 */
+	public void testIngestJournalResumesAfterCrash() throws Exception {
+		Configuration conf = new Configuration();
+		Path dir = new Path("file:///tmp/journaled");
+		FileSystem fs = dir.getFileSystem(conf);
+		fs.delete(dir, true);
+		List<S3ObjectSummary> summaries = new ArrayList<S3ObjectSummary>();
+		Map<String, byte[]> objects = new HashMap<String, byte[]>();
+		for (int i = 0; i < 12; i++) {
+			S3ObjectSummary summary = new S3ObjectSummary();
+			summary.setKey("obj/" + i + ".tif");
+			summary.setETag("etag" + i);
+			summary.setSize(16 * 1024);
+			byte[] bytes = new byte[16 * 1024];
+			new Random().nextBytes(bytes);
+			objects.put(summary.getKey(), bytes);
+			summaries.add(summary);
+		}
+		long blockSize = 64 * 1024; // 3 objects a file
+
+		IngestJournal journal = new IngestJournal(conf, dir);
+		PackingWriter writer = new PackingWriter(conf, dir, "", journal.nextSeq(), null, blockSize);
+		writer.addListener(journal);
+		for (S3ObjectSummary summary : summaries.subList(0, 7)) { // crash while 3.seq is open, never closed
+			byte[] bytes = objects.get(summary.getKey());
+			writer.appendObject(summary.getKey(), new ByteArrayInputStream(bytes), bytes.length, ".tif");
+			journal.completed(summary.getKey(), summary.getETag());
+		}
+
+		journal = new IngestJournal(conf, dir);
+		assertEquals(3, journal.nextSeq());
+		Set<String> unjournaled = new HashSet<String>();
+		writer = new PackingWriter(conf, dir, "", journal.nextSeq(), null, blockSize);
+		writer.addListener(journal);
+		for (S3ObjectSummary summary : summaries) {
+			if (journal.isDone(summary))
+				continue;
+			unjournaled.add(summary.getKey());
+			byte[] bytes = objects.get(summary.getKey());
+			writer.appendObject(summary.getKey(), new ByteArrayInputStream(bytes), bytes.length, ".tif");
+			journal.completed(summary.getKey(), summary.getETag());
+		}
+		writer.close();
+		assertEquals(summaries.size() - 6, unjournaled.size());
+
+		Map<String, Integer> records = new HashMap<String, Integer>();
+		for (FileStatus status : fs.listStatus(dir, new PathFilter() {
+			public boolean accept(Path path) {
+				return path.getName().endsWith(".seq");
+			}
+		})) {
+			SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(status.getPath()));
+			Text key = new Text();
+			BytesWritable value = new BytesWritable();
+			while (reader.next(key, value)) {
+				assertTrue(Arrays.equals(objects.get(key.toString()), value.copyBytes()));
+				Integer n = records.get(key.toString());
+				records.put(key.toString(), n == null ? 1 : n + 1);
+			}
+			reader.close();
+		}
+		assertEquals(objects.keySet(), records.keySet()); // none missing
+		for (Map.Entry<String, Integer> record : records.entrySet())
+			assertTrue(record.getKey(), record.getValue() == 1 || unjournaled.contains(record.getKey()));
+		journal = new IngestJournal(conf, dir);
+		for (S3ObjectSummary summary : summaries)
+			assertTrue(journal.isDone(summary));
+	}
+
+	@Test
+	/**
+	 * Identical files are packed once; the copies, in the same and in a later sequence file, are alias records which
+	 * DedupIndex.open resolves to the first occurrence
+	 * @throws Exception
+	 */
+	public void testDedupWritesAliasRecords() throws Exception {
+		Configuration conf = new Configuration();
+		Path dir = new Path("file:///tmp/dedup");
+		dir.getFileSystem(conf).delete(dir, true);
+		byte[] original = new byte[20 * 1024], other = new byte[50 * 1024];
+		new Random().nextBytes(original);
+		new Random().nextBytes(other);
+		PackingWriter writer = new PackingWriter(conf, dir, "", 1, null, 64 * 1024);
+		writer.setDedup(new DedupIndex(conf, dir, 0));
+		writer.append("/a.jpg", new ByteArrayInputStream(original), original.length);
+		writer.append("/b.jpg", new ByteArrayInputStream(original), original.length);
+		writer.append("/c.jpg", new ByteArrayInputStream(other), other.length); // rolls to 2.seq
+		writer.append("/d.jpg", new ByteArrayInputStream(original), original.length);
+		writer.close();
+
+		Map<String, byte[]> values = new HashMap<String, byte[]>();
+		for (String seqfile : new String[] { "1.seq", "2.seq" }) {
+			SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(new Path(dir, seqfile)));
+			Text key = new Text();
+			BytesWritable value = new BytesWritable();
+			while (reader.next(key, value))
+				values.put(seqfile + ":" + key, value.copyBytes());
+			reader.close();
+		}
+		assertEquals(4, values.size());
+		assertTrue(Arrays.equals(original, values.get("1.seq:/a.jpg")));
+		for (String alias : new String[] { "1.seq:/b.jpg", "2.seq:/d.jpg" }) {
+			byte[] value = values.get(alias);
+			assertTrue(alias, DedupIndex.isAlias(value, value.length));
+			DedupIndex.Alias first = DedupIndex.Alias.parse(value, value.length);
+			assertEquals("1.seq", first.getSeqfile());
+			assertEquals("/a.jpg", first.getKey());
+		}
+
+		for (String[] file : new String[][] { { "1.seq", "/b.jpg" }, { "2.seq", "/d.jpg" }, { "1.seq", "/a.jpg" } }) {
+			InputStream in = DedupIndex.open(conf, new Path(dir, file[0]), file[1]);
+			assertTrue(Arrays.equals(original, IOUtils.toByteArray(in)));
+			in.close();
+		}
+		InputStream in = DedupIndex.open(conf, new Path(dir, "2.seq"), "/c.jpg");
+		assertTrue(Arrays.equals(other, IOUtils.toByteArray(in)));
+		in.close();
+	}
+
+	@Test
+	/**
+	 * Every record of a sequence file under its own key, aliases resolved
+	 * @throws Exception
+	 */
+	@SuppressWarnings("deprecation")
+	public void testReadSequenceFileKeepsEveryKey() throws Exception {
+		Configuration conf = new Configuration();
+		Path dir = new Path("file:///tmp/readall");
+		dir.getFileSystem(conf).delete(dir, true);
+		Map<String, byte[]> files = new HashMap<String, byte[]>();
+		PackingWriter writer = new PackingWriter(conf, dir, "", 1, null, 64 * 1024 * 1024);
+		writer.setDedup(new DedupIndex(conf, dir, 0));
+		for (int i = 0; i < 5; i++) {
+			byte[] bytes = new byte[1000 + i];
+			new Random().nextBytes(bytes);
+			files.put("/" + i + ".jpg", bytes);
+			writer.append("/" + i + ".jpg", new ByteArrayInputStream(bytes), bytes.length);
+		}
+		files.put("/copy.jpg", files.get("/3.jpg"));
+		writer.append("/copy.jpg", new ByteArrayInputStream(files.get("/3.jpg")), files.get("/3.jpg").length);
+		writer.close();
+
+		Map<Text, byte[]> map = Util.readSequenceFile("file:///tmp/readall/1.seq");
+		assertEquals(files.size(), map.size());
+		for (Map.Entry<String, byte[]> file : files.entrySet())
+			assertTrue(file.getKey(), Arrays.equals(file.getValue(), map.get(new Text(file.getKey()))));
+	}
+
+	@Test
+	public void testSidecarIndexLookup() throws Exception {
+		Configuration conf = new Configuration();
+		Path dir = new Path("file:///tmp/indexed");
+		dir.getFileSystem(conf).delete(dir, true);
+		PackingWriter writer = new PackingWriter(conf, dir, "", 1, new DefaultCodec(), 64 * 1024 * 1024);
+		byte[] passwd = FileUtils.readFileToByteArray(new File("/etc/passwd"));
+		for (int i = 0; i < 1000; i++)
+			writer.append("/etc/passwd." + i, new ByteArrayInputStream(passwd), passwd.length);
+		writer.close();
+		InputStream in = SequenceFileIndex.find(conf, new Path(dir, "1.seq"), "/etc/passwd.789");
+		assertTrue(Arrays.equals(passwd, IOUtils.toByteArray(in)));
+		in.close();
+		assertTrue(SequenceFileIndex.find(conf, new Path(dir, "1.seq"), "/etc/shadow") == null);
+	}
+
 	@Test
 	public void testListSequenceFileKey() throws Exception {
 		Util.writeToSequenceFile("file:///etc/passwd", "file:///tmp/passwd.seq", new DefaultCodec());
@@ -0,0 +1,129 @@
+package com.openresearchinc.hadoop.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.openresearchinc.hadoop.sequencefile.PackingWriter;
+import com.openresearchinc.hadoop.sequencefile.SpatialIndex;
+import com.openresearchinc.hadoop.sequencefile.SpatialInputFormat;
+
+/**
+ * mvn test -Dtest=SpatialInputFormatTest#<method>
+ *
+ * Boxes added to a PackingWriter by hand, so no GDAL is needed to build the spatial index.
+ */
+public class SpatialInputFormatTest {
+	final Configuration conf = new Configuration();
+	final Path dir = new Path("file:///tmp/spatial");
+	FileSystem fs;
+
+	@Before
+	public void setUp() throws Exception {
+		fs = dir.getFileSystem(conf);
+		fs.delete(dir, true);
+	}
+
+	@Test
+	public void testFilesAndRecordsArePruned() throws Exception {
+		// 5 files of 10KB fit in a 64KB block: file i, in [i, i+1] x [0, 1], is packed into (i / 5 + 1).seq
+		String[] filenames = new String[12];
+		for (int i = 0; i < filenames.length; i++)
+			filenames[i] = "scene" + i + ".tif";
+		filenames[5] = "scene\t5\n.tif"; // a tab and a newline in the name
+		PackingWriter writer = new PackingWriter(conf, dir, "", 1, null, 64 * 1024);
+		writer.setSpatialIndex(true);
+		for (int i = 0; i < filenames.length; i++) {
+			writer.append(filenames[i], new ByteArrayInputStream(new byte[10 * 1024]), 10 * 1024);
+			if (i != 9) // scene9.tif has no box
+				writer.addBox(filenames[i], new double[] { i, i + 1, 0, 1 });
+		}
+		writer.close();
+		assertEquals(3, fs.listStatus(new Path(dir, "_spatial")).length);
+
+		SpatialIndex index = SpatialIndex.read(conf, new Path(dir, "2.seq"));
+		assertTrue(index.intersects("scene\t5\n.tif", new double[] { 5.5, 5.6, 0.5, 0.6 }));
+		assertTrue(!index.intersects("scene\t5\n.tif", new double[] { 6.5, 6.6, 0.5, 0.6 }));
+		assertTrue(!index.intersects("scene7.tif", new double[] { 6.5, 6.6, 0.5, 0.6 }));
+		assertTrue(index.intersects("scene4.tif", new double[] { 6.5, 6.6, 0.5, 0.6 })); // not in 2.seq
+
+		// 1.seq and 3.seq are left out; 2.seq is read since scene9.tif has no box, skipping scene\t5\n.tif and scene8
+		assertQuery("6.5,7.5,0.2,0.8", set("2.seq"), set("scene6.tif", "scene7.tif", "scene9.tif"));
+		assertQuery("5.5,5.6,0,1", set("2.seq"), set("scene\t5\n.tif", "scene9.tif"));
+		assertQuery("0.5,0.6,0,1", set("1.seq", "2.seq"), set("scene0.tif", "scene9.tif"));
+		assertQuery("10.5,20,0,1", set("2.seq", "3.seq"), set("scene9.tif", "scene10.tif", "scene11.tif"));
+		assertQuery("100,101,0,1", set("2.seq"), set("scene9.tif"));
+		assertQuery("0,12,-1,-0.5", set("2.seq"), set("scene9.tif"));
+	}
+
+	@Test
+	public void testIndexRoundTrip() throws Exception {
+		PackingWriter writer = new PackingWriter(conf, dir, "", 1, null, 64 * 1024);
+		writer.setSpatialIndex(true);
+		String[] filenames = { "a.tif", "tab\t.tif", "newline\n.tif", "\t\n" };
+		for (int i = 0; i < filenames.length; i++) {
+			writer.append(filenames[i], new ByteArrayInputStream(new byte[] { (byte) i }), 1);
+			writer.addBox(filenames[i], new double[] { -i, i, -0.5 * i, 0.5 * i });
+		}
+		writer.close();
+		SpatialIndex index = SpatialIndex.read(conf, new Path(dir, "1.seq"));
+		for (int i = 0; i < filenames.length; i++) {
+			assertTrue(filenames[i], index.intersects(filenames[i], new double[] { -i, -i, -0.5 * i, -0.5 * i }));
+			assertTrue(filenames[i], !index.intersects(filenames[i], new double[] { i + 1, i + 2, 0, 0 }));
+		}
+		assertTrue(!index.anyIntersects(new double[] { 10, 11, 0, 0 }));
+		assertArrayEquals(new double[] { 1, 2, 3, 4 }, SpatialIndex.parseBox("1,2,3,4"), 0);
+	}
+
+	// the sequence files left in the splits, and the keys read from them
+	void assertQuery(String bbox, Set<String> files, Set<String> keys) throws Exception {
+		Job job = Job.getInstance(conf);
+		FileInputFormat.setInputPaths(job, dir);
+		SpatialInputFormat.setBoundingBox(job, bbox);
+		SpatialInputFormat format = new SpatialInputFormat();
+		Set<String> splitFiles = new HashSet<String>();
+		List<String> records = new ArrayList<String>();
+		for (InputSplit split : format.getSplits(job)) {
+			for (Path path : ((CombineFileSplit) split).getPaths())
+				splitFiles.add(path.getName());
+			TaskAttemptContext context = new TaskAttemptContextImpl(job.getConfiguration(), new TaskAttemptID());
+			RecordReader<Text, BytesWritable> reader = format.createRecordReader(split, context);
+			reader.initialize(split, context);
+			while (reader.nextKeyValue()) {
+				records.add(reader.getCurrentKey().toString());
+				assertEquals(10 * 1024, reader.getCurrentValue().getLength());
+			}
+			reader.close();
+		}
+		assertEquals(bbox, files, splitFiles);
+		assertEquals(bbox, keys, new HashSet<String>(records));
+		assertEquals(bbox, keys.size(), records.size()); // each once
+	}
+
+	static Set<String> set(String... strings) {
+		return new HashSet<String>(Arrays.asList(strings));
+	}
+}